@@ -11,15 +11,17 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
+import com.github.sdnwiselab.sdnwise.event.EventBus;
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
 import com.github.sdnwiselab.sdnwise.graphStream.Edge;
-import com.github.sdnwiselab.sdnwise.graphStream.Graph;
 import com.github.sdnwiselab.sdnwise.graphStream.Node;
+import com.github.sdnwiselab.sdnwise.topology.TopologyDelta;
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
 
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.Executor;
 
 /**
  * @author Damiano Di Stefano
@@ -27,14 +29,25 @@ import java.util.Observer;
  */
 
 
-public class MainActivity extends Activity implements Observer
+public class MainActivity extends Activity implements Subscriber<TopologyDelta>
 {
     private ListView networkListView;
-    private ArrayAdapter<Node> listAdapter;
-    private Comparator<Node> nodeComparator;
+    private ArrayAdapter<String> listAdapter;
+    private Comparator<String> nodeComparator;
     private AsyncTask<Activity, Integer, Void> processoAsync;
     private SdnWise sw;
-    private Graph graph;
+    private long droppedDeltas;
+    private long reloadEpoch = Long.MIN_VALUE;
+
+    // runs the deliveries of the topology changes on the UI thread
+    private final Executor uiExecutor = new Executor()
+    {
+        @Override
+        public void execute(Runnable r)
+        {
+            runOnUiThread(r);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,34 +62,33 @@ public class MainActivity extends Activity implements Observer
                         getResources().getIdentifier("raw/config",
                                 "raw", getPackageName()));
 
-                sw = new SdnWise(controllerInput,(Observer) activity[0]);
-                sw.addObserver((Observer) activity[0]);
+                sw = new SdnWise(controllerInput, (MainActivity) activity[0],
+                        uiExecutor);
                 sw.startExemplaryControlPlane();
-                graph = sw.getNetworkGraph(sw.getController());
                 return null;
             }
         };
 
 
         //crisp comparator
-        nodeComparator = new Comparator<Node>()
+        nodeComparator = new Comparator<String>()
         {
             @Override
-            public int compare(Node n1, Node n2)
+            public int compare(String n1, String n2)
             {
-                if(n1.getId().length() > n2.getId().length())
+                if(n1.length() > n2.length())
                     return 1;
 
-                if(n1.getId().length() < n2.getId().length())
+                if(n1.length() < n2.length())
                     return -1;
 
                 else
-                    return n1.getId().compareTo(n2.getId());
+                    return n1.compareTo(n2);
             }
         };
 
         networkListView = (ListView) findViewById(R.id.networkListView);
-        listAdapter = new ArrayAdapter<Node>(this, R.layout.simplerow);
+        listAdapter = new ArrayAdapter<String>(this, R.layout.simplerow);
 
         networkListView.setAdapter(listAdapter);
 
@@ -88,15 +100,19 @@ public class MainActivity extends Activity implements Observer
 
                 ArrayList<String> neighborNodes = new ArrayList<String>();
 
-                Node n = listAdapter.getItem(i);
+                Node n = sw.getNetworkGraph(sw.getController())
+                        .getNode(listAdapter.getItem(i));
 
-                for (Edge e : n.getEachEdge())
+                if (n != null)
                 {
-                    neighborNodes.add(e.getOpposite(n).toString());
+                    for (Edge e : n.getEachEdge())
+                    {
+                        neighborNodes.add(e.getOpposite(n).toString());
+                    }
                 }
 
                 intent.putStringArrayListExtra("lista_nodi_vicini", neighborNodes);
-                intent.putExtra("idNodo", listAdapter.getItem(i).getId());
+                intent.putExtra("idNodo", listAdapter.getItem(i));
                 startActivity(intent);
             }
         });
@@ -105,6 +121,14 @@ public class MainActivity extends Activity implements Observer
 
     }
 
+    @Override
+    protected void onDestroy() {
+        if (sw != null) {
+            sw.stopController();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -133,13 +157,13 @@ public class MainActivity extends Activity implements Observer
         // nothing.
     }
 
-    public boolean nodeExists(Node n)
+    public boolean nodeExists(String n)
     {
         if(!listAdapter.isEmpty())
         {
             for(int i = 0; i < listAdapter.getCount(); i++)
             {
-                if (listAdapter.getItem(i).getId().equals(n.getId()))
+                if (listAdapter.getItem(i).equals(n))
                     return true;
             }
         }
@@ -147,60 +171,76 @@ public class MainActivity extends Activity implements Observer
         return false;
     }
 
-    public void removeNodeIfExists(Node n)
+    public void removeNodeIfExists(String n)
     {
         if (!listAdapter.isEmpty()) {
             for (int i = 0; i < listAdapter.getCount(); i++)
             {
-                if (listAdapter.getItem(i).getId().equals(n.getId()))
+                if (listAdapter.getItem(i).equals(n))
                 {
+                    // removing an item keeps the list sorted
                     listAdapter.remove(listAdapter.getItem(i));
-                    listAdapter.sort(nodeComparator);
+                    return;
                 }
             }
         }
     }
 
 
-    public void refreshList(final Node n)
+    public void refreshList(TopologyDelta delta)
     {
-        runOnUiThread(new Runnable()
+        listAdapter.setNotifyOnChange(false);
+        for (int key : delta.getRemovedNodes())
         {
-            @Override
-            public void run()
-            {
-                removeNodeIfExists(n);
-                listAdapter.add(n);
-                listAdapter.sort(nodeComparator);
-                listAdapter.notifyDataSetChanged();
-            }
-        });
+            removeNodeIfExists(TopologyDelta.getNodeId(key));
+        }
+        for (int key : delta.getAddedNodes())
+        {
+            String n = TopologyDelta.getNodeId(key);
+            removeNodeIfExists(n);
+            listAdapter.add(n);
+        }
+        if (delta.getAddedNodes().length > 0)
+        {
+            listAdapter.sort(nodeComparator);
+        }
+        listAdapter.notifyDataSetChanged();
     }
 
-    @Override
-    public void update(Observable observable, Object o)
+    // rebuilds the whole list, after some deltas have been dropped
+    public void reloadList()
     {
-        if(o != null)
+        listAdapter.setNotifyOnChange(false);
+        listAdapter.clear();
+        // the snapshot does not change while it is read
+        TopologySnapshot snapshot = sw.getController().getNetworkGraph().getSnapshot();
+        reloadEpoch = snapshot.getEpoch();
+        for (int i = 0; i < snapshot.size(); i++)
         {
-            if(o.equals("Finito"))
-            {
-                for(int i = 0; i < listAdapter.getCount(); i++)
-                {
-                    Node n = listAdapter.getItem(i);
-                    System.out.println("\t\tNeighbor Nodo: "+ n.getId());
-                    for (Edge e : n.getEachEdge())
-                    {
-                        System.out.println("\t\t\t\t" + e.getOpposite(n));
-                    }
-                }
-            }
-            else
-            {
-                Node n = (Node) o;
-                Node node = graph.getNode(n.getId());
-                refreshList(n);
-            }
+            listAdapter.add(snapshot.getNetId(i) + "." + snapshot.getAddress(i));
         }
+        listAdapter.sort(nodeComparator);
+        listAdapter.notifyDataSetChanged();
+    }
 
+    @Override
+    public void onEvent(TopologyDelta delta)
+    {
+        // called on the UI thread by uiExecutor
+        EventBus.Subscription<TopologyDelta> s = sw.getDelegateSubscription();
+        if (s != null && s.getDropped() != droppedDeltas)
+        {
+            droppedDeltas = s.getDropped();
+            reloadList();
+            return;
+        }
+        // the list shows the nodes only: a batch of link changes is skipped,
+        // as well as the deltas already included in a reload
+        if (delta.getEpoch() > reloadEpoch
+                && (delta.getAddedNodes().length > 0
+                || delta.getRemovedNodes().length > 0))
+        {
+            refreshList(delta);
+        }
     }
 }
@@ -7,17 +7,19 @@ package distesal.sdnwisetry;
 import com.github.sdnwiselab.sdnwise.configuration.Configurator;
 import com.github.sdnwiselab.sdnwise.controller.Controller;
 import com.github.sdnwiselab.sdnwise.controller.ControllerFactory;
+import com.github.sdnwiselab.sdnwise.event.EventBus;
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableActionCallback;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow;
 import com.github.sdnwiselab.sdnwise.graphStream.Graph;
 import com.github.sdnwiselab.sdnwise.packet.NetworkPacket;
+import com.github.sdnwiselab.sdnwise.topology.TopologyDelta;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
 
 import java.io.InputStream;
 import java.util.HashSet;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,16 +30,33 @@ import java.util.logging.Logger;
  * @author Sebastiano Milardo
  * @version 0.1
  */
-public final class SdnWise extends Observable {
+public final class SdnWise {
+
+    // the deltas waiting for a slow user interface before being dropped
+    private final static int DELEGATE_CAPACITY = 256;
 
     private Controller controller;
     private InputStream controllerInputStream;
 
-    private Observer delegate;
+    private Subscriber<TopologyDelta> delegate;
+    private Executor delegateExecutor;
+    private EventBus.Subscription<TopologyDelta> delegateSubscription;
 
-    public SdnWise(InputStream controllerInputStream, Observer delegate) {
+    /**
+     * Creates the SDN-WISE network. The delegate receives the changes of the
+     * topology on its executor, typically the thread of the user interface,
+     * so that a slow delegate never stalls the controller: when it falls
+     * behind, the changes are dropped and counted by its subscription.
+     *
+     * @param controllerInputStream the configuration of the controller.
+     * @param delegate the subscriber of the changes of the topology.
+     * @param delegateExecutor the executor calling the delegate.
+     */
+    public SdnWise(InputStream controllerInputStream,
+            Subscriber<TopologyDelta> delegate, Executor delegateExecutor) {
         this.controllerInputStream = controllerInputStream;
         this.delegate = delegate;
+        this.delegateExecutor = delegateExecutor;
     }
 
     /**
@@ -61,11 +80,14 @@ public final class SdnWise extends Observable {
      * A "map" which contains informations regarding the "TIMEOUT" in order to
      * remove a non responding node from the topology, a "RSSI_RESOLUTION" value
      * that triggers an event when a link rssi value changes more than the
-     * set threshold. "GRAPH" option that set the kind of gui used for the
-     * representation of the network, possible values are "GFX" for a GraphStream
+     * set threshold, an optional "BATCH_WINDOW" in milliseconds over which
+     * the changes of the topology are coalesced before being notified.
+     * "GRAPH" option that set the kind of gui used for the representation of
+     * the network, possible values are "GFX" for a GraphStream
      * based one and "SOCKET_IO" for an experimental web based one. In the last
      * case it also possible to specify the web address ("GRAPH_ADDR") of the
-     * representation.
+     * representation and the maximum number of binary topology frames sent
+     * per second ("PUBLISH_RATE").
      *
      * @return the Controller layer of the current SDN-WISE network.
      */
@@ -77,11 +99,37 @@ public final class SdnWise extends Observable {
     public Controller startController() {
         Configurator conf = Configurator.load(controllerInputStream);
         controller = ControllerFactory.getController(conf.getController());
-        new Thread(controller).start();
-        controller.getNetworkGraph().addObserver(delegate);
+        controller.start();
+        delegateSubscription = controller.getNetworkGraph().getTopologyBus()
+                .subscribe(delegate, delegateExecutor, DELEGATE_CAPACITY,
+                        EventBus.DROP);
         return controller;
     }
 
+    /**
+     * Returns the subscription of the delegate to the changes of the
+     * topology, or null if the controller has not been started.
+     *
+     * @return the subscription of the delegate
+     */
+    public EventBus.Subscription<TopologyDelta> getDelegateSubscription() {
+        return delegateSubscription;
+    }
+
+    /**
+     * Stops the controller, if it has been started, and the delivery of the
+     * changes of the topology to the delegate. It returns without waiting for
+     * the controller to be shut down.
+     */
+    public void stopController() {
+        if (delegateSubscription != null) {
+            delegateSubscription.cancel();
+        }
+        if (controller != null) {
+            controller.stop();
+        }
+    }
+
     /**
      * Starts an example of a SDN-WISE network. This method creates a Controller,
      * a FlowVisor and an Adaptation plus a simulated network.
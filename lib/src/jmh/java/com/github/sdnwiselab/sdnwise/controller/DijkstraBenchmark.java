@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
+import com.github.sdnwiselab.sdnwise.graphStream.Graph;
+import com.github.sdnwiselab.sdnwise.graphStream.Node;
+import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import com.github.sdnwiselab.sdnwise.topology.NetworkGraph;
+import com.github.sdnwiselab.sdnwise.topology.Topologies;
+import com.github.sdnwiselab.sdnwise.topology.TopologyDelta;
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the shortest path trees computed by the controllers on the
+ * snapshot of a NetworkGraph:
+ * <ul>
+ * <li>dijkstra, a whole tree computed by the graphStream Dijkstra on the
+ * Graph of the snapshot;</li>
+ * <li>snapshotDijkstra, a whole tree computed by SnapshotDijkstra;</li>
+ * <li>snapshotRepair, the repair of the tree of the sink by SnapshotDijkstra
+ * when the RSSI of the last link of the path to the farthest node changes,
+ * alternately making the link longer and shorter, as the ShortestPathCache
+ * of ControllerDijkstra does with the TopologyDelta of each report.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class DijkstraBenchmark {
+
+    // the change of the RSSI of the link made longer
+    private final static int RSSI_DROP = 100;
+
+    @Param({Topologies.GRID, Topologies.RANDOM})
+    String shape;
+
+    @Param({"100", "1000"})
+    int nodes;
+
+    private NetworkGraph networkGraph;
+    private Dijkstra dijkstra;
+    private Node farNode;
+    private final SnapshotDijkstra snapshotDijkstra = new SnapshotDijkstra();
+    private TopologySnapshot snapshot;
+    private int sink;
+    private int far;
+    // the trees before and after the link gets longer, and the deltas
+    // leading from each one to the other
+    private ShortestPathTree[] trees;
+    private TopologySnapshot[] snapshots;
+    private List<List<TopologyDelta>> deltas;
+    private boolean longer;
+
+    @Setup
+    public void setUp() {
+        ReportPacket[] reports = Topologies.reports(shape, nodes, 1);
+        networkGraph = Topologies.graph(reports);
+        snapshot = networkGraph.getSnapshot();
+        sink = snapshot.indexOf(Topologies.NET_ID, Topologies.SINK);
+        ShortestPathTree tree = snapshotDijkstra.compute(snapshot, sink);
+        // the farthest node reachable from the sink, a random graph may
+        // not be connected
+        far = sink;
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (tree.getDistance(i) != ShortestPathTree.UNREACHABLE
+                    && tree.getDistance(i) > tree.getDistance(far)) {
+                far = i;
+            }
+        }
+
+        Graph graph = snapshot.toGraph();
+        farNode = graph.getNode(snapshot.getNetId(far) + "."
+                + snapshot.getAddress(far));
+        dijkstra = new Dijkstra(Dijkstra.Element.EDGE, "result", "length");
+        dijkstra.init(graph);
+        dijkstra.setSource(graph.getNode(snapshot.getNetId(sink) + "."
+                + snapshot.getAddress(sink)));
+
+        // the farthest node reports a weaker RSSI from its parent, then its
+        // usual one again
+        final List<TopologyDelta> published = new ArrayList<>();
+        networkGraph.getTopologyBus().subscribe(
+                new Subscriber<TopologyDelta>() {
+            @Override
+            public void onEvent(TopologyDelta delta) {
+                published.add(delta);
+            }
+        });
+        ReportPacket report = reports[snapshot.getAddress(far).intValue() - 1];
+        ReportPacket weaker = new ReportPacket(report.toByteArray());
+        for (int k = 0; k < weaker.getNeigh(); k++) {
+            if (weaker.getNeighbourAddress(k).equals(
+                    snapshot.getAddress(tree.getParent(far)))) {
+                weaker.setNeighbourWeightAt(
+                        (byte) (weaker.getNeighbourWeight(k) - RSSI_DROP), k);
+            }
+        }
+        networkGraph.updateMap(weaker);
+        TopologySnapshot longerSnapshot = networkGraph.getSnapshot();
+        networkGraph.updateMap(report);
+        TopologySnapshot shorterSnapshot = networkGraph.getSnapshot();
+        if (published.size() != 2) {
+            throw new IllegalStateException("Deltas: " + published);
+        }
+        snapshots = new TopologySnapshot[]{longerSnapshot, shorterSnapshot};
+        trees = new ShortestPathTree[]{
+            tree, snapshotDijkstra.compute(longerSnapshot, sink)};
+        deltas = new ArrayList<>();
+        deltas.add(Collections.singletonList(published.get(0)));
+        deltas.add(Collections.singletonList(published.get(1)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        networkGraph.close();
+    }
+
+    @Benchmark
+    public double dijkstra() {
+        dijkstra.compute();
+        return dijkstra.getPathLength(farNode);
+    }
+
+    @Benchmark
+    public int snapshotDijkstra() {
+        return snapshotDijkstra.compute(snapshot, sink).getDistance(far);
+    }
+
+    @Benchmark
+    public int snapshotRepair() {
+        longer = !longer;
+        int i = longer ? 0 : 1;
+        ShortestPathTree repaired = snapshotDijkstra.repair(trees[i],
+                snapshots[i], deltas.get(i));
+        return repaired.getDistance(far);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.flowvisor;
+
+import com.github.sdnwiselab.sdnwise.adapter.Adapter;
+import com.github.sdnwiselab.sdnwise.adapter.AdapterUdp;
+import com.github.sdnwiselab.sdnwise.controller.ControllerId;
+import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import com.github.sdnwiselab.sdnwise.topology.Topologies;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the fan-out of the reports of a network by a FlowVisor to a
+ * number of controllers, each of them owning every node. The reports are
+ * published on the packet bus of the lower adapter, as if received from the
+ * sink, and sent by a real AdapterUdp to local sockets which are never read.
+ * The upper adapter blocks when its queue is full, so the time measured
+ * includes the sending of the datagrams.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class FlowVisorBenchmark {
+
+    @Param({"1", "4", "16"})
+    int controllers;
+
+    private DatagramChannel[] sockets;
+    private Adapter lower;
+    private FlowVisor visor;
+    private byte[][] reports;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        ReportPacket[] network = Topologies.reports(Topologies.GRID, 100, 1);
+        reports = new byte[network.length][];
+        Set<NodeAddress> nodes = new HashSet<>();
+        for (int i = 0; i < network.length; i++) {
+            reports[i] = network[i].toByteArray();
+            nodes.add(network[i].getSrc());
+        }
+
+        sockets = new DatagramChannel[controllers];
+        for (int i = 0; i < controllers; i++) {
+            sockets[i] = DatagramChannel.open();
+            sockets[i].socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        lower = new Adapter() {
+            @Override
+            public boolean open() {
+                return true;
+            }
+
+            @Override
+            public boolean close() {
+                return true;
+            }
+
+            @Override
+            public void send(byte[] data) {
+            }
+        };
+        Map<String, String> conf = new HashMap<>();
+        conf.put("OUT_IP", "127.0.0.1");
+        conf.put("OUT_PORT", String.valueOf(sockets[0].socket().getLocalPort()));
+        conf.put("IN_PORT", "0");
+        conf.put("MAX_PAYLOAD", "4096");
+        visor = new FlowVisor(lower, new AdapterUdp(conf));
+        for (DatagramChannel s : sockets) {
+            visor.addController(new ControllerId("127.0.0.1",
+                    s.socket().getLocalPort()), nodes);
+        }
+        visor.start();
+        if (!visor.awaitRunning(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("FlowVisor not started");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        visor.stop();
+        visor.awaitTermination(5, TimeUnit.SECONDS);
+        for (DatagramChannel s : sockets) {
+            s.close();
+        }
+    }
+
+    @Benchmark
+    public void manageReports() {
+        lower.getPacketBus().publish(reports[next]);
+        next = (next + 1) % reports.length;
+    }
+}
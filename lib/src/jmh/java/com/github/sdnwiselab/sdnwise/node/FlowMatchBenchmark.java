@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_PACKET;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_2;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_FLOW_MATCH_COMPILED;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_FLOW_MATCH_INTERPRETED;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableActionForward;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry;
+import com.github.sdnwiselab.sdnwise.packet.DataPacket;
+import com.github.sdnwiselab.sdnwise.packet.NetworkPacket;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the lookup of the FlowTable of a SensorNode with a number of
+ * rules installed, each forwarding the packets for a destination:
+ * <ul>
+ * <li>hit, a packet matching the last rule installed, the one checked
+ * last;</li>
+ * <li>miss, a packet matching no rule, which is sent to the controller;</li>
+ * <li>matchRule, the check of a single rule by the interpreter.</li>
+ * </ul>
+ * The node belongs to an Emulator which is not started and has no links, so
+ * the packets sent are counted by the RadioMedium and go nowhere.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class FlowMatchBenchmark {
+
+    // the address of the destination of the first rule installed
+    private final static int FIRST_DST = 100;
+
+    @Param({"1", "8", "15"})
+    int rules;
+
+    @Param({"INTERPRETED", "COMPILED"})
+    String mode;
+
+    private Emulator emulator;
+    private SensorNode node;
+    private FlowTableEntry last;
+    private int[] hit;
+    private int[] miss;
+
+    @Setup
+    public void setUp() {
+        emulator = new Emulator(1, 1);
+        node = emulator.add(new SensorNode((byte) 1, new NodeAddress(2), 0,
+                null, false));
+        node.verbose = false;
+        node.setFlowMatchMode("COMPILED".equals(mode)
+                ? SDN_WISE_FLOW_MATCH_COMPILED
+                : SDN_WISE_FLOW_MATCH_INTERPRETED);
+        for (int k = 1; k <= rules; k++) {
+            FlowTableEntry e = new FlowTableEntry();
+            e.getWindows()[0]
+                    .setOperator(SDN_WISE_EQUAL)
+                    .setSize(SDN_WISE_SIZE_2)
+                    .setLocation(SDN_WISE_PACKET)
+                    .setPos(NetworkPacket.SDN_WISE_DST_H)
+                    .setValueHigh(0)
+                    .setValueLow(FIRST_DST + k - 1);
+            e.setAction(new FlowTableActionForward()
+                    .setNextHop(new NodeAddress(k + 2)));
+            node.flowTable.set(k, e);
+            last = e;
+        }
+        node.compileFlowTable();
+        hit = packet(FIRST_DST + rules - 1);
+        miss = packet(FIRST_DST + rules);
+    }
+
+    private static int[] packet(int dst) {
+        DataPacket dp = new DataPacket();
+        dp.setNetId((byte) 1)
+                .setSrc(new NodeAddress(3))
+                .setDst(new NodeAddress(dst))
+                .setNxhop(new NodeAddress(2));
+        dp.setPayload(new byte[20]);
+        return dp.toIntArray();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        emulator.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void hit() {
+        node.runFlowMatch(hit);
+    }
+
+    @Benchmark
+    public void miss() {
+        node.runFlowMatch(miss);
+    }
+
+    @Benchmark
+    public int matchRule() {
+        return node.matchRule(last, hit);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the UDP nodes scale when each one runs on its own threads and
+ * when they share a NodePool. It is not a JMH benchmark: the quantities of
+ * interest are the threads, the memory and the CPU used by a whole network
+ * in its steady state, so a single configuration is run per JVM:
+ * <pre>
+ * NodePoolScaling dir thread|pool nodes seconds [basePort [poolThreads]]
+ * </pre>
+ * The nodes form a square grid, the first one being the sink, and talk
+ * UDP on the ports following basePort. The neighbour files of the nodes are
+ * written in dir, which must be in the classpath. After the given seconds a
+ * line reports the time to start the nodes, the live threads, the resident
+ * memory (on Linux), the heap used after a GC, the CPU used by the process
+ * over the period and the nodes that have joined the network.
+ * <p>
+ * The sink connects to no controller, so the nodes only exchange beacons
+ * and reports: the load is the one of an idle network.
+ */
+public final class NodePoolScaling {
+
+    private final static int DFLT_BASE_PORT = 20000;
+    private final static int DFLT_POOL_THREADS = 4;
+    private final static byte NET_ID = 1;
+
+    private NodePoolScaling() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: NodePoolScaling dir thread|pool nodes"
+                    + " seconds [basePort [poolThreads]]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        boolean pooled = "pool".equals(args[1]);
+        int n = Integer.parseInt(args[2]);
+        int seconds = Integer.parseInt(args[3]);
+        int base = args.length > 4 ? Integer.parseInt(args[4]) : DFLT_BASE_PORT;
+        int poolThreads = args.length > 5 ? Integer.parseInt(args[5])
+                : DFLT_POOL_THREADS;
+
+        writeGrid(dir, n, base);
+
+        long t0 = System.nanoTime();
+        List<Node> nodes = new ArrayList<>(n);
+        NodePool pool = pooled ? new NodePool(poolThreads) : null;
+        for (int i = 1; i <= n; i++) {
+            Node node = i == 1
+                    ? new SinkNode(NET_ID, new NodeAddress(i), base + i, null, 0,
+                            file(i), false)
+                    : new SensorNode(NET_ID, new NodeAddress(i), base + i,
+                            file(i), false);
+            node.verbose = false;
+            nodes.add(node);
+            if (pool != null) {
+                if (!pool.start(node)) {
+                    throw new IOException("Port not available: " + (base + i));
+                }
+            } else {
+                Thread th = new Thread(node);
+                th.setDaemon(true);
+                th.start();
+            }
+        }
+        long startMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+
+        long cpu0 = processCpuTime();
+        long wall0 = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long cpu = processCpuTime() - cpu0;
+        long wall = System.nanoTime() - wall0;
+
+        int joined = 0;
+        for (Node node : nodes) {
+            if (node.getSemaphore() == 1) {
+                joined++;
+            }
+        }
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+                .getUsed();
+
+        System.out.println((pooled ? "pool" : "thread") + " nodes=" + n
+                + " start=" + startMs + "ms"
+                + " threads=" + threads
+                + " rss=" + residentMemory() + "MB"
+                + " heap=" + (heap >> 20) + "MB"
+                + " cpu=" + (cpu < 0 ? "?" : String.format("%.1f%%",
+                        100.0 * cpu / wall))
+                + " joined=" + joined + "/" + n
+                + " after " + seconds + "s");
+        if (pool != null) {
+            pool.stop(1, TimeUnit.SECONDS);
+        }
+        System.exit(0);
+    }
+
+    private static String file(int i) {
+        return "nb" + i + ".txt";
+    }
+
+    /**
+     * Writes the neighbour files of a square grid of n nodes: each node
+     * hears the 8 around it, the diagonal ones with a lower RSSI.
+     */
+    private static void writeGrid(File dir, int n, int base)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        int side = (int) Math.ceil(Math.sqrt(n));
+        for (int i = 1; i <= n; i++) {
+            int x = (i - 1) % side;
+            int y = (i - 1) / side;
+            StringBuilder sb = new StringBuilder();
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    int nx = x + dx;
+                    int ny = y + dy;
+                    int j = ny * side + nx + 1;
+                    if ((dx == 0 && dy == 0) || nx < 0 || ny < 0
+                            || nx >= side || j > n) {
+                        continue;
+                    }
+                    sb.append(new NodeAddress(j)).append(",localhost,")
+                            .append(base + j).append(',')
+                            .append(dx != 0 && dy != 0 ? 200 : 230)
+                            .append('\n');
+                }
+            }
+            Files.write(new File(dir, file(i)).toPath(),
+                    sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os)
+                    .getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static String residentMemory() throws IOException {
+        File status = new File("/proc/self/status");
+        if (status.exists()) {
+            for (String line : Files.readAllLines(status.toPath(),
+                    StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS")) {
+                    return String.valueOf(
+                            Long.parseLong(line.replaceAll("\\D+", "")) >> 10);
+                }
+            }
+        }
+        return "?";
+    }
+}
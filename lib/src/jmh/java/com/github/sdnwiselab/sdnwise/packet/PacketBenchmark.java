@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.packet;
+
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_PACKET;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_2;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableActionForward;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry;
+import com.github.sdnwiselab.sdnwise.topology.Topologies;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversions of each kind of packet between its bytes and its
+ * NetworkPacket subclass:
+ * <ul>
+ * <li>parse, the creation of the subclass from the bytes received;</li>
+ * <li>decode, parse followed by the reading of the content of the packet,
+ * such as the neighbours of a report or the rule of a response;</li>
+ * <li>serialize, the bytes of the packet to be sent.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class PacketBenchmark {
+
+    @Param({"DATA", "BEACON", "REPORT", "RESPONSE", "OPEN_PATH", "CONFIG",
+        "GEO_COORDINATES", "GEO_DATA", "GEO_REPORT"})
+    String type;
+
+    private int kind;
+    private NetworkPacket packet;
+    private byte[] data;
+
+    @Setup
+    public void setUp() {
+        NodeAddress src = new NodeAddress(12);
+        NodeAddress dst = new NodeAddress(1);
+        FlowTableEntry rule = new FlowTableEntry();
+        rule.getWindows()[0]
+                .setOperator(SDN_WISE_EQUAL)
+                .setSize(SDN_WISE_SIZE_2)
+                .setLocation(SDN_WISE_PACKET)
+                .setPos(NetworkPacket.SDN_WISE_DST_H)
+                .setValueHigh(0)
+                .setValueLow(12);
+        rule.setAction(new FlowTableActionForward()
+                .setNextHop(new NodeAddress(7)));
+
+        switch (type) {
+            case "DATA":
+                DataPacket dp = new DataPacket();
+                dp.setPayload(new byte[20]);
+                packet = dp;
+                break;
+            case "BEACON":
+                BeaconPacket bp = new BeaconPacket();
+                bp.setDist((byte) 3);
+                bp.setBatt((byte) 220);
+                bp.setSinkAddress(dst);
+                packet = bp;
+                break;
+            case "REPORT":
+                // a node of a grid, with four neighbours
+                packet = Topologies.reports(Topologies.GRID, 25, 1)[12];
+                break;
+            case "RESPONSE":
+                packet = new ResponsePacket().setRule(rule);
+                break;
+            case "OPEN_PATH":
+                List<NodeAddress> path = new ArrayList<>();
+                for (int i = 1; i <= 6; i++) {
+                    path.add(new NodeAddress(i));
+                }
+                packet = new OpenPathPacket().setPath(path);
+                break;
+            case "CONFIG":
+                packet = new ConfigPacket().setAddRuleValue(rule);
+                break;
+            case "GEO_COORDINATES":
+                packet = new GeoCoordinatesPacket().setCoordinates(120, 340, 5);
+                break;
+            case "GEO_DATA":
+                // some setters of GeoDataPacket return null
+                GeoDataPacket gd = new GeoDataPacket();
+                gd.setGroupAddress(new NodeAddress(40));
+                gd.setInitiatorAddress(src);
+                gd.setPreviousMulticastNodeAddress(new NodeAddress(11));
+                gd.setCurrentMulticastNodeAddress(src);
+                packet = gd;
+                break;
+            case "GEO_REPORT":
+                GeoReportPacket gp = new GeoReportPacket();
+                for (int i = 0; i < 4; i++) {
+                    gp.setNodeAddressAt(new NodeAddress(20 + i), i)
+                            .setCoordinatesAt(10 * i, 20 * i, 0, i);
+                }
+                packet = gp;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type: " + type);
+        }
+        packet.setNetId(Topologies.NET_ID).setSrc(src).setDst(dst).setNxhop(dst);
+        kind = packet.getType();
+        data = packet.toByteArray();
+    }
+
+    @Benchmark
+    public NetworkPacket parse() {
+        switch (kind) {
+            case NetworkPacket.SDN_WISE_DATA:
+                return new DataPacket(data);
+            case NetworkPacket.SDN_WISE_BEACON:
+                return new BeaconPacket(data);
+            case NetworkPacket.SDN_WISE_REPORT:
+                return new ReportPacket(data);
+            case NetworkPacket.SDN_WISE_RESPONSE:
+                return new ResponsePacket(data);
+            case NetworkPacket.SDN_WISE_OPEN_PATH:
+                return new OpenPathPacket(data);
+            case NetworkPacket.SDN_WISE_CONFIG:
+                return new ConfigPacket(data);
+            case NetworkPacket.SDN_WISE_GEO_COORDINATES:
+                return new GeoCoordinatesPacket(data);
+            case NetworkPacket.SDN_WISE_GEO_DATA:
+                return new GeoDataPacket(data);
+            case NetworkPacket.SDN_WISE_GEO_REPORT:
+                return new GeoReportPacket(data);
+            default:
+                return new NetworkPacket(data);
+        }
+    }
+
+    @Benchmark
+    public Object decode() {
+        NetworkPacket p = parse();
+        switch (kind) {
+            case NetworkPacket.SDN_WISE_DATA:
+                return p.getPayload();
+            case NetworkPacket.SDN_WISE_BEACON:
+                return ((BeaconPacket) p).getSinkAddress();
+            case NetworkPacket.SDN_WISE_REPORT:
+                return ((ReportPacket) p).getNeighborsHashMap();
+            case NetworkPacket.SDN_WISE_RESPONSE:
+                return ((ResponsePacket) p).getRule();
+            case NetworkPacket.SDN_WISE_OPEN_PATH:
+                return ((OpenPathPacket) p).getPath();
+            case NetworkPacket.SDN_WISE_CONFIG:
+                return ((ConfigPacket) p).getRule();
+            case NetworkPacket.SDN_WISE_GEO_COORDINATES:
+                return ((GeoCoordinatesPacket) p).getCoordinates();
+            case NetworkPacket.SDN_WISE_GEO_DATA:
+                return ((GeoDataPacket) p).getGroupAddress();
+            case NetworkPacket.SDN_WISE_GEO_REPORT:
+                return ((GeoReportPacket) p).getCoordinatesAt(0);
+            default:
+                return p;
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return packet.toByteArray();
+    }
+}
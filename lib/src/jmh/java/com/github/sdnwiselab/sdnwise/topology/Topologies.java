@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Generates the ReportPackets sent by the nodes of a network, used by the
+ * benchmarks to build a NetworkGraph. The node with index i has address
+ * i + 1, so the sink, address 1, is the first one.
+ * <p>
+ * Two shapes are available: a square grid, where every node hears the four
+ * nodes next to it, and a random geometric graph, where the nodes are
+ * spread uniformly on a square and hear the nodes closer than a range
+ * giving about eight neighbours each. The RSSI of a link decreases with its
+ * length, as in the Emulator.
+ */
+public final class Topologies {
+
+    public final static byte NET_ID = 1;
+    public final static NodeAddress SINK = new NodeAddress(1);
+
+    /**
+     * The shapes accepted by reports.
+     */
+    public final static String GRID = "grid",
+            RANDOM = "random";
+
+    // neighbours listed in a report, well below SDN_WISE_MAX_NEIG
+    private final static int MAX_NEIGH = 20;
+    private final static double DEGREE = 8;
+    private final static int RSSI_MAX = 255,
+            RSSI_MIN = 180;
+
+    private Topologies() {
+    }
+
+    /**
+     * Returns the reports of all the nodes of a network.
+     *
+     * @param shape GRID or RANDOM.
+     * @param nodes the number of nodes.
+     * @param seed the seed of the positions and of the RSSI.
+     * @return the report of each node, by index
+     */
+    public static ReportPacket[] reports(String shape, int nodes, long seed) {
+        Random random = new Random(seed);
+        double[][] pos = new double[nodes][];
+        double range;
+        if (GRID.equals(shape)) {
+            int side = (int) Math.ceil(Math.sqrt(nodes));
+            for (int i = 0; i < nodes; i++) {
+                pos[i] = new double[]{i % side, i / side};
+            }
+            range = 1.01;
+        } else if (RANDOM.equals(shape)) {
+            for (int i = 0; i < nodes; i++) {
+                pos[i] = new double[]{random.nextDouble(), random.nextDouble()};
+            }
+            range = Math.sqrt(DEGREE / (Math.PI * nodes));
+        } else {
+            throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+
+        ReportPacket[] reports = new ReportPacket[nodes];
+        for (int i = 0; i < nodes; i++) {
+            final double[] p = pos[i];
+            Integer[] neigh = new Integer[nodes];
+            int n = 0;
+            for (int j = 0; j < nodes; j++) {
+                if (j != i && distance(p, pos[j]) < range) {
+                    neigh[n++] = j;
+                }
+            }
+            final double[][] all = pos;
+            Arrays.sort(neigh, 0, n, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(distance(p, all[a]),
+                            distance(p, all[b]));
+                }
+            });
+            n = Math.min(n, MAX_NEIGH);
+
+            ReportPacket r = new ReportPacket();
+            r.setNetId(NET_ID)
+                    .setSrc(new NodeAddress(i + 1))
+                    .setDst(SINK)
+                    .setNxhop(SINK);
+            r.setBatt((byte) (200 + random.nextInt(56)));
+            r.setNeigh(n);
+            for (int k = 0; k < n; k++) {
+                int j = neigh[k];
+                int rssi = (int) (RSSI_MAX
+                        - (RSSI_MAX - RSSI_MIN) * distance(p, pos[j]) / range);
+                r.setNeighbourAddressAt(new NodeAddress(j + 1), k);
+                r.setNeighbourWeightAt((byte) rssi, k);
+            }
+            reports[i] = r;
+        }
+        return reports;
+    }
+
+    /**
+     * Returns a copy of some reports with the RSSI of every link changed.
+     *
+     * @param reports the reports.
+     * @param delta the change of the RSSI.
+     * @return the new reports
+     */
+    public static ReportPacket[] jitter(ReportPacket[] reports, int delta) {
+        ReportPacket[] copy = new ReportPacket[reports.length];
+        for (int i = 0; i < reports.length; i++) {
+            ReportPacket r = new ReportPacket(reports[i].toByteArray());
+            for (int k = 0; k < r.getNeigh(); k++) {
+                r.setNeighbourWeightAt(
+                        (byte) (r.getNeighbourWeight(k) + delta), k);
+            }
+            copy[i] = r;
+        }
+        return copy;
+    }
+
+    /**
+     * Builds a NetworkGraph from the reports of a network. The nodes do not
+     * expire for an hour.
+     *
+     * @param reports the reports.
+     * @return the graph, which has to be closed
+     */
+    public static NetworkGraph graph(ReportPacket[] reports) {
+        NetworkGraph graph = new NetworkGraph(3600, 1);
+        for (ReportPacket r : reports) {
+            graph.updateMap(r);
+        }
+        return graph;
+    }
+
+    private static double distance(double[] a, double[] b) {
+        return Math.hypot(a[0] - b[0], a[1] - b[1]);
+    }
+}
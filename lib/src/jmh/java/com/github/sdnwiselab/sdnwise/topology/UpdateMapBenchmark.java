@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures NetworkGraph.updateMap handling the reports of a whole network,
+ * one node after the other:
+ * <ul>
+ * <li>refresh, the steady state, where the reports only renew the nodes and
+ * their links;</li>
+ * <li>change, where the RSSI of every link moves by more than the
+ * resolution at each round, so every link of the report is updated.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class UpdateMapBenchmark {
+
+    @Param({Topologies.GRID, Topologies.RANDOM})
+    String shape;
+
+    @Param({"100", "1000"})
+    int nodes;
+
+    private NetworkGraph graph;
+    private ReportPacket[] reports;
+    private ReportPacket[] changed;
+    private int next;
+    private boolean odd;
+
+    @Setup
+    public void setUp() {
+        reports = Topologies.reports(shape, nodes, 1);
+        changed = Topologies.jitter(reports, 10);
+        graph = Topologies.graph(reports);
+    }
+
+    @TearDown
+    public void tearDown() {
+        graph.close();
+    }
+
+    @Benchmark
+    public NetworkGraph refresh() {
+        graph.updateMap(reports[next]);
+        next = (next + 1) % reports.length;
+        return graph;
+    }
+
+    @Benchmark
+    public NetworkGraph change() {
+        graph.updateMap(odd ? reports[next] : changed[next]);
+        if (++next == reports.length) {
+            next = 0;
+            odd = !odd;
+        }
+        return graph;
+    }
+}
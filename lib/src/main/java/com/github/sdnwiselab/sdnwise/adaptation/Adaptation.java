@@ -17,18 +17,20 @@
 package com.github.sdnwiselab.sdnwise.adaptation;
 
 import com.github.sdnwiselab.sdnwise.adapter.Adapter;
+import com.github.sdnwiselab.sdnwise.event.EventBus.Subscription;
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
+import com.github.sdnwiselab.sdnwise.util.Layer;
 import java.util.Arrays;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Adaptation is the class that incorporates the communication adapters for
  * connecting the controller to the sensor networks and vice versa.
  * <p>
- * This class is implemented as an Observer, so it has an update method that is
- * called every time a new message is received by one of the two adapters. This
- * class also implements runnable and it works on a separate thread.
+ * This class subscribes to the packet buses of the two adapters, so it is
+ * called every time a new message is received by one of them. This class
+ * is a Layer and it works on a separate thread until stop is called or the
+ * line "exit -l Adaptation" is read from the standard input.
  * <p>
  * The behavior of this class is equal to a transparent proxy that send messages 
  * coming from the lower adapter to the upper adapter and from the upper 
@@ -37,12 +39,12 @@ import java.util.Scanner;
  * @author Sebastiano Milardo
  * @version 0.1
  */
-public class Adaptation implements Observer, Runnable {
+public class Adaptation extends Layer {
 
     private final Adapter lower;
     private final Adapter upper;
-    private final Scanner scanner;
-    private boolean isStopped;
+    private Subscription<byte[]> lowerSubscription;
+    private Subscription<byte[]> upperSubscription;
 
     /**
      * Creates an adaptation object given two adapters.
@@ -51,47 +53,68 @@ public class Adaptation implements Observer, Runnable {
      * @param upper the adapter that receives messages from the controller
      */
     Adaptation(Adapter lower, Adapter upper) {
+        super("Adaptation");
         this.lower = lower;
         this.upper = upper;
-        scanner = new Scanner(System.in, "UTF-8");
-        isStopped = false;
     }
 
     /**
-     * This method is called for each message coming from the adapters. Messages
-     * coming from the lower adapter are sent to the upper one and vice versa.
+     * Receives the messages coming from the lower adapter and sends them to
+     * the upper one.
+     */
+    private final Subscriber<byte[]> lowerSubscriber = new Subscriber<byte[]>() {
+        @Override
+        public void onEvent(byte[] data) {
+            System.out.println("[ADP]: ↑ " + Arrays.toString(data));
+            upper.send(data);
+        }
+    };
+
+    /**
+     * Receives the messages coming from the upper adapter and sends them to
+     * the lower one.
+     */
+    private final Subscriber<byte[]> upperSubscriber = new Subscriber<byte[]>() {
+        @Override
+        public void onEvent(byte[] data) {
+            System.out.println("[ADP]: ↓ " + Arrays.toString(data));
+            lower.send(data);
+        }
+    };
+
+    /**
+     * Checks if both adapters have been opened correctly and starts listening
+     * for the closing message on the standard input.
      *
-     * @param o the adapter that has received the message
-     * @param arg the message received as a byte array
+     * @return false if an adapter can not be opened
      */
     @Override
-    public final void update(Observable o, Object arg) {
-        if (o.equals(lower)) {
-            System.out.println("[ADP]: ↑ " + Arrays.toString((byte[]) arg));
-            upper.send((byte[]) arg);
-        } else if (o.equals(upper)) {
-            System.out.println("[ADP]: ↓ " + Arrays.toString((byte[]) arg));
-            lower.send((byte[]) arg);
+    protected final boolean startUp() {
+        if (!lower.open()) {
+            return false;
         }
+        if (!upper.open()) {
+            lower.close();
+            return false;
+        }
+        lowerSubscription = lower.getPacketBus().subscribe(lowerSubscriber);
+        upperSubscription = upper.getPacketBus().subscribe(upperSubscriber);
+        stopOn(System.in, "exit -l Adaptation");
+        return true;
     }
 
     /**
-     * Starts the adaptation thread and checks if both adapters have been opened
-     * correctly. This method is listening for incoming closing messages from
-     * the standard input.
+     * Stops forwarding the messages and closes the adapters once the packets
+     * already forwarded have been sent.
      */
     @Override
-    public final void run() {
-        if (lower.open() && upper.open()) {
-            lower.addObserver(this);
-            upper.addObserver(this);
-            while (!isStopped) {
-                if (scanner.nextLine().equals("exit -l Adaptation")) {
-                    isStopped = true;
-                }
-            }
-            lower.close();
-            upper.close();
+    protected final void shutDown() {
+        if (lowerSubscription == null) {
+            return;
         }
+        lowerSubscription.cancel();
+        upperSubscription.cancel();
+        lower.close(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        upper.close(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
     }
 }
@@ -16,21 +16,47 @@
  */
 package com.github.sdnwiselab.sdnwise.adapter;
 
+import com.github.sdnwiselab.sdnwise.event.EventBus;
+import com.github.sdnwiselab.sdnwise.metrics.Counter;
+import com.github.sdnwiselab.sdnwise.metrics.Metrics;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class is the abstract class that every adapter has to extend. It is an
- * observable class for the adaptation, but it is also an observer for changes
- * coming from the specific adapter type.
+ * This class is the abstract class that every adapter has to extend. The
+ * packets received by an adapter are published as byte arrays on its packet
+ * bus, to which the upper layers subscribe. They can also be read without
+ * copies by a PacketListener, which receives a read only view of the buffer
+ * of the adapter.
+ * <p>
+ * An adapter is still an Observable: the observers registered receive the
+ * packets as before, but an adapter without observers never synchronizes on
+ * them.
+ * <p>
+ * The packets and the bytes received and sent are counted by the metrics
+ * adapter.Name.in.frames, in.bytes, out.frames and out.bytes, where Name is
+ * the simple name of the class, shared by the adapters of the same class.
  *
  * @author Sebastiano Milardo
  * @version 0.1
  */
 public abstract class Adapter extends Observable implements Observer {
 
+    private final CopyOnWriteArrayList<PacketListener> listeners = new CopyOnWriteArrayList<>();
+    private final EventBus<byte[]> packetBus = new EventBus<>();
+    private final String metrics = "adapter." + (getClass().getSimpleName()
+            .isEmpty() ? "Adapter" : getClass().getSimpleName());
+    private final Counter inFrames = Metrics.counter(metrics + ".in.frames");
+    private final Counter inBytes = Metrics.counter(metrics + ".in.bytes");
+    private final Counter outFrames = Metrics.counter(metrics + ".out.frames");
+    private final Counter outBytes = Metrics.counter(metrics + ".out.bytes");
+
     /**
      * Opens this adapter.
      *
@@ -45,6 +71,29 @@ public abstract class Adapter extends Observable implements Observer {
      */
     public abstract boolean close();
 
+    /**
+     * Closes this adapter after the packets queued for sending have been
+     * written, waiting at most the given time for them.
+     *
+     * @param timeout the maximum time to wait for the queued packets.
+     * @param unit the unit of the timeout.
+     * @return a boolean indicating the correct ending of the operation
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        OutboundQueue queue = getOutboundQueue();
+        if (queue != null) {
+            try {
+                if (!queue.awaitEmpty(timeout, unit)) {
+                    Logger.getLogger(Adapter.class.getName()).log(Level.WARNING,
+                            "{0} packets not sent", queue.size());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return close();
+    }
+
     /**
      * Sends a byte array using this adapter.
      *
@@ -52,6 +101,119 @@ public abstract class Adapter extends Observable implements Observer {
      */
     public abstract void send(byte[] data);
 
+    /**
+     * Sends a byte array using this adapter, telling if it has been accepted.
+     * Adapters sending through an OutboundQueue return false when the array
+     * is dropped because the queue is full. The array must not be modified
+     * after this call.
+     *
+     * @param data the array to be sent
+     * @return false if the array has been dropped
+     */
+    public boolean offer(byte[] data) {
+        send(data);
+        return true;
+    }
+
+    /**
+     * Returns the queue of the packets sent by this adapter, if any.
+     *
+     * @return the OutboundQueue of this adapter, or null
+     */
+    public OutboundQueue getOutboundQueue() {
+        return null;
+    }
+
+    /**
+     * Returns the bus on which the packets received by this adapter are
+     * published. The arrays published must not be modified by the
+     * subscribers.
+     *
+     * @return the packet bus of this adapter
+     */
+    public final EventBus<byte[]> getPacketBus() {
+        return packetBus;
+    }
+
+    /**
+     * Publishes a packet received by this adapter to the subscribers of the
+     * packet bus, the listeners and the observers.
+     *
+     * @param data the packet received.
+     */
+    protected final void deliver(byte[] data) {
+        received(data.length);
+        packetBus.publish(data);
+        if (hasPacketListeners()) {
+            firePacket(ByteBuffer.wrap(data).asReadOnlyBuffer(), null);
+        }
+        if (countObservers() > 0) {
+            setChanged();
+            notifyObservers(data);
+        }
+    }
+
+    /**
+     * Counts a packet received by this adapter. It is called by deliver, and
+     * must be called by the adapters handing their packets to the listeners
+     * and the subscribers by themselves.
+     *
+     * @param bytes the length of the packet.
+     */
+    protected final void received(int bytes) {
+        inFrames.inc();
+        inBytes.add(bytes);
+    }
+
+    /**
+     * Counts the packets written by this adapter.
+     *
+     * @param frames the number of packets written.
+     * @param bytes the number of bytes written.
+     */
+    protected final void sent(int frames, long bytes) {
+        outFrames.add(frames);
+        outBytes.add(bytes);
+    }
+
+    /**
+     * Registers a listener for the packets received by this adapter.
+     *
+     * @param listener the listener.
+     */
+    public final void addPacketListener(PacketListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public final void removePacketListener(PacketListener listener) {
+        listeners.remove(listener);
+    }
+
+    final boolean hasPacketListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Hands a packet to the listeners. Each listener finds the position and
+     * the limit of the view as they were when this method was called.
+     *
+     * @param packet a read only view of the packet.
+     * @param from the address of the sender, or null.
+     */
+    final void firePacket(ByteBuffer packet, SocketAddress from) {
+        int position = packet.position();
+        int limit = packet.limit();
+        for (PacketListener l : listeners) {
+            try {
+                l.packetReceived(this, packet, from);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Adapter.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            packet.limit(limit);
+            packet.position(position);
+        }
+    }
+
     /**
      * Logs messages depending on the verbosity level.
      *
@@ -63,14 +225,20 @@ public abstract class Adapter extends Observable implements Observer {
     }
 
     /**
-     * This method is called whenever the observed object is changed.
+     * This method is called whenever the observed object is changed. Byte
+     * arrays are delivered as packets received by this adapter, other
+     * objects are only passed to the observers.
      *
      * @param o the observable object
      * @param arg an argument passed to the notifyObservers method
      */
     @Override
     public final void update(Observable o, Object arg) {
-        setChanged();
-        notifyObservers(arg);
+        if (arg instanceof byte[]) {
+            deliver((byte[]) arg);
+        } else {
+            setChanged();
+            notifyObservers(arg);
+        }
     }
 }
@@ -28,7 +28,6 @@ import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.Observable;
 import java.util.TooManyListenersException;
 import java.util.logging.Level;
 
@@ -115,7 +114,6 @@ public class AdapterCom extends Adapter {
                 in = serialPort.getInputStream();
                 out = new BufferedOutputStream(serialPort.getOutputStream());
                 SerialListener sl = new SerialListener(in);
-                sl.addObserver(this);
                 serialPort.setSerialPortParams(BAUD_RATE, DATA_BITS, STOP_BITS, PARITY);
                 serialPort.addEventListener(sl);
                 serialPort.notifyOnDataAvailable(true);
@@ -145,6 +143,7 @@ public class AdapterCom extends Adapter {
                 this.out.write(data);
                 this.out.write(STOP_BYTE);
                 this.out.flush();
+                sent(1, data.length + 2);
             }
         } catch (IOException ex) {
             log(Level.SEVERE, ex.toString());
@@ -168,7 +167,7 @@ public class AdapterCom extends Adapter {
         }
     }
 
-    private class SerialListener extends Observable implements SerialPortEventListener {
+    private class SerialListener implements SerialPortEventListener {
 
         boolean startFlag = false;
         int expected = 0;
@@ -220,8 +219,7 @@ public class AdapterCom extends Adapter {
                                 for (int i = 0; i < bytePacket.length; i++) {
                                     bytePacket[i] = packet.poll();
                                 }
-                                setChanged();
-                                notifyObservers(bytePacket);
+                                deliver(bytePacket);
                             } else {
                                 while (!packet.isEmpty()) {
                                     receivedBytes.addFirst(packet.removeLast());
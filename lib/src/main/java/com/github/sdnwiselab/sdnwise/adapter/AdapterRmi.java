@@ -147,6 +147,7 @@ public class AdapterRmi extends Adapter{
     public void send(byte[] data) {
         try {
             server.send(data, OUT_ADDRESS);
+            sent(1, data.length);
         } catch (RemoteException ex) {
             log(Level.SEVERE, ex.toString());
         }
@@ -159,8 +160,7 @@ public class AdapterRmi extends Adapter{
      * @throws RemoteException
      */
     public void receive(byte[] data) throws RemoteException {
-        setChanged();
-        notifyObservers(data);
+        deliver(data);
     }
 
     /**
@@ -16,22 +16,28 @@
  */
 package com.github.sdnwiselab.sdnwise.adapter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,6 +45,19 @@ import java.util.logging.Logger;
  * The adapter class for UDP port communication. Configuration data are passed
  * using a Map<String,String> which contains all the options needed in the
  * constructor of the class.
+ * <p>
+ * When acting as a server, a single thread serves every client through a
+ * Selector: the packets are decoded out of a buffer per connection, using
+ * their first byte as length, and the packets sent are queued per connection
+ * and written together when the socket is writable.
+ * <p>
+ * The packets sent are queued in an OutboundQueue, one per connection when
+ * acting as a server, and many small packets are written at once. The
+ * options of the queues are read from the configuration. The queues of a
+ * server always drop the packets when they are full, whatever SEND_POLICY:
+ * they are drained by the thread of the Selector, which also delivers the
+ * packets received and may wait for the threads sending, so a sender must
+ * never wait for it.
  *
  * @author Sebastiano Milardo
  * @version 0.1
@@ -48,6 +67,7 @@ public class AdapterTcp extends Adapter{
     private final int PORT;
     private final String IP;
     private final boolean IS_SERVER;
+    private final Map<String, String> conf;
     private TcpElement tcpElement;
     private Thread th;
 
@@ -65,6 +85,7 @@ public class AdapterTcp extends Adapter{
         this.IS_SERVER = Boolean.parseBoolean(conf.get("IS_SERVER"));
         this.IP = conf.get("IP");
         this.PORT = Integer.parseInt(conf.get("PORT"));
+        this.conf = conf;
         System.out.println("Creato Adapter TCP \t Server: "+ this.IS_SERVER + "\t IP: "+this.IP+"\tPort: "+this.PORT);
 
     }
@@ -82,7 +103,6 @@ public class AdapterTcp extends Adapter{
             tcpElement = new TcpClient(IP, PORT);
         }
 
-        tcpElement.addObserver(this);
         th = new Thread(tcpElement);
         th.start();
         return true;
@@ -95,7 +115,7 @@ public class AdapterTcp extends Adapter{
      */
     @Override
     public final boolean close() {
-        tcpElement.isStopped = true;
+        tcpElement.stop();
         return true;
     }
 
@@ -109,6 +129,31 @@ public class AdapterTcp extends Adapter{
         tcpElement.send(data);
     }
 
+    /**
+     * Sends a byte array using this adapter, telling if it has been accepted.
+     * When acting as a server the array is sent to every client and it is
+     * accepted only if no client drops it.
+     *
+     * @param data the array to be sent
+     * @return false if the array has been dropped
+     */
+    @Override
+    public final boolean offer(byte[] data) {
+        return tcpElement.send(data);
+    }
+
+    /**
+     * Returns the queue of the packets sent to the server when acting as a
+     * client.
+     *
+     * @return the OutboundQueue of the client, or null for a server
+     */
+    @Override
+    public final OutboundQueue getOutboundQueue() {
+        return tcpElement instanceof TcpClient
+                ? ((TcpClient) tcpElement).queue : null;
+    }
+
     /**
      * Sends a byte array using this adapter. This method also specifies the
      * destination IP address and TCP port.
@@ -134,6 +179,7 @@ public class AdapterTcp extends Adapter{
             DatagramPacket packet = new DatagramPacket(data, data.length,
                     InetAddress.getByName(OUT_IP), OUT_PORT);
             sck.send(packet);
+            sent(1, data.length);
         } catch (SocketException ex) {
             Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
         } catch (UnknownHostException ex) {
@@ -144,7 +190,7 @@ public class AdapterTcp extends Adapter{
 
     }
 
-    private abstract class TcpElement extends Observable implements Runnable, Observer {
+    private abstract class TcpElement implements Runnable {
 
         boolean isStopped = false;
         final int port;
@@ -153,23 +199,25 @@ public class AdapterTcp extends Adapter{
             this.port = port;
         }
 
-        public abstract void send(byte[] data);
+        public abstract boolean send(byte[] data);
 
         synchronized boolean isStopped() {
             return this.isStopped;
         }
 
-        @Override
-        public final void update(Observable o, Object arg) {
-            setChanged();
-            notifyObservers(arg);
+        synchronized void stop() {
+            this.isStopped = true;
         }
     }
 
     private class TcpServer extends TcpElement {
 
-        private ServerSocket serverSocket = null;
-        private final LinkedList<Socket> clientSockets = new LinkedList<>();
+        private final static int BUFFER = 4096;
+
+        private Selector selector;
+        private ServerSocketChannel serverChannel;
+        private final List<Connection> connections = new CopyOnWriteArrayList<>();
+        private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<>();
 
         TcpServer(int port) {
             super(port);
@@ -177,84 +225,185 @@ public class AdapterTcp extends Adapter{
 
         @Override
         public void run() {
-            System.out.println("RUN TCP ELEMENT THREAD");
             openServerSocket();
-            Socket clientSocket = null;
             while (!isStopped()) {
                 try {
-
-                    clientSocket = this.serverSocket.accept();
-                    clientSockets.add(clientSocket);
-                } catch (IOException e) {
-                    if (isStopped()) {
-                        return;
+                    selector.select();
+                    Connection conn;
+                    while ((conn = writable.poll()) != null) {
+                        if (conn.key.isValid()) {
+                            conn.key.interestOps(
+                                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        } else if (key.isValid()) {
+                            handle((Connection) key.attachment());
+                        }
                     }
-                    throw new RuntimeException(
-                            "Error accepting client connection", e);
+                } catch (IOException ex) {
+                    Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
                 }
-                WorkerRunnable wr = new WorkerRunnable(clientSocket);
-                wr.addObserver(this);
-                new Thread(wr).start();
             }
+            closeServerSocket();
         }
 
-        public synchronized void stop() {
-            this.isStopped = true;
-            try {
-                this.serverSocket.close();
-            } catch (IOException e) {
-                throw new RuntimeException("Error closing server", e);
+        @Override
+        synchronized void stop() {
+            super.stop();
+            if (selector != null) {
+                selector.wakeup();
             }
         }
 
         private void openServerSocket() {
             try {
-                this.serverSocket = new ServerSocket(this.port);
+                selector = Selector.open();
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().bind(new InetSocketAddress(this.port));
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             } catch (IOException e) {
                 throw new RuntimeException("Cannot open port", e);
             }
         }
 
-        @Override
-        public void send(byte[] data) {
-            for (Socket sck : clientSockets) {
-                try {
-                    OutputStream out = sck.getOutputStream();
-                    DataOutputStream dos = new DataOutputStream(out);
-                    dos.write(data);
-                } catch (IOException ex) {
-                    Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
+        private void closeServerSocket() {
+            for (Connection conn : connections) {
+                conn.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Error closing server", e);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection conn = new Connection(channel);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                connections.add(conn);
+            }
+        }
+
+        private void handle(Connection conn) {
+            try {
+                if (conn.key.isReadable()) {
+                    conn.read();
+                }
+                if (conn.key.isValid() && conn.key.isWritable()) {
+                    conn.write();
                 }
+            } catch (IOException ex) {
+                Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
+                conn.close();
             }
         }
 
-        private class WorkerRunnable extends Observable implements Runnable {
+        private void received(byte[] data) {
+            deliver(data);
+        }
 
-            private Socket clientSocket = null;
+        @Override
+        public boolean send(byte[] data) {
+            boolean accepted = true;
+            for (Connection conn : connections) {
+                accepted &= conn.out.offer(data);
+                writable.add(conn);
+            }
+            if (!connections.isEmpty()) {
+                selector.wakeup();
+            }
+            return accepted;
+        }
 
-            WorkerRunnable(Socket clientSocket) {
-                this.clientSocket = clientSocket;
+        private class Connection {
+
+            private final SocketChannel channel;
+            private SelectionKey key;
+            private final ByteBuffer in = ByteBuffer.allocate(BUFFER);
+            // never BLOCK: only the thread of the Selector drains it
+            private final OutboundQueue out = OutboundQueue.fromConf(conf,
+                    OutboundQueue.DROP);
+            private final byte[][] batch = new byte[out.getCapacity()][];
+            private final ByteBuffer[] buffers = new ByteBuffer[out.getCapacity()];
+            private int first;
+            private int last;
+
+            Connection(SocketChannel channel) {
+                this.channel = channel;
             }
 
-            @Override
-            public void run() {
-                try {
-                    InputStream in = clientSocket.getInputStream();
-                    DataInputStream dis = new DataInputStream(in);
-                    while (true) {
-                        int len = dis.readByte() & 0xFF;
-                        byte[] data = new byte[len];
-                        data[0] = (byte) len;
-                        if (len > 0) {
-                            dis.readFully(data, 1, len - 1);
+            void read() throws IOException {
+                if (channel.read(in) < 0) {
+                    close();
+                    return;
+                }
+                in.flip();
+                while (in.hasRemaining()) {
+                    int len = in.get(in.position()) & 0xFF;
+                    if (len == 0) {
+                        in.get();
+                        continue;
+                    }
+                    if (in.remaining() < len) {
+                        break;
+                    }
+                    byte[] data = new byte[len];
+                    in.get(data);
+                    received(data);
+                }
+                in.compact();
+            }
+
+            void write() throws IOException {
+                while (true) {
+                    if (first == last) {
+                        int n = out.drain(batch, null);
+                        if (n == 0) {
+                            break;
                         }
-                        setChanged();
-                        notifyObservers(data);
+                        long size = 0;
+                        for (int i = 0; i < n; i++) {
+                            buffers[i] = ByteBuffer.wrap(batch[i]);
+                            batch[i] = null;
+                            size += buffers[i].remaining();
+                        }
+                        first = 0;
+                        last = n;
+                        out.written(n, size);
+                        sent(n, size);
                     }
-                } catch (IOException ex) {
-                    Logger.getLogger(
-                            AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
+                    channel.write(buffers, first, last - first);
+                    while (first < last && !buffers[first].hasRemaining()) {
+                        buffers[first++] = null;
+                    }
+                    if (first < last) {
+                        return;
+                    }
+                }
+                // a packet queued meanwhile puts the connection in writable
+                key.interestOps(SelectionKey.OP_READ);
+            }
 
+            void close() {
+                connections.remove(this);
+                out.close();
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
         }
@@ -263,11 +412,30 @@ public class AdapterTcp extends Adapter{
     private class TcpClient extends TcpElement {
 
         Socket socket;
+        DataOutputStream dos;
+        final OutboundQueue queue = OutboundQueue.fromConf(conf);
 
         TcpClient(String ip, int port) {
             super(port);
             try {
                 socket = new Socket(ip, port);
+                socket.setTcpNoDelay(true);
+                dos = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream(), queue.getMaxBatch()));
+                queue.start("AdapterTcp " + ip + ":" + port,
+                        new OutboundQueue.Sink() {
+                            @Override
+                            public void write(byte[][] frames, Object[] targets,
+                                    int count) throws IOException {
+                                long size = 0;
+                                for (int i = 0; i < count; i++) {
+                                    dos.write(frames[i]);
+                                    size += frames[i].length;
+                                }
+                                dos.flush();
+                                sent(count, size);
+                            }
+                        });
             } catch (IOException ex) {
                 Logger.getLogger(
                         AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
@@ -276,31 +444,37 @@ public class AdapterTcp extends Adapter{
         }
 
         @Override
-        public void send(byte[] data) {
-            try {
-                OutputStream out = socket.getOutputStream();
-                DataOutputStream dos = new DataOutputStream(out);
-                dos.write(data);
-            } catch (IOException ex) {
-                Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        public boolean send(byte[] data) {
+            return queue.offer(data);
         }
 
         @Override
         public void run() {
             try {
-                InputStream in = socket.getInputStream();
-                DataInputStream dis = new DataInputStream(in);
-                while (true) {
+                DataInputStream dis = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                while (!isStopped()) {
                     int len = dis.readByte() & 0xFF;
                     if (len > 0) {
                         byte[] data = new byte[len];
                         data[0] = (byte) len;
                         dis.readFully(data, 1, len - 1);
-                        setChanged();
-                        notifyObservers(data);
+                        deliver(data);
                     }
                 }
+            } catch (IOException ex) {
+                if (!isStopped()) {
+                    Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        @Override
+        synchronized void stop() {
+            super.stop();
+            queue.close();
+            try {
+                socket.close();
             } catch (IOException ex) {
                 Logger.getLogger(AdapterTcp.class.getName()).log(Level.SEVERE, null, ex);
             }
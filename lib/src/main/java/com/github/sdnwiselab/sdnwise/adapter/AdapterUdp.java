@@ -18,34 +18,57 @@ package com.github.sdnwiselab.sdnwise.adapter;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Map;
-import java.util.Observable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 /**
  * The adapter class for UDP port communication. Configuration data are passed
  * using a Map<String,String> which contains all the options needed in the
  * constructor of the class.
+ * <p>
+ * The packets sent are queued in an OutboundQueue and sent by a separate
+ * thread, one datagram per packet since the receivers expect a packet per
+ * datagram.
+ * <p>
+ * The packets received are read from a non blocking DatagramChannel into a
+ * ring of direct buffers: every time the channel becomes readable all the
+ * datagrams waiting in the socket are read, up to the size of the ring, and
+ * then handed to the PacketListeners as read only views of the ring. A copy
+ * of each packet is made only for the subscribers of the packet bus and the
+ * observers, if any: observers receive a byte array or, in FULL_PACKET mode,
+ * a DatagramPacket holding the address of the sender.
  *
  * @author Sebastiano Milardo
  * @version 0.1
  */
 public class AdapterUdp extends Adapter{
 
+    private final static int DFLT_RECV_BUFFER = 1 << 20;
+    private final static int DFLT_RECV_BATCH = 32;
+
     private final int IN_PORT;
     private final int OUT_PORT;
     private final String OUT_IP;
     final int MAX_PAYLOAD;
+    private final int RECV_BUFFER;
+    private final int RECV_BATCH;
 
     public final boolean FULL_PACKET;
 
-    private UDPServer udpServer;
+    private Receiver receiver;
     private Thread th;
-    private DatagramSocket sck;
+    private DatagramChannel channel;
+    private volatile Selector writable;
+    private final OutboundQueue queue;
+    private final ConcurrentHashMap<String, InetSocketAddress> targets = new ConcurrentHashMap<>();
 
     /**
      * Creates an AdapterUDP object. The conf map is used to pass the
@@ -57,6 +80,10 @@ public class AdapterUdp extends Adapter{
      * <li>IN_PORT</li>
      * <li>MAX_PAYLOAD</li>
      * </ol>
+     * The options of the OutboundQueue can be given too, as well as the size
+     * in bytes of the receive buffer of the socket (RECV_BUFFER), large enough
+     * to hold the bursts of packets coming from the queue of the sender, and
+     * the number of datagrams read at once (RECV_BATCH).
      *
      * @param conf contains the serial port configuration data.
      */
@@ -66,6 +93,13 @@ public class AdapterUdp extends Adapter{
         this.IN_PORT = Integer.parseInt(conf.get("IN_PORT"));
         this.MAX_PAYLOAD = Integer.parseInt(conf.get("MAX_PAYLOAD"));
         this.FULL_PACKET = Boolean.parseBoolean(conf.get("FULL_PACKET"));
+        this.queue = OutboundQueue.fromConf(conf);
+        String recvBuffer = conf.get("RECV_BUFFER");
+        this.RECV_BUFFER = recvBuffer == null ? DFLT_RECV_BUFFER
+                : Integer.parseInt(recvBuffer);
+        String recvBatch = conf.get("RECV_BATCH");
+        this.RECV_BATCH = recvBatch == null ? DFLT_RECV_BATCH
+                : Integer.parseInt(recvBatch);
     }
 
     /**
@@ -76,17 +110,44 @@ public class AdapterUdp extends Adapter{
     @Override
     public final boolean open() {
         try {
-            sck = new DatagramSocket(IN_PORT);
-            if (this.FULL_PACKET) {
-                udpServer = new UDPDatagramServer(sck);
-            } else {
-                udpServer = new UDPServer(sck);
-            }
-            udpServer.addObserver(this);
-            th = new Thread(udpServer);
+            channel = DatagramChannel.open();
+            channel.socket().setReceiveBufferSize(RECV_BUFFER);
+            channel.socket().bind(new InetSocketAddress(IN_PORT));
+            channel.configureBlocking(false);
+            receiver = new Receiver();
+            th = new Thread(receiver, "AdapterUdp receiver " + IN_PORT);
             th.start();
+            queue.start("AdapterUdp " + IN_PORT, new OutboundQueue.Sink() {
+                @Override
+                public void write(byte[][] frames, Object[] targets, int count)
+                        throws IOException {
+                    long size = 0;
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer buf = ByteBuffer.wrap(frames[i]);
+                        SocketAddress to = targets[i] != null
+                                ? (SocketAddress) targets[i]
+                                : target(OUT_IP, OUT_PORT);
+                        while (channel.send(buf, to) == 0 && buf.hasRemaining()) {
+                            awaitWritable();
+                        }
+                        size += frames[i].length;
+                    }
+                    sent(count, size);
+                }
+
+                // the channel is non blocking: a full send buffer is waited
+                // for here, as a blocking socket would do
+                private void awaitWritable() throws IOException {
+                    if (writable == null) {
+                        writable = Selector.open();
+                        channel.register(writable, SelectionKey.OP_WRITE);
+                    }
+                    writable.select(100);
+                    writable.selectedKeys().clear();
+                }
+            });
             return true;
-        } catch (SocketException ex) {
+        } catch (IOException ex) {
             log(Level.SEVERE, ex.toString());
             return false;
         }
@@ -99,8 +160,16 @@ public class AdapterUdp extends Adapter{
      */
     @Override
     public final boolean close() {
-        udpServer.isStopped = true;
-        sck.close();
+        queue.close();
+        receiver.stop();
+        try {
+            channel.close();
+            if (writable != null) {
+                writable.close();
+            }
+        } catch (IOException ex) {
+            log(Level.SEVERE, ex.toString());
+        }
         return true;
     }
 
@@ -111,12 +180,17 @@ public class AdapterUdp extends Adapter{
      */
     @Override
     public final void send(byte[] data) {
-        try {
-            DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getByName(OUT_IP), OUT_PORT);
-            sck.send(packet);
-        } catch (IOException ex) {
-            log(Level.SEVERE, ex.toString());
-        }
+        offer(data);
+    }
+
+    @Override
+    public final boolean offer(byte[] data) {
+        return queue.offer(data);
+    }
+
+    @Override
+    public final OutboundQueue getOutboundQueue() {
+        return queue;
     }
 
     /**
@@ -128,58 +202,122 @@ public class AdapterUdp extends Adapter{
      * @param OUT_PORT an integer containing the UDP port of the destination
      */
     public final void send(byte[] data, String OUT_IP, int OUT_PORT) {
-        try {
-            DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getByName(OUT_IP), OUT_PORT);
-            sck.send(packet);
-        } catch (IOException ex) {
-            log(Level.SEVERE, ex.toString());
+        offer(data, OUT_IP, OUT_PORT);
+    }
+
+    /**
+     * Sends a byte array using this adapter, telling if it has been accepted.
+     * This method also specifies the destination IP address and UDP port.
+     *
+     * @param data the array to be sent
+     * @param OUT_IP a string containing the IP address of the destination
+     * @param OUT_PORT an integer containing the UDP port of the destination
+     * @return false if the array has been dropped
+     */
+    public final boolean offer(byte[] data, String OUT_IP, int OUT_PORT) {
+        return queue.offer(data, target(OUT_IP, OUT_PORT));
+    }
+
+    private InetSocketAddress target(String ip, int port) {
+        String key = ip + ":" + port;
+        InetSocketAddress addr = targets.get(key);
+        if (addr == null || addr.isUnresolved()) {
+            addr = new InetSocketAddress(ip, port);
+            targets.put(key, addr);
         }
+        return addr;
     }
 
-    private class UDPServer extends Observable implements Runnable {
+    /**
+     * Reads the datagrams coming from the channel. The ring holds a direct
+     * buffer per datagram and a read only view of each buffer, which is the
+     * one handed to the listeners.
+     */
+    private final class Receiver implements Runnable {
+
+        private final Selector selector;
+        private final ByteBuffer[] ring;
+        private final ByteBuffer[] views;
+        private final SocketAddress[] sources;
+        private volatile boolean isStopped;
 
-        boolean isStopped;
-        DatagramSocket sck;
+        Receiver() throws IOException {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            ring = new ByteBuffer[Math.max(1, RECV_BATCH)];
+            views = new ByteBuffer[ring.length];
+            sources = new SocketAddress[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = ByteBuffer.allocateDirect(MAX_PAYLOAD);
+                views[i] = ring[i].asReadOnlyBuffer();
+            }
+        }
 
-        UDPServer(DatagramSocket sck) {
-            this.sck = sck;
-            isStopped = false;
+        void stop() {
+            isStopped = true;
+            selector.wakeup();
         }
 
         @Override
         public void run() {
             try {
-                byte[] buffer = new byte[MAX_PAYLOAD];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 while (!isStopped) {
-                    sck.receive(packet);
-                    setChanged();
-                    notifyObservers(Arrays.copyOf(packet.getData(), packet.getLength()));
+                    if (selector.select() == 0) {
+                        continue;
+                    }
+                    selector.selectedKeys().clear();
+                    int n;
+                    do {
+                        n = 0;
+                        while (n < ring.length) {
+                            ring[n].clear();
+                            SocketAddress from = channel.receive(ring[n]);
+                            if (from == null) {
+                                break;
+                            }
+                            sources[n++] = from;
+                        }
+                        for (int i = 0; i < n; i++) {
+                            views[i].clear();
+                            views[i].limit(ring[i].position());
+                            dispatch(views[i], sources[i]);
+                            sources[i] = null;
+                        }
+                    } while (n == ring.length && !isStopped);
                 }
+            } catch (ClosedChannelException ex) {
+                // closed by close()
             } catch (IOException ex) {
                 log(Level.SEVERE, ex.toString());
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    log(Level.SEVERE, ex.toString());
+                }
             }
         }
-    }
-
-    private class UDPDatagramServer extends UDPServer {
 
-        UDPDatagramServer(DatagramSocket sck) {
-            super(sck);
-        }
-
-        @Override
-        public void run() {
-            try {
-                byte[] buffer = new byte[MAX_PAYLOAD];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                while (!isStopped) {
-                    sck.receive(packet);
+        private void dispatch(ByteBuffer packet, SocketAddress from) {
+            received(packet.remaining());
+            if (hasPacketListeners()) {
+                firePacket(packet, from);
+            }
+            boolean observed = countObservers() > 0;
+            if (getPacketBus().hasSubscribers() || observed) {
+                byte[] data = new byte[packet.remaining()];
+                packet.get(data);
+                getPacketBus().publish(data);
+                if (observed) {
                     setChanged();
-                    notifyObservers(packet);
+                    if (FULL_PACKET) {
+                        DatagramPacket dp = new DatagramPacket(data, data.length);
+                        dp.setSocketAddress(from);
+                        notifyObservers(dp);
+                    } else {
+                        notifyObservers(data);
+                    }
                 }
-            } catch (IOException ex) {
-                log(Level.SEVERE, ex.toString());
             }
         }
     }
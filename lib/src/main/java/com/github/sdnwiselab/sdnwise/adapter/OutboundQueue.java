@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.adapter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue of the packets sent through an adapter. The packets are
+ * written in batches, so that many small packets cost a single write, either
+ * by a flusher thread started with start or by a thread calling drain.
+ * <p>
+ * When the queue is full a packet is dropped or the sender waits, depending on
+ * the policy. Every packet may carry a target, for instance the address of
+ * the receiver. The queue counts the packets enqueued, dropped and written,
+ * the times a sender had to wait and the writes performed.
+ * <p>
+ * The options read from the configuration of an adapter are:
+ * <ol>
+ * <li>SEND_QUEUE, the capacity of the queue in packets</li>
+ * <li>SEND_POLICY, either DROP or BLOCK</li>
+ * <li>SEND_BATCH, the maximum number of bytes written at once</li>
+ * <li>SEND_LINGER, the time in milliseconds the flusher waits for more
+ * packets before writing a batch smaller than SEND_BATCH</li>
+ * </ol>
+ */
+public final class OutboundQueue {
+
+    /**
+     * Policies applied when the queue is full.
+     */
+    public final static int DROP = 0,
+            BLOCK = 1;
+
+    public final static int DFLT_CAPACITY = 1024;
+    public final static int DFLT_BATCH = 8192;
+
+    /**
+     * Writes the batches of packets taken from the queue.
+     */
+    public interface Sink {
+
+        /**
+         * Writes a batch of packets.
+         *
+         * @param frames the packets.
+         * @param targets the targets of the packets.
+         * @param count the number of packets in the batch.
+         * @throws IOException if the packets can not be written
+         */
+        void write(byte[][] frames, Object[] targets, int count)
+                throws IOException;
+    }
+
+    private final int policy;
+    private final int maxBatch;
+    private final long linger;
+
+    private final byte[][] frames;
+    private final Object[] targets;
+    private int head;
+    private int count;
+    private boolean closed;
+    // a batch taken by the flusher has not been written yet
+    private boolean flushing;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    private long enqueued;
+    private long dropped;
+    private long blocked;
+    private long written;
+    private long writes;
+    private long bytes;
+    private long failed;
+
+    private Thread flusher;
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacity the maximum number of packets in the queue.
+     * @param policy DROP or BLOCK.
+     * @param maxBatch the maximum number of bytes taken at once.
+     * @param linger the time in milliseconds the flusher waits for a batch
+     * to fill up.
+     */
+    public OutboundQueue(int capacity, int policy, int maxBatch, long linger) {
+        if (capacity < 1 || maxBatch < 1 || linger < 0
+                || (policy != DROP && policy != BLOCK)) {
+            throw new IllegalArgumentException("Invalid queue configuration");
+        }
+        this.policy = policy;
+        this.maxBatch = maxBatch;
+        this.linger = linger;
+        this.frames = new byte[capacity][];
+        this.targets = new Object[capacity];
+    }
+
+    /**
+     * Creates a queue using the options of the configuration of an adapter.
+     * Missing options take their default values: a BLOCK queue of
+     * DFLT_CAPACITY packets written in batches of DFLT_BATCH bytes without
+     * waiting.
+     *
+     * @param conf the configuration of the adapter.
+     * @return a new OutboundQueue
+     */
+    public static OutboundQueue fromConf(Map<String, String> conf) {
+        return fromConf(conf,
+                "DROP".equalsIgnoreCase(conf.get("SEND_POLICY")) ? DROP : BLOCK);
+    }
+
+    /**
+     * Creates a queue using the options of the configuration of an adapter
+     * but the policy, which is given. It is used by the adapters whose queue
+     * is drained by a thread that may itself wait for the senders, which
+     * must then never block.
+     *
+     * @param conf the configuration of the adapter.
+     * @param policy DROP or BLOCK.
+     * @return a new OutboundQueue
+     */
+    public static OutboundQueue fromConf(Map<String, String> conf, int policy) {
+        String capacity = conf.get("SEND_QUEUE");
+        String batch = conf.get("SEND_BATCH");
+        String linger = conf.get("SEND_LINGER");
+        return new OutboundQueue(
+                capacity == null ? DFLT_CAPACITY : Integer.parseInt(capacity),
+                policy,
+                batch == null ? DFLT_BATCH : Integer.parseInt(batch),
+                linger == null ? 0 : Long.parseLong(linger));
+    }
+
+    /**
+     * Enqueues a packet.
+     *
+     * @param frame the packet.
+     * @return false if the packet has been dropped
+     */
+    public boolean offer(byte[] frame) {
+        return offer(frame, null);
+    }
+
+    /**
+     * Enqueues a packet for a target. If the queue is full the packet is
+     * dropped or the caller waits for some space, according to the policy.
+     *
+     * @param frame the packet.
+     * @param target the target of the packet, or null.
+     * @return false if the packet has been dropped
+     */
+    public boolean offer(byte[] frame, Object target) {
+        lock.lock();
+        try {
+            if (count == frames.length && !closed) {
+                if (policy == DROP) {
+                    dropped++;
+                    return false;
+                }
+                blocked++;
+                try {
+                    while (count == frames.length && !closed) {
+                        notFull.await();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    dropped++;
+                    return false;
+                }
+            }
+            if (closed) {
+                dropped++;
+                return false;
+            }
+            int tail = (head + count) % frames.length;
+            frames[tail] = frame;
+            targets[tail] = target;
+            count++;
+            enqueued++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the packets at the head of the queue into a batch, without
+     * waiting. The first packet is always taken, the following ones until
+     * the batch holds maxBatch bytes.
+     *
+     * @param outFrames the array receiving the packets.
+     * @param outTargets the array receiving the targets, or null.
+     * @return the number of packets taken
+     */
+    public int drain(byte[][] outFrames, Object[] outTargets) {
+        lock.lock();
+        try {
+            return drain(outFrames, outTargets, 0, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drain(byte[][] outFrames, Object[] outTargets, int n,
+            int size) {
+        while (count > 0 && n < outFrames.length
+                && (n == 0 || size + frames[head].length <= maxBatch)) {
+            size += frames[head].length;
+            outFrames[n] = frames[head];
+            if (outTargets != null) {
+                outTargets[n] = targets[head];
+            }
+            frames[head] = null;
+            targets[head] = null;
+            head = (head + 1) % frames.length;
+            count--;
+            n++;
+        }
+        if (n > 0) {
+            notFull.signalAll();
+        }
+        return n;
+    }
+
+    private int take(byte[][] outFrames, Object[] outTargets)
+            throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            int n = drain(outFrames, outTargets, 0, 0);
+            flushing = true;
+            if (linger > 0) {
+                long deadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(linger);
+                int size = 0;
+                for (int i = 0; i < n; i++) {
+                    size += outFrames[i].length;
+                }
+                long left;
+                while (size < maxBatch && n < outFrames.length
+                        && (left = deadline - System.nanoTime()) > 0) {
+                    if (count == 0) {
+                        notEmpty.awaitNanos(left);
+                        continue;
+                    }
+                    if (size + frames[head].length > maxBatch) {
+                        break;
+                    }
+                    int m = drain(outFrames, outTargets, n, size);
+                    for (int i = n; i < m; i++) {
+                        size += outFrames[i].length;
+                    }
+                    n = m;
+                }
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a batch written by a thread calling drain.
+     *
+     * @param frames the number of packets written.
+     * @param size the number of bytes written.
+     */
+    public void written(int frames, long size) {
+        lock.lock();
+        try {
+            written += frames;
+            bytes += size;
+            writes++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a thread writing the packets of the queue to a sink.
+     *
+     * @param name the name of the thread.
+     * @param sink the sink.
+     */
+    public synchronized void start(String name, final Sink sink) {
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[][] batch = new byte[frames.length][];
+                Object[] batchTargets = new Object[frames.length];
+                while (!isClosed()) {
+                    int n;
+                    try {
+                        n = take(batch, batchTargets);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    long size = 0;
+                    for (int i = 0; i < n; i++) {
+                        size += batch[i].length;
+                    }
+                    try {
+                        sink.write(batch, batchTargets, n);
+                        written(n, size);
+                    } catch (IOException ex) {
+                        fail(n);
+                        Logger.getLogger(OutboundQueue.class.getName())
+                                .log(Level.SEVERE, null, ex);
+                    } finally {
+                        flushed();
+                    }
+                    for (int i = 0; i < n; i++) {
+                        batch[i] = null;
+                        batchTargets[i] = null;
+                    }
+                }
+            }
+        }, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void flushed() {
+        lock.lock();
+        try {
+            flushing = false;
+            if (count == 0) {
+                flushed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the flusher has written every packet of the queue, so that
+     * the adapter can be closed without losing them. Packets offered while
+     * waiting are waited for too.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return false if some packet is still queued when the time is up or
+     * the queue has been closed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public boolean awaitEmpty(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long left = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while ((count > 0 || flushing) && !closed) {
+                if (left <= 0) {
+                    return false;
+                }
+                left = flushed.awaitNanos(left);
+            }
+            return count == 0 && !flushing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(int frames) {
+        lock.lock();
+        try {
+            failed += frames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue: the packets still queued are discarded and the
+     * senders waiting for space return false.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            dropped += count;
+            while (count > 0) {
+                frames[head] = null;
+                targets[head] = null;
+                head = (head + 1) % frames.length;
+                count--;
+            }
+            notFull.signalAll();
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        synchronized (this) {
+            if (flusher != null) {
+                flusher.interrupt();
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEnqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBlocked() {
+        lock.lock();
+        try {
+            return blocked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWritten() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWrites() {
+        lock.lock();
+        try {
+            return writes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFailed() {
+        lock.lock();
+        try {
+            return failed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "OutboundQueue{size=" + count + ", capacity=" + frames.length
+                    + ", policy=" + (policy == DROP ? "DROP" : "BLOCK")
+                    + ", enqueued=" + enqueued + ", dropped=" + dropped
+                    + ", blocked=" + blocked + ", written=" + written
+                    + ", writes=" + writes + ", bytes=" + bytes
+                    + ", failed=" + failed + "}";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.adapter;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the packets coming from an Adapter without copying them.
+ * <p>
+ * The packet is a read only view that goes from the position to the limit of
+ * the buffer. The buffer is reused as soon as the method returns, so a
+ * listener that has to keep the packet must copy it. Listeners are called by
+ * the receiving thread of the adapter and should return quickly.
+ */
+public interface PacketListener {
+
+    /**
+     * Called for each packet received by an adapter.
+     *
+     * @param adapter the adapter that has received the packet.
+     * @param packet a read only view of the packet.
+     * @param from the address of the sender, or null if unknown.
+     */
+    void packetReceived(Adapter adapter, ByteBuffer packet, SocketAddress from);
+}
@@ -18,15 +18,16 @@ package com.github.sdnwiselab.sdnwise.application;
 
 import com.github.sdnwiselab.sdnwise.adapter.Adapter;
 import com.github.sdnwiselab.sdnwise.controller.Controller;
+import com.github.sdnwiselab.sdnwise.event.EventBus.Subscription;
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
 import com.github.sdnwiselab.sdnwise.packet.DataPacket;
 import com.github.sdnwiselab.sdnwise.packet.NetworkPacket;
 import com.github.sdnwiselab.sdnwise.topology.NetworkGraph;
+import com.github.sdnwiselab.sdnwise.util.Layer;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
 import java.nio.charset.Charset;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Scanner;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,18 +39,22 @@ import java.util.logging.Logger;
  * something in the topology of the network changes.
  * <p>
  * There are send and receive(abstract) methods to and from the Adaptation Layer 
+ * <p>
+ * An Application is a Layer: it runs until stop is called or the line
+ * "exit -l Controller" is read from the standard input.
  *
  * @author Sebastiano Milardo
  */
-public abstract class Application implements Observer, Runnable {
+public abstract class Application extends Layer {
 
     private Adapter lower;
     final Controller controller;
-    private final ArrayBlockingQueue<NetworkPacket> bQ;
-    final Scanner scanner;
+    private final ArrayBlockingQueue<byte[]> bQ;
     private final Charset UTF8_CHARSET = Charset.forName("UTF-8");
-    
-    private boolean isStopped;
+    // tells the worker that no more messages will be queued
+    private final static byte[] END = new byte[0];
+    private Subscription<byte[]> packetSubscription;
+    private Thread worker;
     
     /**
      * Constructor method for Application Abstract Class.
@@ -58,11 +63,10 @@ public abstract class Application implements Observer, Runnable {
      * @param lower the adapter to be set
      */
     public Application(Controller controller, Adapter lower) {
+        super("Application");
         this.lower = lower;
         this.controller = controller;
         bQ = new ArrayBlockingQueue<>(1000);
-        scanner = new Scanner(System.in, "UTF-8");
-        isStopped = false;
     }
 
     public abstract void receivePacket(DataPacket data);
@@ -76,50 +80,60 @@ public abstract class Application implements Observer, Runnable {
     }
 
     /**
-     * This methods manages updates coming from the lower adapter or the network
-     * representation. When a message is received from the lower adapter it is
-     * inserted in a ArrayBlockingQueue and then the method managePacket it is
-     * called on it. While for updates coming from the network representation
-     * the method graphUpdate is invoked.
-     *
-     * @param o
-     * @param arg
+     * Receives the messages coming from the lower adapter. Each message is
+     * inserted in a ArrayBlockingQueue and then the method managePacket is
+     * called on it.
      */
-    @Override
-    public final void update(Observable o, Object arg){
-        if (o.equals(getLower())) {
+    private final Subscriber<byte[]> packetSubscriber = new Subscriber<byte[]>() {
+        @Override
+        public void onEvent(byte[] data) {
             try {
-                bQ.put(new NetworkPacket((byte[]) arg));
+                bQ.put(data);
             } catch (InterruptedException ex) {
                 Logger.getLogger(Application.class.getName()).log(
                         Level.SEVERE, null, ex);
             }
-        } 
-    }
+        }
+    };
 
     /**
      * Starts the working thread that manages incoming requests and it listens
      * to messages coming from the standard input.
+     *
+     * @return false if the lower adapter can not be opened
      */
     @Override
-    public final void run() {
-        if (getLower().open()) {
-            Thread th = new Thread(new Worker(bQ));
-            th.start();
-            getLower().addObserver(this);
-            while (!isStopped) {
-                if (scanner.nextLine().equals("exit -l Controller")) {
-                    isStopped = true;
-                }
-            }
+    protected final boolean startUp() {
+        if (!getLower().open()) {
+            return false;
         }
+        worker = new Thread(new Worker(bQ), "Application worker");
+        worker.start();
+        packetSubscription = getLower().getPacketBus().subscribe(packetSubscriber);
+        stopOn(System.in, "exit -l Controller");
+        return true;
     }
-    
+
     /**
-     * Stops the working thread that manages incoming requests. 
+     * Stops the working thread that manages incoming requests once the
+     * messages already received have been managed, then closes the lower
+     * adapter.
      */
-    public final void stop(){
-        isStopped = true;
+    @Override
+    protected final void shutDown() {
+        if (packetSubscription == null) {
+            return;
+        }
+        packetSubscription.cancel();
+        try {
+            if (bQ.offer(END, DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                worker.join(DRAIN_TIMEOUT);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        worker.interrupt();
+        getLower().close(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -184,10 +198,10 @@ public abstract class Application implements Observer, Runnable {
 
     private class Worker implements Runnable {
         
-        private final ArrayBlockingQueue<NetworkPacket> bQ;
+        private final ArrayBlockingQueue<byte[]> bQ;
         boolean isStopped = false;
 
-        Worker(ArrayBlockingQueue<NetworkPacket> bQ) {
+        Worker(ArrayBlockingQueue<byte[]> bQ) {
             this.bQ = bQ;
         }
 
@@ -195,7 +209,12 @@ public abstract class Application implements Observer, Runnable {
         public void run() {
             while (!isStopped) {
                 try {
-                    managePacket(bQ.take());
+                    byte[] data = bQ.take();
+                    if (data == END) {
+                        isStopped = true;
+                    } else {
+                        managePacket(new NetworkPacket(data));
+                    }
                 } catch (InterruptedException ex) {
                     isStopped = true;
                 }
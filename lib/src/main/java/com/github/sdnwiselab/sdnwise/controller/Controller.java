@@ -17,35 +17,44 @@
 package com.github.sdnwiselab.sdnwise.controller;
 
 import com.github.sdnwiselab.sdnwise.adapter.Adapter;
+import com.github.sdnwiselab.sdnwise.adapter.PacketListener;
+import com.github.sdnwiselab.sdnwise.event.EventBus.Subscription;
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry;
 import com.github.sdnwiselab.sdnwise.function.FunctionInterface;
+import com.github.sdnwiselab.sdnwise.metrics.Gauge;
+import com.github.sdnwiselab.sdnwise.metrics.Histogram;
+import com.github.sdnwiselab.sdnwise.metrics.Metrics;
 import com.github.sdnwiselab.sdnwise.packet.ConfigPacket;
+import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_GET_RULES;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_GET_RULE_INDEX;
+import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_RULES_PER_PACKET;
 import com.github.sdnwiselab.sdnwise.packet.NetworkPacket;
 import com.github.sdnwiselab.sdnwise.packet.OpenPathPacket;
+import com.github.sdnwiselab.sdnwise.packet.PacketView;
 import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
 import com.github.sdnwiselab.sdnwise.packet.ResponsePacket;
 import com.github.sdnwiselab.sdnwise.topology.NetworkGraph;
+import com.github.sdnwiselab.sdnwise.topology.TopologyDelta;
+import com.github.sdnwiselab.sdnwise.util.Layer;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.net.SocketAddress;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Scanner;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.jodah.expiringmap.ExpiringMap;
 
 /**
  * This class holds a representation of the sensor network and resolves all the
@@ -59,11 +68,14 @@ import net.jodah.expiringmap.ExpiringMap;
  * <p>
  * This class also offers methods to send messages and configure the nodes in
  * the network.
+ * <p>
+ * A Controller is a Layer: it runs until stop is called, without using the
+ * CPU while no message is received.
  *
  * @author Sebastiano Milardo
  * @version 0.1
  */
-public abstract class Controller implements Observer, Runnable, ControllerInterface {
+public abstract class Controller extends Layer implements ControllerInterface {
 
     final static byte SDN_WISE_DATA = 0;
     final static byte SDN_WISE_BEACON = 1;
@@ -75,37 +87,61 @@ public abstract class Controller implements Observer, Runnable, ControllerInterf
     final static int SDN_WISE_RLS_MAX = 16;
     final static int RESPONSE_TIMEOUT = 250;
 
+    // time spent in managePacket and from a query to its answer, in ns
+    private final static Histogram MANAGE_TIME
+            = Metrics.histogram("controller.managePacket");
+    private final static Histogram QUERY_RTT
+            = Metrics.histogram("controller.query.rtt");
+
     private final Adapter lower;
-    final Scanner scanner;
     final NetworkGraph networkGraph;
 
     final HashMap<NodeAddress, LinkedList<NodeAddress>> results;
-    private boolean isStopped;
-    private final ArrayBlockingQueue<NetworkPacket> bQ;
+    private final PacketDispatcher dispatcher;
+    private boolean listening;
+    private Subscription<TopologyDelta> topologySubscription;
 
-    private final Map<String, ConfigPacket> cache = ExpiringMap.builder()
-            .expiration(5, TimeUnit.SECONDS)
-            .build();
+    // queries waiting for an answer, oldest first for each key, timed by
+    // the clock of the NetworkGraph
+    private final QueryTable queries;
 
     private ControllerId id;
 
     private final NodeAddress sinkAddress;
 
+    // traces every message handled at FINE, off by default
+    final Logger tracer = Logger.getLogger(getClass().getName());
+
     /**
-     * Constructor Method for the Controller Class.
+     * Constructor Method for the Controller Class. The messages are handled
+     * by a worker per processor.
      * 
      * @param id ControllerId object.
      * @param lower Lower Adpater object.
      * @param networkGraph NetworkGraph object.
      */
     Controller(ControllerId id, Adapter lower, NetworkGraph networkGraph) {
+        this(id, lower, networkGraph, PacketDispatcher.fromConf(
+                Collections.<String, String>emptyMap()));
+    }
+
+    /**
+     * Constructor Method for the Controller Class.
+     * 
+     * @param id ControllerId object.
+     * @param lower Lower Adpater object.
+     * @param networkGraph NetworkGraph object.
+     * @param dispatcher the pool of workers handling the messages.
+     */
+    Controller(ControllerId id, Adapter lower, NetworkGraph networkGraph,
+            PacketDispatcher dispatcher) {
+        super("Controller");
         this.id = id;
         this.lower = lower;
-        bQ = new ArrayBlockingQueue<>(1000);
+        this.dispatcher = dispatcher;
         this.networkGraph = networkGraph;
+        this.queries = new QueryTable(networkGraph.getClock());
         results = new HashMap<>();
-        scanner = new Scanner(System.in, "UTF-8");
-        isStopped = false;
         sinkAddress = new NodeAddress("0.0");
     }
 
@@ -119,16 +155,15 @@ public abstract class Controller implements Observer, Runnable, ControllerInterf
         this.id = id;
     }
 
-    private void managePacket(NetworkPacket data) {
-        System.err.println("[CTR]: " + data.toString());
-        /*DatagramPacket dp = new DatagramPacket(data.toByteArray(), data.toByteArray().length);
-        String rcvd = new String(dp.getData(), 0, dp.getLength());
-        System.err.println("[CTR] HUMAN READABLE: " + rcvd);*/
-        System.err.println("[CTR] HUMAN READABLE: " + data.getSrc().toString());
+    private void managePacket(PacketView packet, byte[] data) {
+        if (tracer.isLoggable(Level.FINE)) {
+            tracer.log(Level.FINE, "[CTR]: {0} from {1}",
+                    new Object[]{packet, packet.getSrc()});
+        }
 
-        switch (data.getType()) {
+        switch (packet.getType()) {
             case SDN_WISE_REPORT:
-                networkGraph.updateMap(new ReportPacket(data.toByteArray()));
+                networkGraph.updateMap(new ReportPacket(data));
                 break;
             case SDN_WISE_DATA:
             case SDN_WISE_BEACON:
@@ -136,71 +171,117 @@ public abstract class Controller implements Observer, Runnable, ControllerInterf
             case SDN_WISE_OPEN_PATH:
                 break;
             case SDN_WISE_CONFIG:
-                ConfigPacket cp = new ConfigPacket(data.toByteArray());
-                String key;
-                if (cp.getPayloadAt(0) == (SDN_WISE_CNF_GET_RULE_INDEX)) {
-                    key = cp.getNetId() + " "
-                            + cp.getSrc() + " "
-                            + cp.getPayloadAt(0) + " "
-                            + cp.getPayloadAt(1) + " "
-                            + cp.getPayloadAt(2);
+                ConfigPacket cp = new ConfigPacket(data);
+                long key = queryKey(cp, cp.getSrc());
+                QueryFuture query;
+                do {
+                    query = queries.poll(key);
+                } while (query != null && !query.complete(cp));
+                if (query != null) {
+                    QUERY_RTT.record(networkGraph.getClock().nanoTime()
+                            - query.sent);
                 } else {
-                    key = cp.getNetId() + " "
-                            + cp.getSrc() + " "
-                            + cp.getPayloadAt(0);
+                    log(Level.INFO, "Unexpected answer " + Long.toHexString(key));
                 }
-                System.out.println("[CTR]: key_add - " + key);
-                cache.put(key, cp);
                 break;
             default:
-                manageRoutingRequest(data);
+                manageRoutingRequest(new NetworkPacket(data));
                 break;
         }
     }
 
     /**
-     * This methods manages updates coming from the lower adapter or the network
-     * representation. When a message is received from the lower adapter it is
-     * inserted in a ArrayBlockingQueue and then the method managePacket it is
-     * called on it. While for updates coming from the network representation
-     * the method graphUpdate is invoked.
+     * Receives the messages coming from the lower adapter as views of its
+     * buffer. Each message is copied once, straight into the queue of one of
+     * the workers of the PacketDispatcher, which then calls managePacket on
+     * it.
+     */
+    private final PacketListener packetListener = new PacketListener() {
+        @Override
+        public void packetReceived(Adapter adapter, ByteBuffer packet,
+                SocketAddress from) {
+            dispatcher.dispatch(packet);
+        }
+    };
+
+    private final PacketDispatcher.Handler packetHandler = new PacketDispatcher.Handler() {
+        @Override
+        public void handle(PacketView packet, byte[] data) {
+            long start = System.nanoTime();
+            managePacket(packet, data);
+            MANAGE_TIME.record(System.nanoTime() - start);
+        }
+    };
+
+    // the messages waiting for a worker
+    private final Gauge queueGauge = new Gauge() {
+        @Override
+        public long get() {
+            return dispatcher.getPending();
+        }
+    };
+
+    /**
+     * Receives the changes of the network representation: the method
+     * graphUpdate is invoked once per TopologyDelta.
+     */
+    private final Subscriber<TopologyDelta> topologySubscriber = new Subscriber<TopologyDelta>() {
+        @Override
+        public void onEvent(TopologyDelta delta) {
+            graphUpdate();
+        }
+    };
+
+    /**
+     * Opens the lower adapter, starts the workers that manage incoming
+     * requests and sets up the network.
      *
-     * @param o the source of the event.
-     * @param arg Object sent by Observable.
+     * @return false if the lower adapter can not be opened
      */
     @Override
-    public final void update(Observable o, Object arg) {
-        if (o.equals(lower)) {
-            try {
-                bQ.put(new NetworkPacket((byte[]) arg));
-            } catch (InterruptedException ex) {
-                log(Level.SEVERE, ex.getMessage());
-            }
-        } else if (o.equals(networkGraph)) {
-            graphUpdate();
+    protected final boolean startUp() {
+        System.out.println("IL CONTROLLER è PARTITO!");
+        if (!lower.open()) {
+            return false;
         }
+        dispatcher.start("Controller worker", packetHandler);
+        Metrics.gauge("controller.queue", queueGauge);
+        lower.addPacketListener(packetListener);
+        listening = true;
+        topologySubscription = networkGraph.getTopologyBus()
+                .subscribe(topologySubscriber);
+        register();
+        setupNetwork();
+        return true;
     }
 
     /**
-     * Starts the working thread that manages incoming requests and it listens
-     * to messages coming from the standard input.
+     * Stops receiving messages, lets the workers handle the messages already
+     * received and stops them, then cancels the queries still waiting for an
+     * answer and closes the lower adapter once the packets queued have been
+     * sent.
      */
     @Override
-    public final void run() {
-        System.out.println("IL CONTROLLER è PARTITO!");
-        if (lower.open()) {
-            Thread th = new Thread(new Worker(bQ));
-            th.start();
-            lower.addObserver(this);
-            networkGraph.addObserver(this);
-            register();
-            setupNetwork();
-            while (!isStopped) {
-                //if (scanner.nextLine().equals("exit -l Controller")) {
-                  //  isStopped = true;
-                //}
+    protected final void shutDown() {
+        if (listening) {
+            lower.removePacketListener(packetListener);
+        }
+        try {
+            if (!dispatcher.awaitEmpty(DRAIN_TIMEOUT)) {
+                log(Level.WARNING, "Messages not handled: " + dispatcher);
             }
-            lower.close();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        dispatcher.close();
+        Metrics.removeGauge("controller.queue", queueGauge);
+        if (topologySubscription != null) {
+            topologySubscription.cancel();
+        }
+        networkGraph.close();
+        queries.close();
+        if (listening) {
+            lower.close(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -227,44 +308,111 @@ public abstract class Controller implements Observer, Runnable, ControllerInterf
 
     /**
      * This method sends a generic message to a node. The message is represented
-     * by a NetworkPacket.
+     * by a NetworkPacket. If the lower adapter is congested the packet may be
+     * dropped, depending on the policy of its OutboundQueue.
      *
      * @param packet the packet to be sent.
+     * @return false if the packet has been dropped by the lower adapter
      */
-    public void sendNetworkPacket(NetworkPacket packet) {
-        lower.send(packet.toByteArray());
+    public boolean sendNetworkPacket(NetworkPacket packet) {
+        if (!lower.offer(packet.toByteArray())) {
+            log(Level.WARNING, "Packet dropped: " + packet);
+            return false;
+        }
+        return true;
     }
 
     private ConfigPacket sendQuery(ConfigPacket cp) throws TimeoutException {
+        return waitFor(sendQueryAsync(cp, RESPONSE_TIMEOUT));
+    }
 
-        sendNetworkPacket(cp);
+    /**
+     * This method sends a query to a node without waiting for the answer.
+     * Any number of queries can be outstanding at the same time, also towards
+     * the same node: answers to equal queries are matched in the order the
+     * queries were sent. The returned Future is completed as soon as the
+     * answer is received, or it fails with a TimeoutException if no answer
+     * arrives within timeout milliseconds and with an IOException if the
+     * lower adapter drops the query.
+     *
+     * @param cp the query. Source and next hop are set by the controller.
+     * @param timeout the maximum time to wait for the answer, in milliseconds.
+     * @return the pending answer of the node.
+     */
+    public final Future<ConfigPacket> sendQueryAsync(ConfigPacket cp,
+            long timeout) {
+        cp.setSrc(sinkAddress).setNxhop(sinkAddress);
+        QueryFuture query = expect(queryKey(cp, cp.getDst()), timeout);
+        if (!sendNetworkPacket(cp)) {
+            queries.remove(query);
+            query.fail(new IOException("dropped"));
+        }
+        return query;
+    }
 
+    // registers a query before sending it, so that the answer can't be lost
+    private QueryFuture expect(long key, long timeout) {
+        return queries.expect(key, timeout);
+    }
+
+    /**
+     * This method sends a query to a node without waiting for the answer. The
+     * destination of the query is set using netId and destination.
+     *
+     * @param netId network id of the destination node.
+     * @param destination network address of the destination node.
+     * @param cp the query.
+     * @return the pending answer of the node.
+     */
+    public final Future<ConfigPacket> sendQueryAsync(byte netId,
+            NodeAddress destination, ConfigPacket cp) {
+        cp.setNetId(netId).setDst(destination);
+        return sendQueryAsync(cp, RESPONSE_TIMEOUT);
+    }
+
+    /**
+     * Waits for the answer to a query sent with sendQueryAsync.
+     *
+     * @param query the pending answer.
+     * @return the answer of the node.
+     * @throws TimeoutException if the node did not answer in time.
+     */
+    public final ConfigPacket waitFor(Future<ConfigPacket> query)
+            throws TimeoutException {
         try {
-            Thread.sleep(RESPONSE_TIMEOUT);
+            return query.get();
         } catch (InterruptedException ex) {
-            log(Level.SEVERE, ex.getMessage());
+            query.cancel(false);
+            if (query instanceof QueryFuture) {
+                queries.remove((QueryFuture) query);
+            }
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) ex.getCause();
+            }
+            throw new TimeoutException(ex.getCause().getMessage());
         }
+    }
 
-        String key;
-
-        if (cp.getPayloadAt(0) == (SDN_WISE_CNF_GET_RULE_INDEX)) {
-            key = cp.getNetId() + " "
-                    + cp.getDst() + " "
-                    + cp.getPayloadAt(0) + " "
-                    + cp.getPayloadAt(1) + " "
-                    + cp.getPayloadAt(2);
-        } else {
-            key = cp.getNetId() + " "
-                    + cp.getDst() + " "
-                    + cp.getPayloadAt(0);
-        }
-        System.out.println("[CTR]: key_remove - " + key);
+    private static long rulesKey(int netId, NodeAddress node, int seq) {
+        return QueryTable.key(netId, node.intValue(), SDN_WISE_CNF_GET_RULES,
+                seq);
+    }
 
-        if (cache.containsKey(key)) {
-            ConfigPacket data = cache.remove(key);
-            return data;
+    // the key of a query and of its answer: the id of the value and, for
+    // indexed values, the index
+    private static long queryKey(ConfigPacket cp, NodeAddress node) {
+        int id = cp.getPayloadAt(0);
+        if (id == SDN_WISE_CNF_GET_RULES) {
+            return rulesKey(cp.getNetId(), node, cp.getPayloadAt(1));
+        } else if (id == SDN_WISE_CNF_GET_RULE_INDEX) {
+            return QueryTable.key(cp.getNetId(), node.intValue(), id,
+                    (cp.getPayloadAt(1) & 0xFF) << 8
+                    | (cp.getPayloadAt(2) & 0xFF));
         } else {
-            throw new TimeoutException("No answer from the node");
+            return QueryTable.key(cp.getNetId(), node.intValue(), id, 0);
         }
     }
 
@@ -748,9 +896,56 @@ public abstract class Controller implements Observer, Runnable, ControllerInterf
     @Override
     public final List<FlowTableEntry> getRules(byte netId, 
             NodeAddress destination) {
+        int total = (SDN_WISE_RLS_MAX + SDN_WISE_CNF_RULES_PER_PACKET - 1)
+                / SDN_WISE_CNF_RULES_PER_PACKET;
+        ConfigPacket cp = new ConfigPacket();
+        cp.setReadRulesValue()
+                .setNetId(netId)
+                .setDst(destination)
+                .setSrc(sinkAddress)
+                .setNxhop(sinkAddress);
+
+        // one request, answered by total packets
+        List<Future<ConfigPacket>> parts = new ArrayList<>(total);
+        for (int seq = 0; seq < total; seq++) {
+            parts.add(expect(rulesKey(netId, destination, seq),
+                    RESPONSE_TIMEOUT));
+        }
+        sendNetworkPacket(cp);
+
         List<FlowTableEntry> list = new ArrayList<>(SDN_WISE_RLS_MAX);
+        List<Future<ConfigPacket>> missing = new ArrayList<>();
+        for (int seq = 0; seq < total; seq++) {
+            List<FlowTableEntry> rules = null;
+            try {
+                rules = waitFor(parts.get(seq)).getRules();
+            } catch (TimeoutException ex) {
+                log(Level.SEVERE, ex.getMessage());
+            }
+            int first = seq * SDN_WISE_CNF_RULES_PER_PACKET;
+            int last = Math.min(first + SDN_WISE_CNF_RULES_PER_PACKET,
+                    SDN_WISE_RLS_MAX);
+            for (int i = first; i < last; i++) {
+                if (rules != null && i - first < rules.size()) {
+                    list.add(i, rules.get(i - first));
+                    missing.add(null);
+                } else {
+                    // nodes not supporting SDN_WISE_CNF_GET_RULES
+                    ConfigPacket rp = new ConfigPacket();
+                    rp.setReadRuleAtPositionValue(i);
+                    list.add(i, null);
+                    missing.add(sendQueryAsync(netId, destination, rp));
+                }
+            }
+        }
         for (int i = 0; i < SDN_WISE_RLS_MAX; i++) {
-            list.add(i, getRuleAtPosition(netId, destination, i));
+            if (missing.get(i) != null) {
+                try {
+                    list.set(i, waitFor(missing.get(i)).getRule());
+                } catch (TimeoutException ex) {
+                    log(Level.SEVERE, ex.getMessage());
+                }
+            }
         }
         return list;
     }
@@ -886,27 +1081,4 @@ public abstract class Controller implements Observer, Runnable, ControllerInterf
     public NetworkGraph getNetworkGraph() {
         return networkGraph;
     }
-
-    private class Worker implements Runnable {
-
-        private final ArrayBlockingQueue<NetworkPacket> bQ;
-        boolean isStopped = false;
-
-        Worker(ArrayBlockingQueue<NetworkPacket> bQ) {
-            this.bQ = bQ;
-        }
-
-        @Override
-        public void run() {
-            while (!isStopped) {
-                try {
-                    NetworkPacket packetToManage = bQ.take();
-                    System.out.println("\n\nPACKET TO MANAGE SRC: " + packetToManage.getSrc().toString()+ "\n\n");
-                    managePacket(packetToManage);
-                } catch (InterruptedException ex) {
-                    isStopped = true;
-                }
-            }
-        }
-    }
 }
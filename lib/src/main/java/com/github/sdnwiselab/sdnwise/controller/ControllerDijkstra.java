@@ -17,26 +17,35 @@
 package com.github.sdnwiselab.sdnwise.controller;
 
 import com.github.sdnwiselab.sdnwise.adapter.Adapter;
-import com.github.sdnwiselab.sdnwise.graphStream.Node;
 import com.github.sdnwiselab.sdnwise.packet.NetworkPacket;
 import com.github.sdnwiselab.sdnwise.topology.NetworkGraph;
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.logging.Level;
 
 /**
  * This class implements the Controller class using the Dijkstra routing
  * algorithm in order to find the shortest path between nodes. When a request
  * from the network is sent, this class sends a SDN_WISE_OPEN_PATH message with
- * the shortest path. No action is taken if the topology of the network changes.
+ * the shortest path. The path is computed on the current snapshot of the
+ * topology, which is taken holding the lock of the NetworkGraph only while it
+ * is copied, so the routing requests are served in parallel with each other
+ * and with the updates of the topology. The shortest path tree of each source
+ * is cached, and repaired with the changes of the topology instead of being
+ * computed again.
  *
  * @author Sebastiano Milardo
  * @version 0.1
  */
 public class ControllerDijkstra extends Controller {
 
-    private final Dijkstra dijkstra;
-    private String lastSource = "";
-    private long lastModification = -1;
+    // the number of sources whose shortest path tree is cached
+    private final static int TREES = 16;
+
+    private final ShortestPathCache trees = new ShortestPathCache(TREES,
+            new SnapshotDijkstra());
 
     /*
      * Constructor method fo ControllerDijkstra.
@@ -46,8 +55,26 @@ public class ControllerDijkstra extends Controller {
      * @param networkGraph NetworkGraph object.
      */
     ControllerDijkstra(ControllerId id, Adapter lower, NetworkGraph networkGraph) {
-        super(id, lower, networkGraph);
-        this.dijkstra = new Dijkstra(Dijkstra.Element.EDGE, null, "length");
+        this(id, lower, networkGraph, PacketDispatcher.fromConf(
+                Collections.<String, String>emptyMap()));
+    }
+
+    /*
+     * Constructor method fo ControllerDijkstra. The messages, including the
+     * routing requests, are handled in parallel by the workers of the
+     * dispatcher.
+     * 
+     * @param id ControllerId object.
+     * @param lower Lower Adpater object.
+     * @param networkGraph NetworkGraph object.
+     * @param dispatcher the pool of workers handling the messages.
+     */
+    ControllerDijkstra(ControllerId id, Adapter lower, NetworkGraph networkGraph,
+            PacketDispatcher dispatcher) {
+        super(id, lower, networkGraph, dispatcher);
+        // synchronous, so that no delta is missed; it lasts as long as the
+        // NetworkGraph, which is closed with the controller
+        networkGraph.getTopologyBus().subscribe(trees);
     }
 
     @Override
@@ -58,34 +85,25 @@ public class ControllerDijkstra extends Controller {
      @Override
     public final void manageRoutingRequest(NetworkPacket data) {
 
-        String destination = data.getNetId() + "." + data.getDst();
-        String source = data.getNetId() + "." + data.getSrc();
+        if (!data.getSrc().equals(data.getDst())) {
 
-        if (!source.equals(destination)) {
-
-            Node sourceNode = networkGraph.getNode(source);
-            Node destinationNode = networkGraph.getNode(destination);
             LinkedList<NodeAddress> path = null;
+            // immutable: no lock is held while the path is computed
+            TopologySnapshot snapshot = networkGraph.getSnapshot();
+            int source = snapshot.indexOf(data.getNetId(), data.getSrc());
+            int destination = snapshot.indexOf(data.getNetId(), data.getDst());
 
-            if (sourceNode != null && destinationNode != null) {
-
-                if (!lastSource.equals(source) || lastModification != networkGraph.getLastModification()) {
-                    results.clear();
-                    dijkstra.init(networkGraph.getGraph());
-                    dijkstra.setSource(networkGraph.getNode(source));
-                    dijkstra.compute();
-                    lastSource = source;
-                    lastModification = networkGraph.getLastModification();
-                } else {
-                    path = results.get(data.getDst());
-                }
+            if (source >= 0 && destination >= 0) {
+                path = trees.getTree(snapshot, source).getPath(destination);
                 if (path == null) {
                     path = new LinkedList<>();
-                    for (Node node : dijkstra.getPathNodes(networkGraph.getNode(destination))) {
-                        path.push((NodeAddress) node.getAttribute("nodeAddress"));
-                    }
-                    System.out.println("[CTRL]: " + path);
-                    results.put(data.getDst(), path);
+                }
+            }
+
+            if (path != null) {
+
+                if (tracer.isLoggable(Level.FINE)) {
+                    tracer.log(Level.FINE, "[CTRL]: {0}", path);
                 }
                 if (path.size() > 1) {
                     sendPath((byte)data.getNetId(), path.getFirst(), path);
@@ -30,7 +30,9 @@ import com.github.sdnwiselab.sdnwise.topology.SocketIoNetworkGraph;
  * adapter is an AdapterUdp while the algorithm can be Dijkstra or static.
  * <p>
  * It is also possible to specify some parameters for the network
- * representation.
+ * representation, and in the algorithm section the number of workers handling
+ * the messages (WORKERS) with the capacity (WORKER_QUEUE) and the policy
+ * (WORKER_POLICY) of their queues.
  *
  * @author Sebastiano Milardo
  * @version 0.1
@@ -71,16 +73,20 @@ public class ControllerFactory {
         String northbound = "";
         int timeout = Integer.parseInt(conf.getMap().get("TIMEOUT"));
         int rssiResolution = Integer.parseInt(conf.getMap().get("RSSI_RESOLUTION"));
+        String window = conf.getMap().get("BATCH_WINDOW");
+        long batchWindow = window == null ? 0 : Long.parseLong(window);
         
         String graph = conf.getMap().get("GRAPH");
         NetworkGraph ng = null;
 
         switch (graph) {
             case "CLI":
-                ng = new NetworkGraph(timeout, rssiResolution);
+                ng = new NetworkGraph(timeout, rssiResolution, batchWindow);
                 break;
             case "WEB":
+                String rate = conf.getMap().get("PUBLISH_RATE");
                 ng = new SocketIoNetworkGraph(timeout, rssiResolution,
+                        batchWindow, rate == null ? 0 : Integer.parseInt(rate),
                         conf.getMap().get("GRAPH_ADDR"));
                 break;
             default:
@@ -103,7 +109,8 @@ public class ControllerFactory {
         Adapter adapt = getLower();
         switch (type) {      
             case "DIJKSTRA":        
-                return new ControllerDijkstra(newId,adapt, ng);
+                return new ControllerDijkstra(newId,adapt, ng,
+                        PacketDispatcher.fromConf(conf.getAlgorithm()));
             default:
                 throw new UnsupportedOperationException("Error in Configuration file");
         }
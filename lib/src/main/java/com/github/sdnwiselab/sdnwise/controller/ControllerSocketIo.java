@@ -23,10 +23,13 @@ import com.github.sdnwiselab.sdnwise.flowtable.FlowTableAction;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableStats;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow;
+import com.github.sdnwiselab.sdnwise.packet.ConfigPacket;
 import com.github.sdnwiselab.sdnwise.topology.SocketIoNetworkGraph;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +43,15 @@ public class ControllerSocketIo {
     private Controller controller;
     private Socket socket;
 
+    private ConfigPacket waitFor(Future<ConfigPacket> query) {
+        try {
+            return controller.waitFor(query);
+        } catch (TimeoutException ex) {
+            controller.log(Level.SEVERE, ex.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Constructor Method for this Class.
      * 
@@ -123,22 +135,36 @@ public class ControllerSocketIo {
                     byte netId = (byte)Integer.parseInt(idArray[0]);
                     NodeAddress addr = new NodeAddress(idArray[1] + "." + idArray[2]);
 
+                    // the four queries are sent together
+                    Future<ConfigPacket> beaconQuery = controller.sendQueryAsync(
+                            netId, addr, new ConfigPacket().setReadBeaconPeriodValue());
+                    Future<ConfigPacket> reportQuery = controller.sendQueryAsync(
+                            netId, addr, new ConfigPacket().setReadReportPeriodValue());
+                    Future<ConfigPacket> ttlQuery = controller.sendQueryAsync(
+                            netId, addr, new ConfigPacket().setReadDefaultTtlMaxValue());
+                    Future<ConfigPacket> rssiQuery = controller.sendQueryAsync(
+                            netId, addr, new ConfigPacket().setReadDefaultRssiMinValue());
+                    ConfigPacket beacon = waitFor(beaconQuery);
+                    ConfigPacket report = waitFor(reportQuery);
+                    ConfigPacket ttl = waitFor(ttlQuery);
+                    ConfigPacket rssi = waitFor(rssiQuery);
+
                     String flowTableHtml = "<table class=\"ts\">"
                             + "<tr>"
                             + "	<td class=\"ts-odd2\">Beacon Period</td>"
-                            + "<td class=\"ts-odd1\">" + controller.getNodeBeaconPeriod(netId, addr) + "</td>"
+                            + "<td class=\"ts-odd1\">" + (beacon == null ? -1 : beacon.getBeaconPeriodValue()) + "</td>"
                             + "<td class=\"ts-odd1\">s</td>"
                             + "</tr><tr>"
                             + "	<td class=\"ts-even2\">Report Period</td>"
-                            + "<td class=\"ts-even1\">" + controller.getNodeReportPeriod(netId, addr) + "</td>"
+                            + "<td class=\"ts-even1\">" + (report == null ? -1 : report.getReportPeriodValue()) + "</td>"
                             + "<td class=\"ts-even1\">s</td>"
                             + "</tr><tr>"
                             + "	<td class=\"ts-odd2\">TTL Max</td>"
-                            + "<td class=\"ts-odd1\">" + controller.getNodeTtlMax(netId, addr) + "</td>"
+                            + "<td class=\"ts-odd1\">" + (ttl == null ? -1 : ttl.getDefaultTtlMaxValue()) + "</td>"
                             + "<td class=\"ts-odd1\">n. of hops</td>"
                             + "</tr><tr>"
                             + "	<td class=\"ts-even2\">RSSI Min</td>"
-                            + "<td class=\"ts-even1\">" + controller.getNodeRssiMin(netId, addr) + "</td>"
+                            + "<td class=\"ts-even1\">" + (rssi == null ? -1 : rssi.getDefaultRssiMinValue()) + "</td>"
                             + "<td class=\"ts-even1\">dBm</td>"
                             + "</tr>";
 
@@ -123,7 +123,7 @@ import java.util.Stack;
  *
  * @author Stefan Balev
  */
-public class Dijkstra implements Algorithm {
+public class Dijkstra implements ShortestPaths {
     protected static class Data {
         FibonacciHeap<Double, Node>.Node fn;
         Edge edgeFromParent;
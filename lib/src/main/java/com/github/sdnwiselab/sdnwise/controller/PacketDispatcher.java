@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.packet.PacketView;
+import static com.github.sdnwiselab.sdnwise.packet.NetworkPacket.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Distributes the messages received by the Controller among a pool of
+ * workers. Each worker has its own queue and its own PacketView.
+ * <p>
+ * A message goes to the worker chosen by its kind, report, config reply or
+ * any other message, and by the NetworkId and the address of its source.
+ * The messages of a kind sent by a node are therefore handled in order by
+ * the same worker, while a routing request that takes a long time to be
+ * served only delays the messages of the same shard.
+ * <p>
+ * The options read from the algorithm section of the configuration are:
+ * <ol>
+ * <li>WORKERS, the number of workers</li>
+ * <li>WORKER_QUEUE, the capacity of the queue of each worker</li>
+ * <li>WORKER_POLICY, either DROP or BLOCK, applied when the queue of a worker
+ * is full</li>
+ * </ol>
+ */
+final class PacketDispatcher {
+
+    /**
+     * Policies applied when the queue of a worker is full.
+     */
+    final static int DROP = 0,
+            BLOCK = 1;
+
+    final static int DFLT_CAPACITY = 1000;
+
+    private final static int REPORTS = 0,
+            CONFIGS = 1,
+            OTHERS = 2;
+
+    /**
+     * Handles the messages taken by a worker.
+     */
+    interface Handler {
+
+        /**
+         * Handles a message.
+         *
+         * @param packet a view of the message, owned by the worker.
+         * @param data the message.
+         */
+        void handle(PacketView packet, byte[] data);
+    }
+
+    private final int policy;
+    private final Worker[] workers;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    // messages dispatched and not yet handled
+    private final AtomicLong pending = new AtomicLong();
+    private volatile boolean draining;
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param workers the number of workers.
+     * @param capacity the capacity of the queue of each worker.
+     * @param policy DROP or BLOCK.
+     */
+    PacketDispatcher(int workers, int capacity, int policy) {
+        if (workers < 1 || capacity < 1
+                || (policy != DROP && policy != BLOCK)) {
+            throw new IllegalArgumentException("Invalid dispatcher configuration");
+        }
+        this.policy = policy;
+        this.workers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Worker(this, capacity);
+        }
+    }
+
+    /**
+     * Creates a dispatcher using the options of a configuration. Missing
+     * options take their default values: a worker per processor, each with a
+     * BLOCK queue of DFLT_CAPACITY messages.
+     *
+     * @param conf the configuration.
+     * @return a new PacketDispatcher
+     */
+    static PacketDispatcher fromConf(Map<String, String> conf) {
+        String workers = conf.get("WORKERS");
+        String capacity = conf.get("WORKER_QUEUE");
+        String policy = conf.get("WORKER_POLICY");
+        return new PacketDispatcher(
+                workers == null ? Runtime.getRuntime().availableProcessors()
+                        : Integer.parseInt(workers),
+                capacity == null ? DFLT_CAPACITY : Integer.parseInt(capacity),
+                "DROP".equalsIgnoreCase(policy) ? DROP : BLOCK);
+    }
+
+    /**
+     * Starts the workers.
+     *
+     * @param name the prefix of the names of the threads.
+     * @param handler the handler of the messages.
+     */
+    synchronized void start(String name, Handler handler) {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].start(name + " " + i, handler);
+        }
+    }
+
+    /**
+     * Enqueues a message in the queue of its worker. If the queue is full the
+     * message is dropped or the caller waits, according to the policy.
+     *
+     * @param data the message.
+     * @return false if the message has been dropped
+     */
+    boolean dispatch(byte[] data) {
+        return enqueue(workers[shard(data)].queue, data);
+    }
+
+    /**
+     * Enqueues a copy of a message read from a view, such as the ones given
+     * to a PacketListener, which may be reused as soon as this method
+     * returns. The worker is chosen reading the view, so with the DROP policy
+     * a message for a full queue is dropped without being copied.
+     *
+     * @param packet a view of the message, from its position to its limit.
+     * @return false if the message has been dropped
+     */
+    boolean dispatch(ByteBuffer packet) {
+        ArrayBlockingQueue<byte[]> queue = workers[shard(packet)].queue;
+        if (policy == DROP && queue.remainingCapacity() == 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        return enqueue(queue, data);
+    }
+
+    private boolean enqueue(ArrayBlockingQueue<byte[]> queue, byte[] data) {
+        pending.incrementAndGet();
+        if (!queue.offer(data)) {
+            if (policy == DROP) {
+                handled();
+                dropped.incrementAndGet();
+                return false;
+            }
+            blocked.incrementAndGet();
+            try {
+                queue.put(data);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                handled();
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        dispatched.incrementAndGet();
+        return true;
+    }
+
+    private void handled() {
+        if (pending.decrementAndGet() == 0 && draining) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the workers have handled every message dispatched.
+     *
+     * @param timeout the maximum time to wait, in milliseconds.
+     * @return false if some message is still queued when the time is up
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    boolean awaitEmpty(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeout);
+        draining = true;
+        try {
+            synchronized (pending) {
+                long left;
+                while (pending.get() > 0
+                        && (left = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(pending, left);
+                }
+                return pending.get() == 0;
+            }
+        } finally {
+            draining = false;
+        }
+    }
+
+    /**
+     * Returns the number of messages dispatched and not yet handled.
+     *
+     * @return the messages queued or being handled
+     */
+    long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the worker of a message. Messages too short to have a header
+     * go to the first worker, which reports them.
+     *
+     * @param data the message.
+     * @return the index of the worker
+     */
+    int shard(byte[] data) {
+        if (workers.length == 1 || data.length <= SDN_WISE_TYPE) {
+            return 0;
+        }
+        return shard(data[SDN_WISE_TYPE], data[SDN_WISE_NET_ID],
+                data[SDN_WISE_SRC_H], data[SDN_WISE_SRC_L]);
+    }
+
+    /**
+     * Returns the worker of a message read from a view, without changing
+     * the view.
+     *
+     * @param packet a view of the message, from its position to its limit.
+     * @return the index of the worker
+     */
+    int shard(ByteBuffer packet) {
+        if (workers.length == 1 || packet.remaining() <= SDN_WISE_TYPE) {
+            return 0;
+        }
+        int p = packet.position();
+        return shard(packet.get(p + SDN_WISE_TYPE),
+                packet.get(p + SDN_WISE_NET_ID),
+                packet.get(p + SDN_WISE_SRC_H), packet.get(p + SDN_WISE_SRC_L));
+    }
+
+    private int shard(byte type, byte netId, byte srcH, byte srcL) {
+        int kind;
+        switch (type) {
+            case SDN_WISE_REPORT:
+                kind = REPORTS;
+                break;
+            case SDN_WISE_CONFIG:
+                kind = CONFIGS;
+                break;
+            default:
+                kind = OTHERS;
+                break;
+        }
+        int h = (kind << 24) | ((netId & 0xFF) << 16)
+                | ((srcH & 0xFF) << 8)
+                | (srcL & 0xFF);
+        h *= 0x9E3779B9;
+        return (h >>> 16) % workers.length;
+    }
+
+    /**
+     * Stops the workers. The messages still queued are discarded: call
+     * awaitEmpty first to have them handled.
+     */
+    synchronized void close() {
+        for (Worker w : workers) {
+            w.stop();
+        }
+    }
+
+    int getWorkers() {
+        return workers.length;
+    }
+
+    int getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the number of messages waiting in the queue of each worker.
+     *
+     * @return the sizes of the queues
+     */
+    int[] getQueueSizes() {
+        int[] sizes = new int[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            sizes[i] = workers[i].queue.size();
+        }
+        return sizes;
+    }
+
+    long getDispatched() {
+        return dispatched.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getBlocked() {
+        return blocked.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PacketDispatcher{workers=" + workers.length
+                + ", policy=" + (policy == DROP ? "DROP" : "BLOCK")
+                + ", dispatched=" + dispatched
+                + ", dropped=" + dropped
+                + ", blocked=" + blocked + "}";
+    }
+
+    private static final class Worker implements Runnable {
+
+        private final PacketDispatcher owner;
+        private final ArrayBlockingQueue<byte[]> queue;
+        private final PacketView packet = new PacketView();
+        private Handler handler;
+        private Thread thread;
+
+        Worker(PacketDispatcher owner, int capacity) {
+            this.owner = owner;
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void start(String name, Handler handler) {
+            if (thread != null) {
+                return;
+            }
+            this.handler = handler;
+            thread = new Thread(this, name);
+            thread.start();
+        }
+
+        void stop() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+            while (queue.poll() != null) {
+                owner.handled();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                byte[] data;
+                try {
+                    data = queue.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                try {
+                    handler.handle(packet.wrap(data), data);
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(PacketDispatcher.class.getName())
+                            .log(Level.SEVERE, ex.getMessage());
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(PacketDispatcher.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                } finally {
+                    owner.handled();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.packet.ConfigPacket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending answer to a ConfigPacket query sent by the Controller. The
+ * future is completed by a worker of the Controller as soon as the
+ * matching reply is received, or it fails with a TimeoutException when the
+ * QueryTable finds its deadline expired.
+ */
+final class QueryFuture implements Future<ConfigPacket> {
+
+    final long key;
+    final long sent;
+    final long deadline;
+    // the next query waiting for the same key, guarded by the QueryTable
+    QueryFuture next;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ConfigPacket response;
+    private Exception failure;
+    private boolean cancelled;
+
+    /**
+     * Creates a pending answer.
+     *
+     * @param key the packed key of the query.
+     * @param sent the nanoTime of the clock of the QueryTable when the
+     * query is sent.
+     * @param deadline the nanoTime of the clock of the QueryTable after
+     * which the query fails.
+     */
+    QueryFuture(long key, long sent, long deadline) {
+        this.key = key;
+        this.sent = sent;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Completes this future with the reply of the node.
+     *
+     * @param response the reply of the node.
+     * @return true if this call completed the future.
+     */
+    synchronized boolean complete(ConfigPacket response) {
+        if (isDone()) {
+            return false;
+        }
+        this.response = response;
+        finish();
+        return true;
+    }
+
+    /**
+     * Completes this future with an error.
+     *
+     * @param failure the cause of the failure.
+     * @return true if this call completed the future.
+     */
+    synchronized boolean fail(Exception failure) {
+        if (isDone()) {
+            return false;
+        }
+        this.failure = failure;
+        finish();
+        return true;
+    }
+
+    private void finish() {
+        done.countDown();
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        finish();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public ConfigPacket get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public ConfigPacket get(long time, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(time, unit)) {
+            throw new TimeoutException("No answer from the node");
+        }
+        return result();
+    }
+
+    private synchronized ConfigPacket result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return response;
+    }
+}
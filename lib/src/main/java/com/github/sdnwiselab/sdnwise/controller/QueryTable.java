@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.metrics.Counter;
+import com.github.sdnwiselab.sdnwise.metrics.Metrics;
+import com.github.sdnwiselab.sdnwise.util.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The queries sent by the Controller and still waiting for an answer.
+ * <p>
+ * A query is identified by a key packing the NetworkId and the address of
+ * the node, the id of the configuration value and an index, such as the
+ * sequence number of a part of the flow table. The queries are kept in
+ * open addressing tables of long keys, split in stripes each with its own
+ * lock. Equal queries are chained in the order they were sent, so that
+ * their answers are matched oldest first.
+ * <p>
+ * Every query has a deadline. A single task, scheduled only while some query
+ * is pending, removes the expired queries and fails them with a
+ * TimeoutException. The task runs at most every SWEEP_TICK milliseconds, so
+ * a query may fail up to SWEEP_TICK milliseconds after its deadline. The
+ * deadlines follow the Clock given to the table.
+ */
+final class QueryTable {
+
+    final static long SWEEP_TICK = 10;
+
+    private final static int STRIPES = 16;
+    private final static int INITIAL_CAPACITY = 16;
+    private final static Counter TIMEOUTS
+            = Metrics.counter("controller.query.timeouts");
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Clock clock;
+    private final ScheduledExecutorService sweeper;
+    // deadline of the next sweep, Long.MAX_VALUE if none is scheduled
+    private long nextSweep = Long.MAX_VALUE;
+    private boolean closed;
+
+    private final Runnable sweepTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sweep();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(QueryTable.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+        }
+    };
+
+    QueryTable(Clock clock) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.clock = clock;
+        sweeper = clock.newScheduler("Controller-timeouts", 1);
+    }
+
+    /**
+     * Packs the fields identifying a query in a key.
+     *
+     * @param netId the NetworkId of the node.
+     * @param address the address of the node.
+     * @param id the id of the configuration value.
+     * @param index the index of the value, or 0.
+     * @return the key of the query
+     */
+    static long key(int netId, int address, int id, int index) {
+        return ((long) (netId & 0xFF) << 40)
+                | ((long) (address & 0xFFFF) << 24)
+                | ((id & 0xFF) << 16)
+                | (index & 0xFFFF);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash >>> 28) & (STRIPES - 1)];
+    }
+
+    /**
+     * Registers a query before it is sent, so that its answer can't be
+     * lost.
+     *
+     * @param key the key of the query.
+     * @param timeout the time to wait for the answer, in milliseconds.
+     * @return the pending answer
+     */
+    QueryFuture expect(long key, long timeout) {
+        long sent = clock.nanoTime();
+        long deadline = sent + TimeUnit.MILLISECONDS.toNanos(timeout);
+        QueryFuture query = new QueryFuture(key, sent, deadline);
+        int h = hash(key);
+        Stripe s = stripe(h);
+        s.lock.lock();
+        try {
+            s.add(query, h);
+        } finally {
+            s.lock.unlock();
+        }
+        scheduleSweep(deadline);
+        return query;
+    }
+
+    /**
+     * Removes the oldest query waiting for a key.
+     *
+     * @param key the key of the answer.
+     * @return the query, or null if no query is waiting for the key
+     */
+    QueryFuture poll(long key) {
+        int h = hash(key);
+        Stripe s = stripe(h);
+        s.lock.lock();
+        try {
+            return s.poll(key, h);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a query, for instance because nobody waits for it anymore.
+     *
+     * @param query the query.
+     */
+    void remove(QueryFuture query) {
+        int h = hash(query.key);
+        Stripe s = stripe(h);
+        s.lock.lock();
+        try {
+            s.remove(query, h);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queries waiting for an answer.
+     *
+     * @return the number of queries in the table
+     */
+    int size() {
+        int n = 0;
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                n += s.queries;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Cancels all the queries and stops the sweeping thread.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        sweeper.shutdownNow();
+        for (QueryFuture query : collect(Long.MAX_VALUE, null)) {
+            query.cancel(false);
+        }
+    }
+
+    private void scheduleSweep(long deadline) {
+        long now = clock.nanoTime();
+        long at = Math.max(deadline,
+                now + TimeUnit.MILLISECONDS.toNanos(SWEEP_TICK));
+        synchronized (this) {
+            if (closed || at - nextSweep >= 0) {
+                return;
+            }
+            nextSweep = at;
+        }
+        try {
+            sweeper.schedule(sweepTask, at - now, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ex) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * Fails the expired queries and schedules the next sweep at the earliest
+     * deadline left.
+     */
+    private void sweep() {
+        synchronized (this) {
+            nextSweep = Long.MAX_VALUE;
+        }
+        long[] next = {Long.MAX_VALUE};
+        List<QueryFuture> expired = collect(clock.nanoTime(), next);
+        for (QueryFuture query : expired) {
+            if (query.fail(new TimeoutException("No answer from the node"))) {
+                TIMEOUTS.inc();
+            }
+        }
+        if (next[0] != Long.MAX_VALUE) {
+            scheduleSweep(next[0]);
+        }
+    }
+
+    /**
+     * Removes the queries expired at a given time, together with the ones
+     * already completed.
+     *
+     * @param now the time, Long.MAX_VALUE to remove every query.
+     * @param next receives the earliest deadline of the queries left, or
+     * null.
+     * @return the queries removed and not completed yet
+     */
+    private List<QueryFuture> collect(long now, long[] next) {
+        List<QueryFuture> removed = new ArrayList<>();
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                s.collect(now, next, removed);
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryTable{size=" + size() + "}";
+    }
+
+    /**
+     * A table of chains of queries with linear probing. The slots are
+     * chosen by the low bits of the hash of the key, the stripe by its high
+     * bits.
+     */
+    private static final class Stripe {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private QueryFuture[] heads = new QueryFuture[INITIAL_CAPACITY];
+        private int used;
+        private int queries;
+
+        private int slot(int hash) {
+            return hash & (heads.length - 1);
+        }
+
+        private int find(long key, int hash) {
+            int mask = heads.length - 1;
+            for (int i = slot(hash);; i = (i + 1) & mask) {
+                if (heads[i] == null || keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+        void add(QueryFuture query, int hash) {
+            int i = find(query.key, hash);
+            if (heads[i] == null) {
+                keys[i] = query.key;
+                heads[i] = query;
+                if (++used * 4 > heads.length * 3) {
+                    resize();
+                }
+            } else {
+                QueryFuture tail = heads[i];
+                while (tail.next != null) {
+                    tail = tail.next;
+                }
+                tail.next = query;
+            }
+            queries++;
+        }
+
+        QueryFuture poll(long key, int hash) {
+            int i = find(key, hash);
+            QueryFuture query = heads[i];
+            if (query == null) {
+                return null;
+            }
+            if (query.next == null) {
+                delete(i);
+            } else {
+                heads[i] = query.next;
+                query.next = null;
+            }
+            queries--;
+            return query;
+        }
+
+        void remove(QueryFuture query, int hash) {
+            int i = find(query.key, hash);
+            QueryFuture prev = null;
+            for (QueryFuture q = heads[i]; q != null; prev = q, q = q.next) {
+                if (q == query) {
+                    unlink(i, prev, q);
+                    return;
+                }
+            }
+        }
+
+        void collect(long now, long[] next, List<QueryFuture> removed) {
+            int i = 0;
+            while (i < heads.length) {
+                QueryFuture prev = null;
+                QueryFuture q = heads[i];
+                boolean deleted = false;
+                while (q != null) {
+                    QueryFuture following = q.next;
+                    boolean expired = now == Long.MAX_VALUE
+                            || q.deadline - now <= 0;
+                    if (expired || q.isDone()) {
+                        if (!q.isDone()) {
+                            removed.add(q);
+                        }
+                        deleted = unlink(i, prev, q);
+                        if (deleted) {
+                            break;
+                        }
+                    } else {
+                        if (next != null && (next[0] == Long.MAX_VALUE
+                                || q.deadline - next[0] < 0)) {
+                            next[0] = q.deadline;
+                        }
+                        prev = q;
+                    }
+                    q = following;
+                }
+                // a deleted slot may have been filled by a following one
+                if (!deleted) {
+                    i++;
+                }
+            }
+        }
+
+        /**
+         * Removes a query from the chain of a slot.
+         *
+         * @return true if the slot has been deleted
+         */
+        private boolean unlink(int i, QueryFuture prev, QueryFuture q) {
+            queries--;
+            if (prev != null) {
+                prev.next = q.next;
+                q.next = null;
+                return false;
+            }
+            if (q.next != null) {
+                heads[i] = q.next;
+                q.next = null;
+                return false;
+            }
+            delete(i);
+            return true;
+        }
+
+        /**
+         * Empties a slot, moving back the following entries of its probe
+         * sequence so that no lookup stops early.
+         */
+        private void delete(int i) {
+            int mask = heads.length - 1;
+            int j = i;
+            for (;;) {
+                j = (j + 1) & mask;
+                if (heads[j] == null) {
+                    break;
+                }
+                int k = slot(hash(keys[j]));
+                boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+                if (!stays) {
+                    keys[i] = keys[j];
+                    heads[i] = heads[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            heads[i] = null;
+            used--;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            QueryFuture[] oldHeads = heads;
+            keys = new long[oldKeys.length * 2];
+            heads = new QueryFuture[oldHeads.length * 2];
+            for (int i = 0; i < oldHeads.length; i++) {
+                if (oldHeads[i] != null) {
+                    int j = find(oldKeys[i], hash(oldKeys[i]));
+                    keys[j] = oldKeys[i];
+                    heads[j] = oldHeads[i];
+                }
+            }
+        }
+    }
+}
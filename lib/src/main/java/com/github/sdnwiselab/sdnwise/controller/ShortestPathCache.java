@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
+import com.github.sdnwiselab.sdnwise.metrics.Counter;
+import com.github.sdnwiselab.sdnwise.metrics.Metrics;
+import com.github.sdnwiselab.sdnwise.topology.TopologyDelta;
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches the shortest path trees computed on the snapshots of the topology
+ * by a SnapshotShortestPaths algorithm. The tree of each source is kept in a
+ * TreeCache until it is evicted, whatever the topology it was computed on.
+ * <p>
+ * The cache subscribes to the topology bus of the NetworkGraph and keeps the
+ * last LOG deltas published. A tree requested on a newer snapshot is
+ * repaired by the algorithm with the deltas from the epoch of its snapshot
+ * to the epoch of the newer one, so that an RSSI change does not compute
+ * every tree again. The tree is computed from scratch if some delta is
+ * missing, for instance because the snapshot was taken before the delta
+ * was published, or if the algorithm can not repair it.
+ * <p>
+ * The cache is thread safe. Two threads missing the same tree at the same
+ * time both compute it and the last one is kept.
+ */
+public final class ShortestPathCache implements Subscriber<TopologyDelta> {
+
+    private final static Counter HITS
+            = Metrics.counter("controller.routing.cache.hits");
+    private final static Counter MISSES
+            = Metrics.counter("controller.routing.cache.misses");
+    private final static Counter REPAIRS
+            = Metrics.counter("controller.routing.cache.repairs");
+
+    // the number of deltas kept to repair the trees
+    private final static int LOG = 64;
+    // the trees are checked against the epoch of their snapshot here
+    private final static long ANY_EPOCH = 0;
+
+    private final TreeCache<ShortestPathTree> cache;
+    private final SnapshotShortestPaths algorithm;
+    // the last deltas published, oldest first, guarded by itself
+    private final ArrayDeque<TopologyDelta> log = new ArrayDeque<>(LOG);
+
+    /**
+     * Creates a new cache. The trees are repaired only once the cache is
+     * subscribed to the topology bus of the NetworkGraph the snapshots come
+     * from, without an executor so that no delta is dropped.
+     *
+     * @param capacity the maximum number of trees kept.
+     * @param algorithm the algorithm computing the trees.
+     */
+    public ShortestPathCache(int capacity, SnapshotShortestPaths algorithm) {
+        this.cache = new TreeCache<>(capacity);
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public void onEvent(TopologyDelta delta) {
+        synchronized (log) {
+            if (log.size() == LOG) {
+                log.poll();
+            }
+            log.add(delta);
+        }
+    }
+
+    /**
+     * Returns the shortest path tree of a source.
+     *
+     * @param snapshot the topology.
+     * @param source the index of the source in the snapshot.
+     * @return the tree
+     */
+    public ShortestPathTree getTree(TopologySnapshot snapshot, int source) {
+        int key = TreeCache.key(snapshot.getNetId(source),
+                snapshot.getAddress(source));
+        ShortestPathTree tree = cache.get(key, ANY_EPOCH);
+        if (tree != null) {
+            long epoch = tree.getSnapshot().getEpoch();
+            if (epoch == snapshot.getEpoch()) {
+                HITS.inc();
+                return tree;
+            }
+            if (epoch < snapshot.getEpoch()) {
+                List<TopologyDelta> deltas = deltas(epoch, snapshot.getEpoch());
+                if (deltas != null) {
+                    ShortestPathTree repaired = algorithm.repair(tree,
+                            snapshot, deltas);
+                    if (repaired != null) {
+                        REPAIRS.inc();
+                        cache.put(key, ANY_EPOCH, repaired);
+                        return repaired;
+                    }
+                }
+            }
+        }
+        MISSES.inc();
+        ShortestPathTree computed = algorithm.compute(snapshot, source);
+        if (tree == null || tree.getSnapshot().getEpoch() < snapshot.getEpoch()) {
+            cache.put(key, ANY_EPOCH, computed);
+        }
+        return computed;
+    }
+
+    /**
+     * Returns the deltas leading from a topology to a newer one.
+     *
+     * @return the deltas in order, or null if some of them is missing
+     */
+    private List<TopologyDelta> deltas(long from, long to) {
+        List<TopologyDelta> deltas = new ArrayList<>();
+        synchronized (log) {
+            long epoch = from;
+            for (TopologyDelta delta : log) {
+                if (delta.getPreviousEpoch() == epoch) {
+                    deltas.add(delta);
+                    epoch = delta.getEpoch();
+                    if (epoch == to) {
+                        return deltas;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cache of the trees. Its hits count the trees found, either
+     * up to date or repaired, while the counters of the metrics registry
+     * tell them apart.
+     *
+     * @return the cache of the trees
+     */
+    public TreeCache<?> getCache() {
+        return cache;
+    }
+}
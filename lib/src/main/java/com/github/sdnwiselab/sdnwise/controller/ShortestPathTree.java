@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.LinkedList;
+
+/**
+ * A shortest path tree computed on a TopologySnapshot. The nodes are indexed
+ * as the nodes of the snapshot: the parent of the source is the source
+ * itself, while a node not reachable from the source has parent -1 and
+ * distance UNREACHABLE.
+ * <p>
+ * A tree is immutable, so it can be shared by the threads routing on the
+ * same snapshot.
+ */
+public final class ShortestPathTree {
+
+    /**
+     * The distance of the nodes not reachable from the source.
+     */
+    public final static int UNREACHABLE = Integer.MAX_VALUE;
+
+    final TopologySnapshot snapshot;
+    final int source;
+    final int[] parent;
+    final int[] dist;
+
+    /**
+     * Creates a tree. The arrays are not copied and must not be modified
+     * afterwards.
+     *
+     * @param snapshot the topology the tree was computed on.
+     * @param source the index of the source in the snapshot.
+     * @param parent the parents of the nodes.
+     * @param dist the lengths of the shortest paths from the source.
+     */
+    public ShortestPathTree(TopologySnapshot snapshot, int source,
+            int[] parent, int[] dist) {
+        if (parent.length != snapshot.size() || dist.length != snapshot.size()
+                || source < 0 || source >= snapshot.size()) {
+            throw new IllegalArgumentException("Invalid tree");
+        }
+        this.snapshot = snapshot;
+        this.source = source;
+        this.parent = parent;
+        this.dist = dist;
+    }
+
+    public TopologySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getDistance(int node) {
+        return dist[node];
+    }
+
+    /**
+     * Returns the path from the source to a node.
+     *
+     * @param target the index of the node in the snapshot.
+     * @return the addresses of the nodes of the path, starting from the
+     * source, or null if the node is not reachable
+     */
+    public LinkedList<NodeAddress> getPath(int target) {
+        if (parent[target] < 0) {
+            return null;
+        }
+        LinkedList<NodeAddress> path = new LinkedList<>();
+        for (int n = target; n != source; n = parent[n]) {
+            path.push(snapshot.getAddress(n));
+        }
+        path.push(snapshot.getAddress(source));
+        return path;
+    }
+}
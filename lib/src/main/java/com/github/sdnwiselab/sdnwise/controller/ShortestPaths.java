@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.graphStream.Node;
+
+/**
+ * An Algorithm computing the shortest path tree rooted in a source node. The
+ * source is set before calling compute, then the tree is read through the
+ * parent of each node.
+ */
+public interface ShortestPaths extends Algorithm {
+
+    /**
+     * Sets the source node of the tree.
+     *
+     * @param source the source node.
+     */
+    void setSource(Node source);
+
+    /**
+     * Returns the source node of the tree.
+     *
+     * @param <T> the type of the nodes.
+     * @return the source node
+     */
+    <T extends Node> T getSource();
+
+    /**
+     * Returns the length of the shortest path from the source to a node.
+     *
+     * @param target the target node.
+     * @return the length of the path, or infinity if the node can not be
+     * reached
+     */
+    double getPathLength(Node target);
+
+    /**
+     * Returns the node preceding a node in the shortest path from the source.
+     *
+     * @param <T> the type of the nodes.
+     * @param target the target node.
+     * @return the parent of the node, or null for the source and for the
+     * nodes that can not be reached
+     */
+    <T extends Node> T getParent(Node target);
+
+    /**
+     * Returns the nodes of the shortest path from the source to a node, from
+     * the target back to the source.
+     *
+     * @param <T> the type of the nodes.
+     * @param target the target node.
+     * @return the nodes of the path, empty if the node can not be reached
+     */
+    <T extends Node> Iterable<T> getPathNodes(Node target);
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.topology.TopologyDelta;
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the shortest path trees on a TopologySnapshot, following the
+ * links from their source to their target and using their "length". The
+ * instances have no state, so the trees of different sources are computed
+ * by different threads at the same time without any lock.
+ * <p>
+ * A tree is repaired on a newer snapshot by invalidating the subtrees hanging
+ * from the tree links removed or made longer, and by running Dijkstra only
+ * from the borders of those subtrees and from the links added or made
+ * shorter. An RSSI change on a link outside of the tree costs a copy of the
+ * tree and no search at all.
+ */
+final class SnapshotDijkstra implements SnapshotShortestPaths {
+
+    // a repair is tried only if at most one link in MAX_CHANGES changed
+    private final static int MAX_CHANGES = 4;
+
+    @Override
+    public ShortestPathTree compute(TopologySnapshot snapshot, int source) {
+        int n = snapshot.size();
+        int[] parent = new int[n];
+        int[] dist = new int[n];
+        Arrays.fill(parent, -1);
+        Arrays.fill(dist, ShortestPathTree.UNREACHABLE);
+        Heap heap = new Heap(snapshot.getLinkCount() + 1);
+        parent[source] = source;
+        dist[source] = 0;
+        heap.push(0, source);
+        propagate(snapshot, heap, parent, dist);
+        return new ShortestPathTree(snapshot, source, parent, dist);
+    }
+
+    @Override
+    public ShortestPathTree repair(ShortestPathTree tree,
+            TopologySnapshot snapshot, List<TopologyDelta> deltas) {
+        TopologySnapshot old = tree.getSnapshot();
+        int changes = 0;
+        for (TopologyDelta delta : deltas) {
+            changes += delta.size();
+        }
+        int source = snapshot.indexOf(old.getKey(tree.getSource()));
+        if (source < 0 || changes > snapshot.getLinkCount() / MAX_CHANGES) {
+            return null;
+        }
+
+        // the old tree, numbered as the new snapshot: the new nodes are not
+        // reachable and the nodes whose parent was removed are broken
+        int n = snapshot.size();
+        int[] parent;
+        int[] dist;
+        Nodes broken = new Nodes();
+        if (!renumbers(deltas)) {
+            parent = tree.parent.clone();
+            dist = tree.dist.clone();
+        } else {
+            parent = new int[n];
+            dist = new int[n];
+            Arrays.fill(parent, -1);
+            Arrays.fill(dist, ShortestPathTree.UNREACHABLE);
+            int[] index = new int[old.size()];
+            for (int i = 0, j = 0; i < old.size(); i++) {
+                int key = old.getKey(i);
+                while (j < n && snapshot.getKey(j) < key) {
+                    j++;
+                }
+                index[i] = j < n && snapshot.getKey(j) == key ? j : -1;
+            }
+            for (int i = 0; i < old.size(); i++) {
+                int v = index[i];
+                if (v >= 0 && tree.parent[i] >= 0) {
+                    dist[v] = tree.dist[i];
+                    parent[v] = index[tree.parent[i]];
+                    if (parent[v] < 0) {
+                        broken.add(v);
+                    }
+                }
+            }
+        }
+
+        // the tree links removed or made longer break the tree, including
+        // the ones of the nodes removed and added again
+        for (TopologyDelta delta : deltas) {
+            damage(snapshot, delta.getRemovedLinks(), parent, dist, broken);
+            damage(snapshot, delta.getUpdatedLinks(), parent, dist, broken);
+            damage(snapshot, delta.getAddedLinks(), parent, dist, broken);
+        }
+
+        Heap heap = new Heap(broken.size + changes + 1);
+        if (broken.size > 0) {
+            // the subtrees of the broken nodes are not reachable anymore,
+            // they are reached again from the nodes left in the tree
+            broken = invalidate(parent, dist, broken, source);
+            for (int i = 0; i < broken.size; i++) {
+                int v = broken.nodes[i];
+                for (int j = 0; j < snapshot.getInDegree(v); j++) {
+                    int u = snapshot.getInNeighbour(v, j);
+                    if (dist[u] != ShortestPathTree.UNREACHABLE) {
+                        int alt = dist[u] + snapshot.getInLength(v, j);
+                        if (alt < dist[v]) {
+                            dist[v] = alt;
+                            parent[v] = u;
+                        }
+                    }
+                }
+                if (parent[v] >= 0) {
+                    heap.push(dist[v], v);
+                }
+            }
+        }
+        // and the links added or made shorter may give shorter paths
+        for (TopologyDelta delta : deltas) {
+            improve(snapshot, delta.getUpdatedLinks(), heap, parent, dist);
+            improve(snapshot, delta.getAddedLinks(), heap, parent, dist);
+        }
+        propagate(snapshot, heap, parent, dist);
+        return new ShortestPathTree(snapshot, source, parent, dist);
+    }
+
+    /**
+     * Tells if some node was added or removed, so that the nodes of the two
+     * snapshots are numbered differently.
+     */
+    private static boolean renumbers(List<TopologyDelta> deltas) {
+        for (TopologyDelta delta : deltas) {
+            if (delta.getAddedNodes().length > 0
+                    || delta.getRemovedNodes().length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the targets of the tree links among the given ones that are no
+     * longer in the snapshot or are longer than they were.
+     */
+    private static void damage(TopologySnapshot snapshot, long[] links,
+            int[] parent, int[] dist, Nodes broken) {
+        for (long link : links) {
+            int u = snapshot.indexOf(TopologyDelta.getSource(link));
+            int v = snapshot.indexOf(TopologyDelta.getTarget(link));
+            if (u >= 0 && v >= 0 && parent[v] == u && u != v) {
+                int len = length(snapshot, u, v);
+                if (len < 0 || dist[u] + len > dist[v]) {
+                    broken.add(v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the nodes in the subtrees of the broken nodes as not reachable.
+     *
+     * @return the nodes set as not reachable
+     */
+    private static Nodes invalidate(int[] parent, int[] dist, Nodes broken,
+            int source) {
+        int n = parent.length;
+        // the children of each node, in compressed rows
+        int[] start = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            if (parent[v] >= 0 && v != source) {
+                start[parent[v] + 1]++;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            start[v + 1] += start[v];
+        }
+        int[] children = new int[start[n]];
+        int[] next = Arrays.copyOf(start, n);
+        for (int v = 0; v < n; v++) {
+            if (parent[v] >= 0 && v != source) {
+                children[next[parent[v]]++] = v;
+            }
+        }
+
+        boolean[] seen = new boolean[n];
+        Nodes subtrees = new Nodes();
+        for (int i = 0; i < broken.size; i++) {
+            if (!seen[broken.nodes[i]]) {
+                seen[broken.nodes[i]] = true;
+                subtrees.add(broken.nodes[i]);
+            }
+        }
+        for (int i = 0; i < subtrees.size; i++) {
+            int v = subtrees.nodes[i];
+            for (int c = start[v]; c < start[v + 1]; c++) {
+                if (!seen[children[c]]) {
+                    seen[children[c]] = true;
+                    subtrees.add(children[c]);
+                }
+            }
+            parent[v] = -1;
+            dist[v] = ShortestPathTree.UNREACHABLE;
+        }
+        return subtrees;
+    }
+
+    /**
+     * Follows the given links if they shorten the path to their target.
+     */
+    private static void improve(TopologySnapshot snapshot, long[] links,
+            Heap heap, int[] parent, int[] dist) {
+        for (long link : links) {
+            int u = snapshot.indexOf(TopologyDelta.getSource(link));
+            int v = snapshot.indexOf(TopologyDelta.getTarget(link));
+            if (u < 0 || v < 0 || dist[u] == ShortestPathTree.UNREACHABLE) {
+                continue;
+            }
+            int len = length(snapshot, u, v);
+            if (len >= 0 && dist[u] + len < dist[v]) {
+                dist[v] = dist[u] + len;
+                parent[v] = u;
+                heap.push(dist[v], v);
+            }
+        }
+    }
+
+    /**
+     * Runs Dijkstra from the nodes in the heap.
+     */
+    private static void propagate(TopologySnapshot snapshot, Heap heap,
+            int[] parent, int[] dist) {
+        while (!heap.isEmpty()) {
+            long top = heap.pop();
+            int u = (int) top;
+            int d = (int) (top >>> 32);
+            // stale entries are skipped when they are polled
+            if (d != dist[u]) {
+                continue;
+            }
+            for (int j = 0; j < snapshot.getOutDegree(u); j++) {
+                int v = snapshot.getOutNeighbour(u, j);
+                int alt = d + snapshot.getOutLength(u, j);
+                if (alt < dist[v]) {
+                    dist[v] = alt;
+                    parent[v] = u;
+                    heap.push(alt, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the length of a link, or -1 if it is not in the snapshot.
+     */
+    private static int length(TopologySnapshot snapshot, int u, int v) {
+        for (int j = 0; j < snapshot.getInDegree(v); j++) {
+            if (snapshot.getInNeighbour(v, j) == u) {
+                return snapshot.getInLength(v, j);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A list of nodes.
+     */
+    private static final class Nodes {
+
+        private int[] nodes = new int[16];
+        private int size;
+
+        void add(int node) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size++] = node;
+        }
+    }
+
+    /**
+     * A binary heap of (distance &lt;&lt; 32 | node).
+     */
+    private static final class Heap {
+
+        private long[] heap;
+        private int size;
+
+        Heap(int capacity) {
+            heap = new long[Math.max(capacity, 1)];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(int dist, int node) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            long e = ((long) dist << 32) | node;
+            int i = size++;
+            while (i > 0) {
+                int p = (i - 1) >>> 1;
+                if (heap[p] <= e) {
+                    break;
+                }
+                heap[i] = heap[p];
+                i = p;
+            }
+            heap[i] = e;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long e = heap[--size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int c = 2 * i + 1;
+                if (c + 1 < size && heap[c + 1] < heap[c]) {
+                    c++;
+                }
+                if (e <= heap[c]) {
+                    break;
+                }
+                heap[i] = heap[c];
+                i = c;
+            }
+            if (size > 0) {
+                heap[i] = e;
+            }
+            return top;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.topology.TopologyDelta;
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
+import java.util.List;
+
+/**
+ * An algorithm computing shortest path trees on the snapshots of the
+ * topology. A ShortestPathCache asks its algorithm for the trees it is
+ * missing, so any routing algorithm working on a TopologySnapshot can be
+ * cached the same way. When the topology changes, the cache first asks the
+ * algorithm to repair the tree it holds with the TopologyDelta published
+ * since, and computes the tree again only if the algorithm can not.
+ * <p>
+ * A snapshot never changes, so an implementation must allow the trees of
+ * different sources to be computed by different threads at the same time.
+ */
+public interface SnapshotShortestPaths {
+
+    /**
+     * Computes the shortest path tree of a source.
+     *
+     * @param snapshot the topology.
+     * @param source the index of the source in the snapshot.
+     * @return the tree
+     */
+    ShortestPathTree compute(TopologySnapshot snapshot, int source);
+
+    /**
+     * Computes the shortest path tree of the same source on a newer snapshot,
+     * reusing the parts of an older tree the changes did not touch. The older
+     * tree is not modified.
+     *
+     * @param tree the tree computed on the older snapshot.
+     * @param snapshot the newer snapshot.
+     * @param deltas the changes from the epoch of the older snapshot to the
+     * epoch of the newer one, in order.
+     * @return the tree on the newer snapshot, or null if it must be computed
+     * from scratch
+     */
+    ShortestPathTree repair(ShortestPathTree tree, TopologySnapshot snapshot,
+            List<TopologyDelta> deltas);
+}
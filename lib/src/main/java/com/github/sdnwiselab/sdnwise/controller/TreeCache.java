@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the shortest path trees computed by a routing
+ * algorithm, keyed by the NetworkId and the address of the source node.
+ * <p>
+ * Each tree is stored together with the epoch of the graph it was computed
+ * on, usually the value of NetworkGraph.getLastModification. A tree requested
+ * with a different epoch is stale: it is discarded and the request counts as
+ * a miss. Caches repairing their trees can store them with a constant
+ * epoch and check the epoch of the tree themselves. When the cache is full
+ * the least recently used tree is evicted.
+ *
+ * @param <T> the type of the trees.
+ */
+public final class TreeCache<T> {
+
+    private final static float LOAD_FACTOR = 0.75f;
+
+    private final int capacity;
+    private final LinkedHashMap<Integer, CachedTree<T>> map;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static final class CachedTree<T> {
+
+        final long epoch;
+        final T tree;
+
+        CachedTree(long epoch, T tree) {
+            this.epoch = epoch;
+            this.tree = tree;
+        }
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param capacity the maximum number of trees kept.
+     */
+    public TreeCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<Integer, CachedTree<T>>(
+                (int) (capacity / LOAD_FACTOR) + 1, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, CachedTree<T>> e) {
+                if (size() > TreeCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the key of a source node.
+     *
+     * @param netId the NetworkId of the node.
+     * @param addr the address of the node.
+     * @return the key of the node
+     */
+    public static int key(int netId, NodeAddress addr) {
+        return ((netId & 0xFF) << 16) | addr.intValue();
+    }
+
+    /**
+     * Returns the tree of a source computed on a given epoch.
+     *
+     * @param key the key of the source.
+     * @param epoch the current epoch of the graph.
+     * @return the tree, or null if it is missing or stale
+     */
+    public synchronized T get(int key, long epoch) {
+        CachedTree<T> e = map.get(key);
+        if (e != null && e.epoch == epoch) {
+            hits++;
+            return e.tree;
+        }
+        if (e != null) {
+            map.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Stores the tree of a source.
+     *
+     * @param key the key of the source.
+     * @param epoch the epoch of the graph the tree was computed on.
+     * @param tree the tree.
+     */
+    public synchronized void put(int key, long epoch, T tree) {
+        map.put(key, new CachedTree<>(epoch, tree));
+    }
+
+    /**
+     * Removes the tree of a source.
+     *
+     * @param key the key of the source.
+     * @return the removed tree, or null if it was not cached
+     */
+    public synchronized T remove(int key) {
+        CachedTree<T> e = map.remove(key);
+        return e == null ? null : e.tree;
+    }
+
+    /**
+     * Removes every tree.
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * Returns a copy of the cached trees, from the least to the most recently
+     * used.
+     *
+     * @return the cached trees
+     */
+    public synchronized Collection<T> values() {
+        ArrayList<T> list = new ArrayList<>(map.size());
+        for (CachedTree<T> e : map.values()) {
+            list.add(e.tree);
+        }
+        return list;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TreeCache{size=" + map.size() + ", capacity=" + capacity
+                + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "}";
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.event;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A topic on which events of a single type are published, such as the
+ * packets received by an Adapter or the changes of a NetworkGraph.
+ * <p>
+ * Publishing takes no lock. A subscriber registered without an executor is
+ * called by the publishing thread, in the order of the events. A subscriber
+ * registered with an executor has its own ring of events: the publisher only
+ * adds the event to the ring and the events are delivered by a task run on
+ * the executor, in order and one at a time. When the ring of a subscriber is
+ * full the event is dropped for that subscriber or the publisher waits,
+ * depending on the policy of the subscription, so that a slow subscriber
+ * does not slow down the others unless it asked to.
+ * <p>
+ * Exceptions thrown by a subscriber are logged and do not stop the
+ * delivery.
+ *
+ * @param <E> the type of the events.
+ */
+public final class EventBus<E> {
+
+    /**
+     * Policies applied when the ring of a subscription is full.
+     */
+    public final static int DROP = 0,
+            BLOCK = 1;
+
+    public final static int DFLT_CAPACITY = 1024;
+
+    private final static long BLOCK_PARK = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final CopyOnWriteArrayList<Subscription<E>> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a subscriber called by the publishing thread.
+     *
+     * @param subscriber the subscriber.
+     * @return the subscription
+     */
+    public Subscription<E> subscribe(Subscriber<? super E> subscriber) {
+        Subscription<E> s = new Subscription<>(this, subscriber, null, null,
+                BLOCK);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Registers a subscriber called by an executor.
+     *
+     * @param subscriber the subscriber.
+     * @param executor the executor running the deliveries.
+     * @param capacity the number of events waiting to be delivered.
+     * @param policy DROP or BLOCK.
+     * @return the subscription
+     */
+    public Subscription<E> subscribe(Subscriber<? super E> subscriber,
+            Executor executor, int capacity, int policy) {
+        if (executor == null || (policy != DROP && policy != BLOCK)) {
+            throw new IllegalArgumentException("Invalid subscription");
+        }
+        Subscription<E> s = new Subscription<>(this, subscriber, executor,
+                new EventRing<E>(capacity), policy);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Publishes an event to every subscriber.
+     *
+     * @param event the event.
+     */
+    public void publish(E event) {
+        for (Subscription<E> s : subscriptions) {
+            s.deliver(event);
+        }
+    }
+
+    /**
+     * Tells if there is some subscriber, so that publishers can skip
+     * building events nobody receives.
+     *
+     * @return true if at least a subscription is active
+     */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public int countSubscribers() {
+        return subscriptions.size();
+    }
+
+    /**
+     * The registration of a subscriber to an EventBus.
+     *
+     * @param <E> the type of the events.
+     */
+    public static final class Subscription<E> {
+
+        private final EventBus<E> bus;
+        private final Subscriber<? super E> subscriber;
+        private final Executor executor;
+        private final EventRing<E> ring;
+        private final int policy;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong blocked = new AtomicLong();
+
+        private final Runnable drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private Subscription(EventBus<E> bus, Subscriber<? super E> subscriber,
+                Executor executor, EventRing<E> ring, int policy) {
+            if (subscriber == null) {
+                throw new IllegalArgumentException("Invalid subscriber");
+            }
+            this.bus = bus;
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.ring = ring;
+            this.policy = policy;
+        }
+
+        private void deliver(E event) {
+            if (cancelled) {
+                return;
+            }
+            if (executor == null) {
+                call(event);
+                return;
+            }
+            if (!ring.offer(event)) {
+                if (policy == DROP) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                blocked.incrementAndGet();
+                while (!ring.offer(event)) {
+                    if (cancelled || Thread.currentThread().isInterrupted()) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK);
+                }
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(drainTask);
+                } catch (RejectedExecutionException ex) {
+                    scheduled.set(false);
+                    cancel();
+                    Logger.getLogger(EventBus.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        private void call(E event) {
+            try {
+                subscriber.onEvent(event);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(EventBus.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+            delivered.incrementAndGet();
+        }
+
+        /**
+         * Delivers the events in the ring. At most a ring of events is
+         * delivered at once, then the task is submitted again, so that an
+         * executor shared by many subscriptions serves all of them.
+         */
+        private void drain() {
+            int n = ring.getCapacity();
+            E event;
+            while (n-- > 0 && !cancelled && (event = ring.poll()) != null) {
+                call(event);
+            }
+            scheduled.set(false);
+            if (!cancelled && !ring.isEmpty()) {
+                schedule();
+            }
+        }
+
+        /**
+         * Removes the subscriber from the bus. The events still in the ring
+         * are not delivered.
+         */
+        public void cancel() {
+            cancelled = true;
+            bus.subscriptions.remove(this);
+            if (ring != null) {
+                while (ring.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Returns the number of events waiting to be delivered.
+         *
+         * @return the number of events in the ring
+         */
+        public int size() {
+            return ring == null ? 0 : ring.size();
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getBlocked() {
+            return blocked.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Subscription{subscriber=" + subscriber
+                    + ", size=" + size()
+                    + ", delivered=" + delivered
+                    + ", dropped=" + dropped
+                    + ", blocked=" + blocked + "}";
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock free ring of events. Each cell carries a sequence number
+ * telling whether it can be written by the publisher claiming that position
+ * or read by the consumer claiming it, so publishers and consumers only
+ * compete on a compare and set of the tail and of the head respectively.
+ * <p>
+ * The capacity is rounded up to a power of two.
+ */
+final class EventRing<E> {
+
+    private final AtomicReferenceArray<E> cells;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    EventRing(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        cells = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an event at the tail of the ring.
+     *
+     * @param event the event.
+     * @return false if the ring is full
+     */
+    boolean offer(E event) {
+        long pos = tail.get();
+        for (;;) {
+            int i = (int) pos & mask;
+            long dif = sequences.get(i) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    cells.set(i, event);
+                    sequences.set(i, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the event at the head of the ring.
+     *
+     * @return the event, or null if the ring is empty
+     */
+    E poll() {
+        long pos = head.get();
+        for (;;) {
+            int i = (int) pos & mask;
+            long dif = sequences.get(i) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E event = cells.get(i);
+                    cells.set(i, null);
+                    sequences.set(i, pos + mask + 1);
+                    return event;
+                }
+                pos = head.get();
+            } else if (dif < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Tells if the ring is empty. An event being added by a publisher
+     * already counts.
+     *
+     * @return true if no event has been claimed and not yet removed
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    int getCapacity() {
+        return mask + 1;
+    }
+}
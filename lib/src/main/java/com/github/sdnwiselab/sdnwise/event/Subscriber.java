@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.event;
+
+/**
+ * Receives the events published on an EventBus.
+ *
+ * @param <E> the type of the events.
+ */
+public interface Subscriber<E> {
+
+    /**
+     * Called for each event published on the bus, by the publishing thread
+     * or by the executor of the subscription.
+     *
+     * @param event the event.
+     */
+    void onEvent(E event);
+}
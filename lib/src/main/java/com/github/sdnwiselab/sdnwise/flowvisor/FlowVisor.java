@@ -20,36 +20,41 @@ import com.github.sdnwiselab.sdnwise.adapter.Adapter;
 import com.github.sdnwiselab.sdnwise.adapter.AdapterUdp;
 import com.github.sdnwiselab.sdnwise.application.ApplicationId;
 import com.github.sdnwiselab.sdnwise.controller.ControllerId;
+import com.github.sdnwiselab.sdnwise.event.EventBus.Subscription;
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
 import com.github.sdnwiselab.sdnwise.packet.DataPacket;
-import com.github.sdnwiselab.sdnwise.packet.NetworkPacket;
+import com.github.sdnwiselab.sdnwise.packet.PacketView;
 import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import com.github.sdnwiselab.sdnwise.util.Layer;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map.Entry;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class registers Nodes and Controllers of the SDN-WISE Network.
  * 
  * This class is created by FlowVisorFactory.
- * It permits Network slicing and implements Runnable and the Observer 
- * pattern.
+ * It permits Network slicing and it is a Layer. It subscribes to the packet
+ * buses of its adapters and runs until stop is called.
  *
  * @author Sebastiano Milardo
  * @version 0.1
  */
-public class FlowVisor implements Observer, Runnable {
+public class FlowVisor extends Layer {
 
     private final Adapter lower;
     private final AdapterUdp upper;
-    private final Scanner scanner;
-    private boolean isStopped;
+    private Subscription<byte[]> lowerSubscription;
+    private Subscription<byte[]> upperSubscription;
     private final HashMap<ControllerId, Set<NodeAddress>> controllerMapping;
     private final HashMap<ApplicationId, ControllerId> applicationMapping;
+    // used only by the thread of the lower adapter
+    private final PacketView packet = new PacketView();
+    private final AtomicLong dropped = new AtomicLong();
     
 
     /** 
@@ -62,10 +67,9 @@ public class FlowVisor implements Observer, Runnable {
     // delle diverse applicazioni e dei diversi controller. Per ora inserisci 
     // solamente un controller e un'applicazione
     FlowVisor(Adapter lower, AdapterUdp upper) {
+        super("FlowVisor");
         this.lower = lower;
         this.upper = upper;
-        scanner = new Scanner(System.in, "UTF-8");
-        isStopped = false;
         controllerMapping = new HashMap<>();
         applicationMapping = new HashMap<>();
     }
@@ -110,14 +114,15 @@ public class FlowVisor implements Observer, Runnable {
         applicationMapping.remove(application);
     }
     
-    @Override
-    public final void update(Observable o, Object arg) {
-        if (o.equals(lower)) {
-            // if it is a data packet send to the application, else send it to
-            // the controller
-            byte[] data = (byte[]) arg;
-            NetworkPacket np = new NetworkPacket(data);
-            switch (np.getType()) {
+    /**
+     * Receives the messages coming from the lower adapter: data packets are
+     * sent to the applications, the other messages to the controllers.
+     */
+    private final Subscriber<byte[]> lowerSubscriber = new Subscriber<byte[]>() {
+        @Override
+        public void onEvent(byte[] data) {
+            packet.wrap(data);
+            switch (packet.getType()) {
                 case 0:
                     manageData(data);
                     break;
@@ -128,10 +133,18 @@ public class FlowVisor implements Observer, Runnable {
                     manageRequests(data);
                     break;
             }
-        } else if (o.equals(upper)) {
-            manageResponses((byte[]) arg);
         }
-    }
+    };
+
+    /**
+     * Receives the messages coming from the controllers and the applications.
+     */
+    private final Subscriber<byte[]> upperSubscriber = new Subscriber<byte[]>() {
+        @Override
+        public void onEvent(byte[] data) {
+            manageResponses(data);
+        }
+    };
 
     /**
      * This method consists of a way to manage reports.
@@ -158,8 +171,10 @@ public class FlowVisor implements Observer, Runnable {
                     pkt.setNeighborsHashMap(map);
                 }
                 
-                upper.send(pkt.toByteArray(), set.getKey().getAddress(),
-                        set.getKey().getPort());
+                if (!upper.offer(pkt.toByteArray(), set.getKey().getAddress(),
+                        set.getKey().getPort())) {
+                    drop(set.getKey().getAddress(), set.getKey().getPort());
+                }
             }
         }
     }
@@ -170,12 +185,15 @@ public class FlowVisor implements Observer, Runnable {
      * @param data Byte Array contains data message
      */
     private void manageRequests(byte[] data) {
-        NetworkPacket pkt = new NetworkPacket(data);
+        NodeAddress src = packet.getSrc();
+        NodeAddress dst = packet.getDst();
         for (Entry<ControllerId, Set<NodeAddress>> set : controllerMapping.entrySet()) {
-            if (set.getValue().contains(pkt.getSrc())
-                    && set.getValue().contains(pkt.getDst())) {
-                upper.send(data, set.getKey().getAddress(),
-                        set.getKey().getPort());
+            if (set.getValue().contains(src)
+                    && set.getValue().contains(dst)) {
+                if (!upper.offer(data, set.getKey().getAddress(),
+                        set.getKey().getPort())) {
+                    drop(set.getKey().getAddress(), set.getKey().getPort());
+                }
                 System.out.println("[FLW]: Sending request to " + set.getKey().getAddress() + ":"
                         + set.getKey().getPort());
             }
@@ -189,8 +207,10 @@ public class FlowVisor implements Observer, Runnable {
             Set<NodeAddress> nodes = controllerMapping.get(applicationMapping.get(app));
             if (nodes.contains(pkt.getSrc())
                     && nodes.contains(pkt.getDst())) {
-                upper.send(data, app.getAddress(),
-                        app.getPort());
+                if (!upper.offer(data, app.getAddress(),
+                        app.getPort())) {
+                    drop(app.getAddress(), app.getPort());
+                }
                 System.out.println("[FLW]: Sending data to " + app.getAddress() + ":"
                         + app.getPort());
             }
@@ -199,21 +219,51 @@ public class FlowVisor implements Observer, Runnable {
     
     private void manageResponses(byte[] data) {
         System.out.println("[FLW]: receiving " + Arrays.toString(data));
-        lower.send(data);
+        if (!lower.offer(data)) {
+            drop("lower", 0);
+        }
+    }
+
+    private void drop(String address, int port) {
+        dropped.incrementAndGet();
+        System.out.println("[FLW]: Dropping packet to " + address + ":" + port);
+    }
+
+    /**
+     * Returns the number of packets dropped because an adapter was congested.
+     *
+     * @return the number of packets dropped
+     */
+    public final long getDropped() {
+        return dropped.get();
     }
 
     @Override
-    public final void run() {
-        if (lower.open() && upper.open()) {
-            lower.addObserver(this);
-            upper.addObserver(this);
-            while (!isStopped) {
-                //if (scanner.nextLine().equals("exit -l Flowvisor")) {
-                    //isStopped = true;
-                //}
-            }
+    protected final boolean startUp() {
+        if (!lower.open()) {
+            return false;
+        }
+        if (!upper.open()) {
             lower.close();
-            upper.close();
+            return false;
         }
-    }    
+        lowerSubscription = lower.getPacketBus().subscribe(lowerSubscriber);
+        upperSubscription = upper.getPacketBus().subscribe(upperSubscriber);
+        return true;
+    }
+
+    /**
+     * Stops forwarding the messages and closes the adapters once the packets
+     * already forwarded have been sent.
+     */
+    @Override
+    protected final void shutDown() {
+        if (lowerSubscription == null) {
+            return;
+        }
+        lowerSubscription.cancel();
+        upperSubscription.cancel();
+        lower.close(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        upper.close(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
 }
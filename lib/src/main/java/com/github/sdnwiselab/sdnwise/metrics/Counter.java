@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter incremented by many threads. The count is split in stripes,
+ * each in its own cache line, and every thread adds to the stripe chosen by
+ * its id, so that the threads of the nodes and of the controller do not
+ * contend for the same cache line. Reading the counter sums the stripes.
+ */
+public final class Counter {
+
+    // longs from a stripe to the next one, the size of a cache line
+    private final static int PAD = 8;
+    private final static int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    Counter() {
+    }
+
+    // twice the processors, rounded up to a power of two, at most 64
+    private static int stripes() {
+        int n = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+        return Integer.highestOneBit(Math.max(n, 2) * 2 - 1);
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return (h & (STRIPES - 1)) * PAD;
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void inc() {
+        cells.getAndIncrement(cell());
+    }
+
+    /**
+     * Adds a value to the counter.
+     *
+     * @param n the value added.
+     */
+    public void add(long n) {
+        cells.getAndAdd(cell(), n);
+    }
+
+    /**
+     * Returns the value of the counter. The additions made while it is read
+     * may be counted or not.
+     *
+     * @return the sum of the stripes
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.metrics;
+
+import com.github.sdnwiselab.sdnwise.util.Clock;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the process: counters, histograms and gauges, each with a
+ * name such as "controller.managePacket".
+ * <p>
+ * The components look their metrics up once, when they are created, and
+ * keep them in fields, so that the hot paths only update them: counting or
+ * recording a value takes no lock and allocates nothing. The durations are
+ * recorded in nanoseconds.
+ * <p>
+ * The metrics can be read through JMX, once registerMBean has been called,
+ * or printed periodically by startDump. For instance:
+ * <pre>
+ * Metrics.registerMBean();
+ * Metrics.startDump(System.out, 10, TimeUnit.SECONDS);
+ * </pre>
+ */
+public final class Metrics {
+
+    private final static ConcurrentMap<String, Object> METRICS
+            = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with a name, creating it if needed.
+     *
+     * @param name the name of the counter.
+     * @return the counter
+     * @throws IllegalArgumentException if the name belongs to another kind
+     * of metric
+     */
+    public static Counter counter(String name) {
+        Object m = METRICS.get(name);
+        if (m == null) {
+            Object old = METRICS.putIfAbsent(name, m = new Counter());
+            if (old != null) {
+                m = old;
+            }
+        }
+        if (!(m instanceof Counter)) {
+            throw new IllegalArgumentException("Not a counter: " + name);
+        }
+        return (Counter) m;
+    }
+
+    /**
+     * Returns the histogram with a name, creating it if needed.
+     *
+     * @param name the name of the histogram.
+     * @return the histogram
+     * @throws IllegalArgumentException if the name belongs to another kind
+     * of metric
+     */
+    public static Histogram histogram(String name) {
+        Object m = METRICS.get(name);
+        if (m == null) {
+            Object old = METRICS.putIfAbsent(name, m = new Histogram());
+            if (old != null) {
+                m = old;
+            }
+        }
+        if (!(m instanceof Histogram)) {
+            throw new IllegalArgumentException("Not a histogram: " + name);
+        }
+        return (Histogram) m;
+    }
+
+    /**
+     * Sets the gauge with a name, replacing the previous one.
+     *
+     * @param name the name of the gauge.
+     * @param gauge the gauge.
+     * @throws IllegalArgumentException if the name belongs to another kind
+     * of metric
+     */
+    public static void gauge(String name, Gauge gauge) {
+        Object old = METRICS.get(name);
+        if (old != null && !(old instanceof Gauge)) {
+            throw new IllegalArgumentException("Not a gauge: " + name);
+        }
+        METRICS.put(name, gauge);
+    }
+
+    /**
+     * Removes a gauge, if it is still the one given.
+     *
+     * @param name the name of the gauge.
+     * @param gauge the gauge.
+     */
+    public static void removeGauge(String name, Gauge gauge) {
+        METRICS.remove(name, gauge);
+    }
+
+    /**
+     * Returns the value of every metric, sorted by name: a Long for the
+     * counters and the gauges, a Histogram.Snapshot for the histograms.
+     *
+     * @return the values of the metrics
+     */
+    public static SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> values = new TreeMap<>();
+        for (Map.Entry<String, Object> e : METRICS.entrySet()) {
+            Object m = e.getValue();
+            if (m instanceof Counter) {
+                values.put(e.getKey(), ((Counter) m).get());
+            } else if (m instanceof Histogram) {
+                values.put(e.getKey(), ((Histogram) m).snapshot());
+            } else {
+                values.put(e.getKey(), ((Gauge) m).get());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Prints the value of every metric, a line each.
+     *
+     * @param out the stream.
+     */
+    public static void dump(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : snapshot().entrySet()) {
+            sb.append("[MET]: ").append(e.getKey()).append(' ')
+                    .append(e.getValue()).append('\n');
+        }
+        out.print(sb);
+        out.flush();
+    }
+
+    /**
+     * Prints the metrics periodically, on a thread of its own.
+     *
+     * @param out the stream.
+     * @param period the time between two dumps.
+     * @param unit the unit of the period.
+     * @return the periodic task, to be cancelled to stop the dumps
+     */
+    public static ScheduledFuture<?> startDump(final PrintStream out,
+            long period, TimeUnit unit) {
+        ScheduledExecutorService scheduler;
+        synchronized (Metrics.class) {
+            if (dumper == null) {
+                dumper = Clock.SYSTEM.newScheduler("Metrics", 1);
+            }
+            scheduler = dumper;
+        }
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump(out);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Registers the metrics in the platform MBeanServer, as the attributes
+     * of a single MBean. Calling it again has no effect.
+     *
+     * @return the name of the MBean
+     * @throws JMException if the MBean can not be registered
+     */
+    public static ObjectName registerMBean() throws JMException {
+        return MetricsBean.register();
+    }
+}
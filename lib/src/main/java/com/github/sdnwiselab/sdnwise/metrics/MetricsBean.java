@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The MBean showing the metrics. Each counter and gauge is an attribute;
+ * each histogram gives the attributes name.count, name.mean, name.p50,
+ * name.p99 and name.max. The attributes follow the metrics created after
+ * the registration.
+ * <p>
+ * This class is loaded only by Metrics.registerMBean, so that the metrics
+ * can be used where javax.management is missing.
+ */
+final class MetricsBean implements DynamicMBean {
+
+    private final static String NAME
+            = "com.github.sdnwiselab.sdnwise:type=Metrics";
+    private final static String[] FIELDS = {"count", "mean", "p50", "p99",
+        "max"};
+
+    private MetricsBean() {
+    }
+
+    static synchronized ObjectName register() throws JMException {
+        ObjectName name = new ObjectName(NAME);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MetricsBean(), name);
+        }
+        return name;
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+        return value(Metrics.snapshot(), attribute);
+    }
+
+    // a single snapshot is taken for all the attributes asked at once
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = Metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, value(values, attribute)));
+            } catch (AttributeNotFoundException ex) {
+                // left out, as required by DynamicMBean
+            }
+        }
+        return list;
+    }
+
+    private static Object value(Map<String, Object> values, String attribute)
+            throws AttributeNotFoundException {
+        Object value = values.get(attribute);
+        if (value instanceof Long) {
+            return value;
+        }
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            value = values.get(attribute.substring(0, dot));
+            if (value instanceof Histogram.Snapshot) {
+                Histogram.Snapshot h = (Histogram.Snapshot) value;
+                switch (attribute.substring(dot + 1)) {
+                    case "count":
+                        return h.getCount();
+                    case "mean":
+                        return h.getMean();
+                    case "p50":
+                        return h.getPercentile(50);
+                    case "p99":
+                        return h.getPercentile(99);
+                    case "max":
+                        return h.getMax();
+                    default:
+                        break;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read only: "
+                + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params,
+            String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> e : Metrics.snapshot().entrySet()) {
+            if (e.getValue() instanceof Histogram.Snapshot) {
+                for (String field : FIELDS) {
+                    attributes.add(new MBeanAttributeInfo(
+                            e.getKey() + "." + field,
+                            field.equals("mean") ? Double.class.getName()
+                                    : Long.class.getName(),
+                            field + " of " + e.getKey(), true, false, false));
+                }
+            } else {
+                attributes.add(new MBeanAttributeInfo(e.getKey(),
+                        Long.class.getName(),
+                        e.getKey(), true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "SDN-WISE metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, new MBeanOperationInfo[0], null);
+    }
+}
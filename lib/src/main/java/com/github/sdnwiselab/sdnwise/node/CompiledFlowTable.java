@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_BIGGER;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL_OR_BIGGER;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL_OR_LESS;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_LESS;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_NOT_EQUAL;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_0;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_1;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_2;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled representation of the FlowTable of a node. Every time the table
+ * changes the rules are translated into flat int arrays, so that matching a
+ * packet does not allocate objects and does not decode the FlowTableWindow
+ * bit fields again.
+ * <p>
+ * Rules are stored in the same order used by Node.runFlowMatch (the scan
+ * order given by getActualFlowIndex). Windows of size 0 are dropped since they
+ * always match, while rules that can never match (all windows of size 0, an
+ * unknown size or an unknown operator) are not compiled at all.
+ * <p>
+ * Rules having at least one SDN_WISE_EQUAL window are also indexed by the
+ * (location, position, size, value) of that window, so that looking for a
+ * match only checks the rules whose equality window agrees with the packet.
+ * Only the remaining rules, which use range operators only, are scanned in
+ * order. A second index, keyed by the windows of each entry, is used by
+ * Node.searchRule.
+ * <p>
+ * The compiled program is immutable and it is replaced as a whole by compile,
+ * so a lookup running on the PacketManager thread always sees a consistent
+ * table even if the Timer thread is expiring rules.
+ */
+final class CompiledFlowTable {
+
+    // window flags
+    private final static int LOCATION_PACKET = 1;
+    private final static int SIZE_TWO_BYTES = 2;
+
+    private final static int EMPTY = -1;
+
+    private volatile Program program = new Program(0, 0, 0, 0, 0);
+
+    /**
+     * Translates the flow table into a new program and publishes it.
+     *
+     * @param flowTable the FlowTable of the node.
+     * @param scanOrder the index of the rule checked at each scan position.
+     */
+    synchronized void compile(List<FlowTableEntry> flowTable, int[] scanOrder) {
+        int nRules = 0;
+        int nWindows = 0;
+        int nIndexed = 0;
+        FlowTableWindow[][] windows = new FlowTableWindow[scanOrder.length][];
+        boolean[] valid = new boolean[scanOrder.length];
+
+        for (int j = 0; j < scanOrder.length; j++) {
+            windows[j] = flowTable.get(scanOrder[j]).getWindows();
+            int active = 0;
+            boolean ok = true;
+            boolean equal = false;
+            for (FlowTableWindow w : windows[j]) {
+                int size = w.getSize();
+                if (size == SDN_WISE_SIZE_0) {
+                    continue;
+                }
+                if ((size != SDN_WISE_SIZE_1 && size != SDN_WISE_SIZE_2)
+                        || !isKnownOperator(w.getOperator())) {
+                    ok = false;
+                    break;
+                }
+                equal |= w.getOperator() == SDN_WISE_EQUAL;
+                active++;
+            }
+            if (ok && active > 0) {
+                valid[j] = true;
+                nRules++;
+                nWindows += active;
+                if (equal) {
+                    nIndexed++;
+                }
+            }
+        }
+
+        Program p = new Program(nRules, nWindows, nRules - nIndexed,
+                scanOrder.length, flowTable.size());
+        // (field, value, rule) of the indexed rules, packed to be sorted
+        long[] keys = new long[nIndexed];
+        int nKeys = 0;
+        int[] fields = new int[nIndexed];
+        int nFields = 0;
+        int r = 0;
+        int w = 0;
+        int s = 0;
+        for (int j = 0; j < scanOrder.length; j++) {
+            if (valid[j]) {
+                p.scanPos[r] = j;
+                p.first[r] = w;
+                int key = EMPTY;
+                for (FlowTableWindow fw : windows[j]) {
+                    int size = fw.getSize();
+                    if (size == SDN_WISE_SIZE_0) {
+                        continue;
+                    }
+                    p.operator[w] = fw.getOperator();
+                    p.pos[w] = fw.getPos();
+                    if (size == SDN_WISE_SIZE_2) {
+                        p.flags[w] = SIZE_TWO_BYTES;
+                        p.value[w] = fw.getValueHigh() * 256 + fw.getValueLow();
+                    } else {
+                        p.value[w] = fw.getValueLow();
+                    }
+                    if (fw.getLocation() != 0) {
+                        p.flags[w] |= LOCATION_PACKET;
+                    }
+                    if (key == EMPTY && p.operator[w] == SDN_WISE_EQUAL) {
+                        key = w;
+                    }
+                    w++;
+                }
+                if (key == EMPTY) {
+                    p.scanRules[s++] = r;
+                } else {
+                    int field = (p.pos[key] << 2) | p.flags[key];
+                    int g = 0;
+                    while (g < nFields && fields[g] != field) {
+                        g++;
+                    }
+                    if (g == nFields) {
+                        fields[nFields++] = field;
+                    }
+                    keys[nKeys++] = ((long) g << 48)
+                            | ((long) p.value[key] << 24) | r;
+                }
+                r++;
+            }
+        }
+        p.first[nRules] = w;
+
+        // for each scan position the first scanned rule not before it
+        s = p.scanRules.length;
+        for (int j = scanOrder.length; j >= 0; j--) {
+            while (s > 0 && p.scanPos[p.scanRules[s - 1]] >= j) {
+                s--;
+            }
+            p.scanFrom[j] = s;
+        }
+
+        buildEqualityIndex(p, fields, nFields, keys);
+        buildEntryIndex(p, flowTable);
+        program = p;
+    }
+
+    /**
+     * Returns the first scan position, starting from scanPos, whose rule
+     * matches the packet.
+     *
+     * @param scanPos the first scan position to be checked.
+     * @param packet the packet to be matched.
+     * @param statusRegister the status register of the node.
+     * @return the scan position of the matching rule, -1 if none matches.
+     */
+    int next(int scanPos, int[] packet, int[] statusRegister) {
+        Program p = program;
+        if (scanPos >= p.scanFrom.length) {
+            return -1;
+        }
+        int best = Integer.MAX_VALUE;
+
+        for (int g = 0; g < p.fieldFlags.length; g++) {
+            int flags = p.fieldFlags[g];
+            int[] ptr = (flags & LOCATION_PACKET) != 0 ? packet : statusRegister;
+            int pos = p.fieldPos[g];
+            int last = (flags & SIZE_TWO_BYTES) != 0 ? pos + 1 : pos;
+            if (last >= ptr.length) {
+                continue;
+            }
+            int item = (flags & SIZE_TWO_BYTES) != 0
+                    ? ptr[pos] * 256 + ptr[pos + 1]
+                    : ptr[pos];
+            int[] slotKeys = p.slotKeys[g];
+            int mask = slotKeys.length - 1;
+            int slot = mix(item) & mask;
+            while (slotKeys[slot] != EMPTY && slotKeys[slot] != item) {
+                slot = (slot + 1) & mask;
+            }
+            if (slotKeys[slot] == EMPTY) {
+                continue;
+            }
+            int end = p.slotEnd[g][slot];
+            for (int c = p.slotStart[g][slot]; c < end; c++) {
+                int r = p.candidates[c];
+                int j = p.scanPos[r];
+                if (j >= best) {
+                    break;
+                }
+                if (j >= scanPos && matches(p, r, packet, statusRegister)) {
+                    best = j;
+                    break;
+                }
+            }
+        }
+
+        for (int s = p.scanFrom[scanPos]; s < p.scanRules.length; s++) {
+            int r = p.scanRules[s];
+            if (p.scanPos[r] >= best) {
+                break;
+            }
+            if (matches(p, r, packet, statusRegister)) {
+                best = p.scanPos[r];
+                break;
+            }
+        }
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+
+    /**
+     * Returns the index of the first entry of the flow table having the same
+     * windows of rule and, if the action of rule is multimatch, also the same
+     * action. This is the same search done by Node.searchRule.
+     *
+     * @param flowTable the FlowTable of the node.
+     * @param rule the rule to be found.
+     * @return the index of the entry, -1 if there is no such entry.
+     */
+    int find(List<FlowTableEntry> flowTable, FlowTableEntry rule) {
+        Program p = program;
+        FlowTableWindow[] windows = rule.getWindows();
+        int hash = hash(windows);
+        int mask = p.entryKeys.length - 1;
+        int slot = mix(hash) & mask;
+        while (p.entryHead[slot] != EMPTY && p.entryKeys[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        for (int i = p.entryHead[slot]; i != EMPTY; i = p.entryNext[i]) {
+            if (i >= flowTable.size()) {
+                break;
+            }
+            FlowTableEntry entry = flowTable.get(i);
+            if (Arrays.equals(entry.getWindows(), windows)
+                    && (!rule.getAction().isMultimatch()
+                    || entry.getAction().equals(rule.getAction()))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void buildEqualityIndex(Program p, int[] fields,
+            int nFields, long[] keys) {
+        Arrays.sort(keys);
+        p.fieldFlags = new int[nFields];
+        p.fieldPos = new int[nFields];
+        p.slotKeys = new int[nFields][];
+        p.slotStart = new int[nFields][];
+        p.slotEnd = new int[nFields][];
+        p.candidates = new int[keys.length];
+
+        int k = 0;
+        for (int g = 0; g < nFields; g++) {
+            p.fieldFlags[g] = fields[g] & 3;
+            p.fieldPos[g] = fields[g] >>> 2;
+            int from = k;
+            int distinct = 0;
+            long previous = EMPTY;
+            while (k < keys.length && (keys[k] >>> 48) == g) {
+                long value = keys[k] >>> 24;
+                if (value != previous) {
+                    distinct++;
+                    previous = value;
+                }
+                k++;
+            }
+            int capacity = tableSize(distinct);
+            int mask = capacity - 1;
+            int[] slotKeys = new int[capacity];
+            Arrays.fill(slotKeys, EMPTY);
+            int[] slotStart = new int[capacity];
+            int[] slotEnd = new int[capacity];
+            for (int c = from; c < k; c++) {
+                int value = (int) ((keys[c] >>> 24) & 0xFFFFFF);
+                p.candidates[c] = (int) (keys[c] & 0xFFFFFF);
+                int slot = mix(value) & mask;
+                while (slotKeys[slot] != EMPTY && slotKeys[slot] != value) {
+                    slot = (slot + 1) & mask;
+                }
+                if (slotKeys[slot] == EMPTY) {
+                    slotKeys[slot] = value;
+                    slotStart[slot] = c;
+                }
+                slotEnd[slot] = c + 1;
+            }
+            p.slotKeys[g] = slotKeys;
+            p.slotStart[g] = slotStart;
+            p.slotEnd[g] = slotEnd;
+        }
+    }
+
+    private static void buildEntryIndex(Program p, List<FlowTableEntry> flowTable) {
+        int mask = p.entryKeys.length - 1;
+        int[] tail = new int[p.entryKeys.length];
+        for (int i = 0; i < flowTable.size(); i++) {
+            int hash = hash(flowTable.get(i).getWindows());
+            int slot = mix(hash) & mask;
+            while (p.entryHead[slot] != EMPTY && p.entryKeys[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            if (p.entryHead[slot] == EMPTY) {
+                p.entryKeys[slot] = hash;
+                p.entryHead[slot] = i;
+            } else {
+                p.entryNext[tail[slot]] = i;
+            }
+            tail[slot] = i;
+        }
+    }
+
+    private static int hash(FlowTableWindow[] windows) {
+        int hash = 1;
+        for (FlowTableWindow w : windows) {
+            hash = 31 * hash + (w == null ? 0 : w.hashCode());
+        }
+        return hash;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int n) {
+        int capacity = 2;
+        while (capacity < n * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static boolean matches(Program p, int r, int[] packet,
+            int[] statusRegister) {
+        int end = p.first[r + 1];
+        for (int w = p.first[r]; w < end; w++) {
+            int flags = p.flags[w];
+            int[] ptr = (flags & LOCATION_PACKET) != 0 ? packet : statusRegister;
+            int pos = p.pos[w];
+            int item = (flags & SIZE_TWO_BYTES) != 0
+                    ? ptr[pos] * 256 + ptr[pos + 1]
+                    : ptr[pos];
+            if (!test(p.operator[w], item, p.value[w])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean test(int operator, int item1, int item2) {
+        switch (operator) {
+            case SDN_WISE_EQUAL:
+                return item1 == item2;
+            case SDN_WISE_NOT_EQUAL:
+                return item1 != item2;
+            case SDN_WISE_BIGGER:
+                return item1 > item2;
+            case SDN_WISE_LESS:
+                return item1 < item2;
+            case SDN_WISE_EQUAL_OR_BIGGER:
+                return item1 >= item2;
+            case SDN_WISE_EQUAL_OR_LESS:
+                return item1 <= item2;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isKnownOperator(int operator) {
+        switch (operator) {
+            case SDN_WISE_EQUAL:
+            case SDN_WISE_NOT_EQUAL:
+            case SDN_WISE_BIGGER:
+            case SDN_WISE_LESS:
+            case SDN_WISE_EQUAL_OR_BIGGER:
+            case SDN_WISE_EQUAL_OR_LESS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private final static class Program {
+
+        // per rule
+        final int[] scanPos;
+        final int[] first;
+        // per window
+        final int[] operator;
+        final int[] pos;
+        final int[] value;
+        final int[] flags;
+        // rules without an equality window, in scan order
+        final int[] scanRules;
+        // per scan position
+        final int[] scanFrom;
+        // per indexed field
+        int[] fieldFlags;
+        int[] fieldPos;
+        int[][] slotKeys;
+        int[][] slotStart;
+        int[][] slotEnd;
+        int[] candidates;
+        // per entry of the flow table
+        final int[] entryKeys;
+        final int[] entryHead;
+        final int[] entryNext;
+
+        Program(int nRules, int nWindows, int nScanned, int nScan, int nEntries) {
+            scanPos = new int[nRules];
+            first = new int[nRules + 1];
+            operator = new int[nWindows];
+            pos = new int[nWindows];
+            value = new int[nWindows];
+            flags = new int[nWindows];
+            scanRules = new int[nScanned];
+            scanFrom = new int[nScan + 1];
+            fieldFlags = new int[0];
+            int capacity = tableSize(nEntries);
+            entryKeys = new int[capacity];
+            entryHead = new int[capacity];
+            Arrays.fill(entryHead, EMPTY);
+            entryNext = new int[nEntries];
+            Arrays.fill(entryNext, EMPTY);
+        }
+    }
+}
@@ -45,6 +45,12 @@ public class Constants {
     public final static byte SDN_WISE_ACCEPTED_ID_MAX = 10;
     public final static byte SDN_WISE_RL_TTL_DECR = 10;
 
+    // flow match
+    public final static int SDN_WISE_FLOW_MATCH_INTERPRETED = 0;
+    public final static int SDN_WISE_FLOW_MATCH_COMPILED = 1;
+    public final static int SDN_WISE_FLOW_MATCH_VERIFY = 2;
+    public final static int SDN_WISE_DFLT_FLOW_MATCH = SDN_WISE_FLOW_MATCH_COMPILED;
+
     // timers
     public final static byte SDN_WISE_DFLT_CNT_DATA_MAX = 10;
     public final static byte SDN_WISE_DFLT_CNT_BEACON_MAX = 10;
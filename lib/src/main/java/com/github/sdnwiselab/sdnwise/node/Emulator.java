@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_DFLT_RSSI_MIN;
+import com.github.sdnwiselab.sdnwise.util.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many nodes in the same process. The nodes share a scheduler with a
+ * few threads and exchange their frames through a RadioMedium, instead of
+ * having each a socket, a Timer and two threads.
+ * <p>
+ * Every node runs on its own SerialExecutor, so the packets it receives and
+ * its periodic task are handled one at a time, as by a real node. The
+ * periodic tasks of the nodes are spread over the TICK period, so that the
+ * beacons of the whole network are not sent at the same instant.
+ * <p>
+ * The nodes are created as usual, with a null neighbour file, and added to
+ * the emulator before it is started. A SinkNode still connects to its
+ * controller through TCP. For instance:
+ * <pre>
+ * Emulator emu = new Emulator(4, 1);
+ * SinkNode sink = emu.add(new SinkNode(id, new NodeAddress(1), 0,
+ *         "localhost", 9999, null, false), 0, 0);
+ * for (int i = 2; i &lt;= 2000; i++) {
+ *     emu.add(new SensorNode(id, new NodeAddress(i), 0, null, false),
+ *             x, y);
+ * }
+ * emu.connectInRange(15, 0.05, 2);
+ * emu.start();
+ * </pre>
+ * <p>
+ * Given a Simulation, the emulator runs on its virtual time: the nodes, the
+ * radio and the ticks are then driven by the thread calling Simulation.run,
+ * and two emulators built in the same way with the same seed produce the
+ * same trace. A sink built with a null controller address drops the packets
+ * for the controller, so that no real I/O takes part in the simulation.
+ */
+public final class Emulator {
+
+    /**
+     * The period of the periodic task of the nodes in milliseconds.
+     */
+    public final static long TICK = 1000;
+
+    private final Clock clock;
+    private final int threads;
+    private final ScheduledExecutorService scheduler;
+    private final RadioMedium medium;
+    private final Random random;
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<double[]> positions = new ArrayList<>();
+    private final List<ScheduledFuture<?>> ticks = new ArrayList<>();
+    private boolean started;
+    private boolean stopped;
+
+    /**
+     * Creates an emulator with a thread per processor.
+     */
+    public Emulator() {
+        this(Runtime.getRuntime().availableProcessors(), System.nanoTime());
+    }
+
+    /**
+     * Creates an emulator running in real time.
+     *
+     * @param threads the number of threads shared by the nodes.
+     * @param seed the seed of the losses and of the phases of the nodes.
+     */
+    public Emulator(int threads, long seed) {
+        this(Clock.SYSTEM, threads, seed);
+    }
+
+    /**
+     * Creates an emulator.
+     *
+     * @param clock the clock of the nodes, such as a Simulation.
+     * @param threads the number of threads shared by the nodes.
+     * @param seed the seed of the losses, of the phases and of the random
+     * choices of the nodes.
+     */
+    public Emulator(Clock clock, int threads, long seed) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads");
+        }
+        this.clock = clock;
+        this.threads = threads;
+        scheduler = clock.newScheduler("Emulator", threads);
+        random = new Random(seed);
+        medium = new RadioMedium(scheduler, random.nextLong());
+    }
+
+    /**
+     * Adds a node at the origin.
+     *
+     * @param <T> the type of the node.
+     * @param node the node.
+     * @return the node
+     */
+    public <T extends Node> T add(T node) {
+        return add(node, 0, 0);
+    }
+
+    /**
+     * Adds a node at a position, used by connectInRange.
+     *
+     * @param <T> the type of the node.
+     * @param node the node.
+     * @param x the abscissa of the node.
+     * @param y the ordinate of the node.
+     * @return the node
+     */
+    public synchronized <T extends Node> T add(T node, double x, double y) {
+        if (started || node.medium != null) {
+            throw new IllegalStateException("Node not added: " + node.addr);
+        }
+        node.medium = medium;
+        node.serial = new SerialExecutor(scheduler);
+        node.clock = clock;
+        node.random = new Random(random.nextLong());
+        nodes.add(node);
+        positions.add(new double[]{x, y});
+        return node;
+    }
+
+    /**
+     * Connects every pair of nodes closer than a range. The RSSI of a link
+     * decreases linearly with the distance, from 255 to SDN_WISE_DFLT_RSSI_MIN
+     * at the range, so every link can be used by a node to reach the sink.
+     *
+     * @param range the range of the radio.
+     * @param loss the probability of losing a frame on each link.
+     * @param delay the delay of the frames in milliseconds.
+     * @return the number of links created
+     */
+    public synchronized int connectInRange(double range, double loss,
+            long delay) {
+        int links = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            double[] a = positions.get(i);
+            for (int j = i + 1; j < nodes.size(); j++) {
+                double[] b = positions.get(j);
+                double d = Math.hypot(a[0] - b[0], a[1] - b[1]);
+                if (d < range) {
+                    int rssi = (int) Math.ceil(255
+                            - (255 - SDN_WISE_DFLT_RSSI_MIN) * d / range);
+                    medium.connect(nodes.get(i), nodes.get(j),
+                            Math.max(rssi, SDN_WISE_DFLT_RSSI_MIN + 1),
+                            loss, delay);
+                    links += 2;
+                }
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Starts the periodic tasks of the nodes.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        for (final Node node : nodes) {
+            final Runnable tick = new Runnable() {
+                @Override
+                public void run() {
+                    node.tick();
+                }
+            };
+            ticks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    node.serial.execute(tick);
+                }
+            }, random.nextInt((int) TICK), TICK, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Stops the nodes. The frames still travelling are lost.
+     *
+     * @param timeout the time to wait for the tasks running.
+     * @param unit the unit of the timeout.
+     * @return false if some task was still running when the time was up
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public boolean stop(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        synchronized (this) {
+            if (stopped) {
+                return scheduler.isTerminated();
+            }
+            stopped = true;
+            for (ScheduledFuture<?> tick : ticks) {
+                tick.cancel(false);
+            }
+        }
+        scheduler.shutdownNow();
+        boolean terminated = scheduler.awaitTermination(timeout, unit);
+        for (Node node : nodes) {
+            node.close();
+        }
+        return terminated;
+    }
+
+    /**
+     * Turns on or off the printing of the packets sent and received by the
+     * nodes, which slows down large networks.
+     *
+     * @param verbose true to print the packets.
+     */
+    public synchronized void setVerbose(boolean verbose) {
+        for (Node node : nodes) {
+            node.verbose = verbose;
+        }
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public RadioMedium getMedium() {
+        return medium;
+    }
+
+    public synchronized List<Node> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    /**
+     * Returns the number of tasks waiting to be run by the nodes.
+     *
+     * @return the total length of the queues of the nodes
+     */
+    public synchronized int getBacklog() {
+        int n = 0;
+        for (Node node : nodes) {
+            n += ((SerialExecutor) node.serial).size();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Emulator{nodes=" + nodes.size()
+                + ", threads=" + threads
+                + ", " + medium + "}";
+    }
+}
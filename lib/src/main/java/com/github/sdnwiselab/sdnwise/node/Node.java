@@ -42,18 +42,27 @@ import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_S
 import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_1;
 import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_2;
 import com.github.sdnwiselab.sdnwise.function.FunctionInterface;
+import com.github.sdnwiselab.sdnwise.metrics.Counter;
+import com.github.sdnwiselab.sdnwise.metrics.Histogram;
+import com.github.sdnwiselab.sdnwise.metrics.Metrics;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_ACCEPTED_ID_MAX;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_CONFIG_HDR_LEN;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_DFLT_CNT_BEACON_MAX;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_DFLT_CNT_REPORT_MAX;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_DFLT_CNT_UPDTABLE_MAX;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_DFLT_FLOW_MATCH;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_DFLT_HDR_LEN;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_DFLT_RSSI_MIN;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_FLOW_MATCH_COMPILED;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_FLOW_MATCH_VERIFY;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_MAC_SEND_BROADCAST;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_MAC_SEND_UNICAST;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_NEIGHBORS_MAX;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_RLS_MAX;
 import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_RL_TTL_DECR;
 import com.github.sdnwiselab.sdnwise.packet.BeaconPacket;
+import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_GET_RULES;
+import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_RULES_PER_PACKET;
 import com.github.sdnwiselab.sdnwise.packet.NetworkPacket;
 import com.github.sdnwiselab.sdnwise.packet.GeoCoordinatesPacket;
 import com.github.sdnwiselab.sdnwise.packet.GeoReportPacket;
@@ -71,6 +80,7 @@ import static com.github.sdnwiselab.sdnwise.packet.NetworkPacket.SDN_WISE_TYPE;
 import com.github.sdnwiselab.sdnwise.packet.OpenPathPacket;
 import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
 import com.github.sdnwiselab.sdnwise.packet.ResponsePacket;
+import com.github.sdnwiselab.sdnwise.util.Clock;
 import com.github.sdnwiselab.sdnwise.util.Neighbor;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
 import java.io.BufferedReader;
@@ -81,6 +91,8 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
@@ -97,9 +109,13 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
@@ -114,6 +130,30 @@ public abstract class Node implements Runnable {
 
     private static final String digits = "0123456789abcdef";
 
+    // metrics shared by the nodes of the process: the time spent by
+    // rxHandler on each type of packet, the last one for the unknown types,
+    // and the packets matched by each position of the FlowTable. SLOT_HITS
+    // are aggregate counters, one per slot summed over all the nodes and the
+    // rules held in that slot over time: the matches of a single rule of a
+    // node are counted by the FlowTableStats of its entry
+    private static final String[] RX_TYPES = {"data", "beacon", "report",
+        "request", "response", "open_path", "config", "dpid_connection",
+        "multicast_join", "multicast_leave", "geo_data", "geo_coordinates",
+        "geo_report", "other"};
+    private static final Histogram[] RX_TIME = new Histogram[RX_TYPES.length];
+    private static final Counter RX_DISCARDED = Metrics.counter("node.rx.discarded");
+    private static final Counter[] SLOT_HITS = new Counter[SDN_WISE_RLS_MAX];
+    private static final Counter FLOW_MISSES = Metrics.counter("node.flowmatch.miss");
+
+    static {
+        for (int i = 0; i < RX_TYPES.length; i++) {
+            RX_TIME[i] = Metrics.histogram("node.rx." + RX_TYPES[i]);
+        }
+        for (int i = 0; i < SDN_WISE_RLS_MAX; i++) {
+            SLOT_HITS[i] = Metrics.counter("node.flowmatch.slot." + i + ".hits");
+        }
+    }
+
     /**
      * @param args the command line arguments
      */
@@ -213,9 +253,36 @@ public abstract class Node implements Runnable {
             neighbors_number;
 
     private final byte[] buf;
+    private final byte[] txBuf = new byte[SDN_WISE_MAX_LEN];
+    private final DatagramPacket txPacket = new DatagramPacket(txBuf, txBuf.length);
+    private final ByteBuffer txBuffer = ByteBuffer.wrap(txBuf);
+    final PacketPool packetPool = new PacketPool();
+
+    // neighbourList sorted by address, to be searched without allocating
+    private int[] neighbourAddr = new int[0];
+    private FakeInfo[] neighbourInfo = new FakeInfo[0];
+
+    // set by an Emulator: the node then sends through the RadioMedium
+    // instead of its socket and runs its tasks on the serial executor
+    RadioMedium medium;
+    Executor serial;
+    // set by a NodePool: the node then sends through a non blocking channel
+    DatagramChannel channel;
+    // the links towards the nodes in range, managed by the RadioMedium
+    volatile RadioMedium.Link[] links = new RadioMedium.Link[0];
+    boolean verbose = true;
+    // the time of the battery and the random choices, also set by an
+    // Emulator running a Simulation
+    Clock clock = Clock.SYSTEM;
+    Random random = new Random();
+
+    private final Task task = new Task();
+    private final PacketManager packetManager = new PacketManager();
 
     ArrayList<Neighbor> neighborTable;
     ArrayList<FlowTableEntry> flowTable;
+    final CompiledFlowTable compiledFlowTable = new CompiledFlowTable();
+    int flowMatchMode = SDN_WISE_DFLT_FLOW_MATCH;
     ArrayList<NodeAddress> acceptedId;
     int[] statusRegister;
     HashMap<String, Object> adcRegister;
@@ -284,6 +351,22 @@ public abstract class Node implements Runnable {
         return semaphore;
     }
 
+    /**
+     * Sets how runFlowMatch looks up the FlowTable. The possible values are
+     * SDN_WISE_FLOW_MATCH_INTERPRETED, which walks the FlowTableEntry objects,
+     * SDN_WISE_FLOW_MATCH_COMPILED, which uses the compiled table, and
+     * SDN_WISE_FLOW_MATCH_VERIFY, which runs both and logs any difference.
+     *
+     * @param flowMatchMode the lookup mode.
+     */
+    public void setFlowMatchMode(int flowMatchMode) {
+        this.flowMatchMode = flowMatchMode;
+    }
+
+    public int getFlowMatchMode() {
+        return flowMatchMode;
+    }
+
     private void setup() {
         initSdnWise();
         initFlowTable();
@@ -413,6 +496,11 @@ public abstract class Node implements Runnable {
         flow_table_free_pos = 1;
         accepted_id_free_pos = 0;
 
+        if (configNeighbourFilePath == null) {
+            // an emulated node: the neighbours are given by the RadioMedium
+            indexNeighbours();
+            return;
+        }
         InputStream is = this.getClass().getResourceAsStream("/" + configNeighbourFilePath);
 
         try (BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"))) {
@@ -430,6 +518,30 @@ public abstract class Node implements Runnable {
         } catch (Exception ex) {
             Logger.getLogger(SinkNode.class.getName()).log(Level.SEVERE, null, ex);
         }
+        indexNeighbours();
+    }
+
+    /**
+     * Rebuilds the sorted copy of neighbourList used on the packet path. It
+     * has to be called every time neighbourList changes.
+     */
+    void indexNeighbours() {
+        TreeMap<NodeAddress, FakeInfo> sorted = new TreeMap<>(neighbourList);
+        int[] addrs = new int[sorted.size()];
+        FakeInfo[] infos = new FakeInfo[sorted.size()];
+        int i = 0;
+        for (Map.Entry<NodeAddress, FakeInfo> e : sorted.entrySet()) {
+            addrs[i] = e.getKey().intValue();
+            infos[i] = e.getValue();
+            i++;
+        }
+        neighbourInfo = infos;
+        neighbourAddr = addrs;
+    }
+
+    private FakeInfo getFakeInfo(int high, int low) {
+        int i = Arrays.binarySearch(neighbourAddr, (high << 8) | low);
+        return i >= 0 ? neighbourInfo[i] : null;
     }
 
     public void initFlowTable() {
@@ -470,6 +582,7 @@ public abstract class Node implements Runnable {
         for (i = 1; i < SDN_WISE_RLS_MAX; i++) {
             initRule(flowTable.get(i));
         }
+        compileFlowTable();
     }
 
     public void initNeighborTable() {
@@ -514,19 +627,17 @@ public abstract class Node implements Runnable {
         try {
             DatagramPacket packet = new DatagramPacket(buf, buf.length);
             socket = new DatagramSocket(port);
-            new Timer().schedule(new Task(), 1000, 1000);
-            new Thread(new PacketManager()).start();
+            new Timer().schedule(task, 1000, 1000);
+            new Thread(packetManager).start();
             new Thread(new PacketSender()).start();
 
             while (true) {
                 socket.receive(packet);
-                int[] tmp = new int[packet.getData()[0]];
-
-                for (int i = 0; i < packet.getLength(); i++) {
-                    tmp[i] = packet.getData()[i] & 0xFF;
+                int[] tmp = unpack(buf, packet.getLength());
+                if (tmp != null) {
+                    // from here on the packet belongs to the PacketManager
+                    flowTableQueue.put(tmp);
                 }
-
-                flowTableQueue.put(tmp);
             }
 
         } catch (IOException | InterruptedException ex) {
@@ -534,6 +645,117 @@ public abstract class Node implements Runnable {
         }
     }
 
+    /**
+     * Copies a frame received from the socket in an array of the pool.
+     *
+     * @param data the frame.
+     * @param length the number of bytes received.
+     * @return the packet, or null if the frame is shorter than a header
+     */
+    int[] unpack(byte[] data, int length) {
+        if (length < 1 || (data[0] & 0xFF) < SDN_WISE_DFLT_HDR_LEN) {
+            return null;
+        }
+        int[] tmp = packetPool.acquire(data[0] & 0xFF);
+        int len = Math.min(tmp.length, length);
+
+        for (int i = 0; i < len; i++) {
+            tmp[i] = data[i] & 0xFF;
+        }
+        Arrays.fill(tmp, len, tmp.length, 0);
+        return tmp;
+    }
+
+    /**
+     * Runs the periodic task of an emulated node: beacons, reports and the
+     * aging of the flow table. It is called every second by the Emulator or
+     * the NodePool, on the serial executor of the node.
+     */
+    void tick() {
+        task.run();
+        drainQueues();
+    }
+
+    /**
+     * Handles a packet received through the RadioMedium. It is called on the
+     * serial executor of the node, which owns the packet from now on.
+     *
+     * @param packet the packet, acquired from the pool of this node.
+     * @param rssi the RSSI of the link the packet came from.
+     */
+    void receive(int[] packet, int rssi) {
+        handle(packet, rssi);
+        drainQueues();
+    }
+
+    /**
+     * Hands a packet coming from outside the radio, such as a message of
+     * the controller received by a sink, to the node.
+     *
+     * @param packet the packet, acquired from the pool of this node.
+     */
+    void post(final int[] packet) {
+        if (serial == null) {
+            flowTableQueue.add(packet);
+            return;
+        }
+        serial.execute(new Runnable() {
+            @Override
+            public void run() {
+                receive(packet, rssiOf(packet));
+            }
+        });
+    }
+
+    private void handle(int[] packet, int rssi) {
+        battery.receiveRadio(packet.length);
+        try {
+            packetManager.rxHandler(packet, rssi);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        packetPool.release(packet);
+    }
+
+    // an emulated node has no threads taking from its queues
+    private void drainQueues() {
+        int[] packet;
+        boolean again = true;
+        while (again) {
+            again = false;
+            while ((packet = flowTableQueue.poll()) != null) {
+                handle(packet, rssiOf(packet));
+                again = true;
+            }
+            while ((packet = txQueue.poll()) != null) {
+                radioTX(packet, SDN_WISE_MAC_SEND_UNICAST);
+                packetPool.release(packet);
+                again = true;
+            }
+        }
+    }
+
+    private int rssiOf(int[] packet) {
+        FakeInfo fk = getFakeInfo(packet[SDN_WISE_SRC_H], packet[SDN_WISE_SRC_L]);
+        return fk != null ? fk.rssi : 255;
+    }
+
+    /**
+     * Releases the resources of the node.
+     */
+    void close() {
+        if (socket != null) {
+            socket.close();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
     void txBEACON() {
         BeaconPacket bp = new BeaconPacket();
         bp.setSrc(addr);
@@ -578,17 +800,22 @@ public abstract class Node implements Runnable {
     }
 
     void updateTable() {
+        boolean expired = false;
         for (int i = 0; i < SDN_WISE_RLS_MAX; i++) {
             int ttl = flowTable.get(i).getStats().getTtl();
             if (ttl >= SDN_WISE_RL_TTL_DECR) {
                 flowTable.get(i).getStats().setTtl((ttl - SDN_WISE_RL_TTL_DECR));
             } else {
                 initRule(flowTable.get(i));
+                expired = true;
                 if (i == 0) {
                     resetSemaphore();
                 }
             }
         }
+        if (expired) {
+            compileFlowTable();
+        }
     }
 
     void rxGeoData(int[] packet) {
@@ -742,6 +969,34 @@ public abstract class Node implements Runnable {
     }
 
     void runFlowMatch(int[] packet) {
+        int found;
+        switch (flowMatchMode) {
+            case SDN_WISE_FLOW_MATCH_COMPILED:
+                found = runCompiledFlowMatch(packet);
+                break;
+            case SDN_WISE_FLOW_MATCH_VERIFY:
+                verifyFlowMatch(packet);
+                found = runInterpretedFlowMatch(packet);
+                break;
+            default:
+                found = runInterpretedFlowMatch(packet);
+                break;
+        }
+        if (found == 0) { //!found
+            FLOW_MISSES.inc();
+            // It's necessary to send a rule/request if we have done the lookup
+            // I must modify the source address with myself,
+            NetworkPacket np = new NetworkPacket(packet)
+                    .setSrc(addr)
+                    .setRequestFlag()
+                    .setTtl(SDN_WISE_DFLT_TTL_MAX)
+                    .setNxhop(((FlowTableActionForward) flowTable.get(0)
+                            .getAction()).getNextHop());
+            controllerTX(np.toIntArray());
+        }
+    }
+
+    int runInterpretedFlowMatch(int[] packet) {
         int j, i, found = 0;
         for (j = 0; j < SDN_WISE_RLS_MAX; j++) {
 
@@ -749,6 +1004,7 @@ public abstract class Node implements Runnable {
 
             if (matchRule(flowTable.get(i), packet) == 1) {
                 found = 1;
+                SLOT_HITS[i].inc();
                 runAction(flowTable.get(i).getAction(), packet);
                 flowTable.get(i).getStats()
                         .setCounter(flowTable.get(i).getStats().getCounter() + 1);
@@ -757,21 +1013,102 @@ public abstract class Node implements Runnable {
                 }
             }
         }
-        if (found == 0) { //!found
-            // It's necessary to send a rule/request if we have done the lookup
-            // I must modify the source address with myself,
-            NetworkPacket np = new NetworkPacket(packet)
-                    .setSrc(addr)
-                    .setRequestFlag()
-                    .setTtl(SDN_WISE_DFLT_TTL_MAX)
-                    .setNxhop(((FlowTableActionForward) flowTable.get(0)
-                            .getAction()).getNextHop());
-            controllerTX(np.toIntArray());
+        return found;
+    }
+
+    // Same semantics as runInterpretedFlowMatch, using the compiled table
+    int runCompiledFlowMatch(int[] packet) {
+        int i, found = 0;
+        int j = compiledFlowTable.next(0, packet, statusRegister);
+        while (j != -1) {
+            found = 1;
+            i = getActualFlowIndex(j);
+            SLOT_HITS[i].inc();
+            runAction(flowTable.get(i).getAction(), packet);
+            flowTable.get(i).getStats()
+                    .setCounter(flowTable.get(i).getStats().getCounter() + 1);
+            if (!(flowTable.get(i).getAction().isMultimatch())) {
+                break;
+            }
+            j = compiledFlowTable.next(j + 1, packet, statusRegister);
         }
+        return found;
+    }
+
+    // Compares the rules found by the interpreter and by the compiled table
+    void verifyFlowMatch(int[] packet) {
+        int compiled = -1;
+        for (int j = 0; j < SDN_WISE_RLS_MAX; j++) {
+            boolean interpreted = matchRule(
+                    flowTable.get(getActualFlowIndex(j)), packet) == 1;
+            if (compiled < j) {
+                compiled = compiledFlowTable.next(j, packet, statusRegister);
+                if (compiled == -1) {
+                    compiled = SDN_WISE_RLS_MAX;
+                }
+            }
+            if (interpreted != (compiled == j)) {
+                Logger.getLogger(Node.class.getName()).log(Level.WARNING,
+                        "[N{0}]: flow match mismatch at position {1} for {2}",
+                        new Object[]{addr, j, Arrays.toString(packet)});
+                return;
+            }
+        }
+    }
+
+    // Compiles the table again, to be called after every change of the
+    // flowTable
+    void compileFlowTable() {
+        int[] scanOrder = new int[SDN_WISE_RLS_MAX];
+        for (int j = 0; j < SDN_WISE_RLS_MAX; j++) {
+            scanOrder[j] = getActualFlowIndex(j);
+        }
+        compiledFlowTable.compile(flowTable, scanOrder);
     }
 
     abstract void rxConfig(int[] packet);
 
+    // Answers SDN_WISE_CNF_GET_RULES: all the rules, in scan order, split
+    // into numbered packets
+    void txRules(int[] packet) {
+        int total = (SDN_WISE_RLS_MAX + SDN_WISE_CNF_RULES_PER_PACKET - 1)
+                / SDN_WISE_CNF_RULES_PER_PACKET;
+        NodeAddress nxHop = ((FlowTableActionForward) flowTable.get(0)
+                .getAction()).getNextHop();
+
+        for (int seq = 0; seq < total; seq++) {
+            int first = seq * SDN_WISE_CNF_RULES_PER_PACKET;
+            int last = Math.min(first + SDN_WISE_CNF_RULES_PER_PACKET,
+                    SDN_WISE_RLS_MAX);
+            int[] packetList = new int[SDN_WISE_CONFIG_HDR_LEN + 3
+                    + (last - first) * FlowTableEntry.SDN_WISE_RULE_LEN];
+
+            packetList[SDN_WISE_LEN] = packetList.length;
+            packetList[SDN_WISE_NET_ID] = net_id;
+            packetList[SDN_WISE_SRC_H] = packet[SDN_WISE_DST_H];
+            packetList[SDN_WISE_SRC_L] = packet[SDN_WISE_DST_L];
+            packetList[SDN_WISE_DST_H] = packet[SDN_WISE_SRC_H];
+            packetList[SDN_WISE_DST_L] = packet[SDN_WISE_SRC_L];
+            packetList[SDN_WISE_TYPE] = packet[SDN_WISE_TYPE];
+            packetList[SDN_WISE_TTL] = ttl_max;
+            packetList[SDN_WISE_NXHOP_H] = nxHop.getHigh();
+            packetList[SDN_WISE_NXHOP_L] = nxHop.getLow();
+
+            int ii = SDN_WISE_CONFIG_HDR_LEN;
+            packetList[ii++] = SDN_WISE_CNF_GET_RULES;
+            packetList[ii++] = seq;
+            packetList[ii++] = total;
+
+            for (int j = first; j < last; j++) {
+                byte[] tmp = flowTable.get(getActualFlowIndex(j)).toByteArray();
+                for (byte b : tmp) {
+                    packetList[ii++] = b & 0xFF;
+                }
+            }
+            controllerTX(packetList);
+        }
+    }
+
     void insertRule(FlowTableEntry rule, int pos) {
         if (pos >= SDN_WISE_RLS_MAX) {
             pos = flow_table_free_pos; // TODO controllare
@@ -782,6 +1119,7 @@ public abstract class Node implements Runnable {
         }
         System.out.println("inserting rule " + rule + " at position " + pos);
         flowTable.set(pos, rule);
+        compileFlowTable();
     }
 
     // Verifica che una condizione di una finestra di una regola è soddisfatta
@@ -847,7 +1185,7 @@ public abstract class Node implements Runnable {
                 int prob = ftad.getDropRate();
                 // Se prob di drop=70% significa che se genero un numero,
                 // droppo il pacchetto se il numero generato è inferiore a 70
-                if ((Math.random() * 100) > prob) {
+                if ((random.nextDouble() * 100) > prob) {
 
                     // il secondo  int indica il secondo  int
                     // dell'indirizzo del nodo a cui forwardare il pacchetto
@@ -873,7 +1211,7 @@ public abstract class Node implements Runnable {
                     packet[ftam.getOffset()] = ftam.getValueHigh();
                     packet[ftam.getOffset() + 1] = ftam.getValueLow();
                     // TODO considerare il caso del multicas quando si inseriscono i  int[] nella flowTableQueue
-                    flowTableQueue.add(packet);
+                    flowTableQueue.add(copyPacket(packet));
                     packet[ftam.getOffset()] = tmpAct1;
                     packet[ftam.getOffset() + 1] = tmpAct2;
                 } else {
@@ -882,7 +1220,7 @@ public abstract class Node implements Runnable {
 
                     statusRegister[ftam.getOffset()] = ftam.getValueHigh();
                     statusRegister[ftam.getOffset() + 1] = ftam.getValueLow();
-                    flowTableQueue.add(packet);
+                    flowTableQueue.add(copyPacket(packet));
                 }
                 break;
             case SDN_WISE_AGGREGATE:
@@ -902,6 +1240,8 @@ public abstract class Node implements Runnable {
                             ftac.getCallbackArgument(),
                             new NetworkPacket(packet)
                     );
+                    // the function may have changed the flow table
+                    compileFlowTable();
                 }
                 break;
             default:
@@ -909,6 +1249,14 @@ public abstract class Node implements Runnable {
         }//switch
     }
 
+    // The packet received goes back to the pool after rxHandler, so what is
+    // queued again must be a copy
+    int[] copyPacket(int[] packet) {
+        int[] copy = packetPool.acquire(packet.length);
+        System.arraycopy(packet, 0, copy, 0, packet.length);
+        return copy;
+    }
+
     int doOperation(int operatore, int item1, int item2) {
         switch (operatore) {
             case SDN_WISE_EQUAL:
@@ -929,6 +1277,10 @@ public abstract class Node implements Runnable {
     }
 
     int searchRule(FlowTableEntry rule) {
+        if (flowMatchMode == SDN_WISE_FLOW_MATCH_COMPILED) {
+            int i = compiledFlowTable.find(flowTable, rule);
+            return i == -1 ? SDN_WISE_RLS_MAX + 1 : i;
+        }
         int i, j, sum, target;
 
         for (i = 0; i < SDN_WISE_RLS_MAX; i++) {
@@ -1014,38 +1366,64 @@ public abstract class Node implements Runnable {
     public void radioTX(int[] packetInt, boolean sdn_wise_mac_send_unicast) {
         battery.transmitRadio(packetInt.length);
 
-        System.out.println("[N" + addr.toString() + "]: RTX " + Arrays.toString(packetInt));
-
-        NetworkPacket np = new NetworkPacket(packetInt);
+        if (verbose) {
+            System.out.println("[N" + addr.toString() + "]: RTX " + Arrays.toString(packetInt));
+        }
 
-        NodeAddress tmpNxHop = np.getNxhop();
-        NodeAddress tmpDst = np.getDst();
+        if (packetInt.length > SDN_WISE_MAX_LEN
+                || packetInt.length < SDN_WISE_DFLT_HDR_LEN) {
+            throw new IllegalArgumentException("Invalid array size: " + packetInt.length);
+        }
 
-        if (tmpDst.equals(new NodeAddress("255.255"))) {
-            for (FakeInfo isa : neighbourList.values()) {
-                DatagramPacket pck = new DatagramPacket(np.toByteArray(), np.getLen(),
-                        isa.inetAddress.getAddress(), isa.inetAddress.getPort());
-                try {
-                    socket.send(pck);
+        // txBuf and txPacket are shared by the transmitting threads
+        synchronized (txBuf) {
+            int len = packetInt[SDN_WISE_LEN] & 0xFF;
+            int n = Math.min(len, packetInt.length);
+            for (int i = 0; i < n; i++) {
+                txBuf[i] = (byte) packetInt[i];
+            }
+            Arrays.fill(txBuf, n, len, (byte) 0);
+            txPacket.setData(txBuf, 0, len);
 
-                } catch (IOException ex) {
-                    Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
+            if (medium != null) {
+                if ((packetInt[SDN_WISE_DST_H] & 0xFF) == 255
+                        && (packetInt[SDN_WISE_DST_L] & 0xFF) == 255) {
+                    medium.transmit(this, txBuf, len, -1);
+                } else {
+                    medium.transmit(this, txBuf, len,
+                            (packetInt[SDN_WISE_NXHOP_H] & 0xFF) << 8
+                            | (packetInt[SDN_WISE_NXHOP_L] & 0xFF));
                 }
-            }
-        } else {
-            FakeInfo isa = neighbourList.get(tmpNxHop);
-            if (isa != null) {
-                try {
-                    DatagramPacket pck = new DatagramPacket(np.toByteArray(), np.getLen(),
-                            isa.inetAddress.getAddress(), isa.inetAddress.getPort());
-                    socket.send(pck);
-                } catch (UnknownHostException ex) {
-                    Logger.getLogger(SensorNode.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (IOException ex) {
-                    Logger.getLogger(SensorNode.class.getName()).log(Level.SEVERE, null, ex);
+            } else if ((packetInt[SDN_WISE_DST_H] & 0xFF) == 255
+                    && (packetInt[SDN_WISE_DST_L] & 0xFF) == 255) {
+                for (FakeInfo isa : neighbourInfo) {
+                    send(isa.inetAddress, len);
+                }
+            } else {
+                FakeInfo isa = getFakeInfo(packetInt[SDN_WISE_NXHOP_H] & 0xFF,
+                        packetInt[SDN_WISE_NXHOP_L] & 0xFF);
+                if (isa != null) {
+                    send(isa.inetAddress, len);
                 }
+
             }
+        }
+    }
 
+    // sends the frame in txBuf, holding its lock
+    private void send(InetSocketAddress to, int len) {
+        try {
+            if (channel != null) {
+                // a full send buffer drops the frame, as a busy radio would
+                txBuffer.clear();
+                txBuffer.limit(len);
+                channel.send(txBuffer, to);
+            } else {
+                txPacket.setSocketAddress(to);
+                socket.send(txPacket);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
@@ -1089,11 +1467,20 @@ public abstract class Node implements Runnable {
         private int cntBeacon;
         private int cntReport;
         private int cntUpdTable;
+        // the battery is charged for the whole seconds elapsed since then
+        private long aliveSince = Long.MIN_VALUE;
 
         @Override
         public void run() {
+            long now = clock.millis();
+            if (aliveSince == Long.MIN_VALUE) {
+                aliveSince = now - 1000;
+            }
+            int seconds = (int) ((now - aliveSince) / 1000);
+            aliveSince += seconds * 1000L;
+
             if (semaphore == 1) {
-                battery.keepAlive(1);
+                battery.keepAlive(seconds);
 
                 cntBeacon++;
                 cntReport++;
@@ -1124,7 +1511,9 @@ public abstract class Node implements Runnable {
         public void run() {
             try {
                 while (true) {
-                    radioTX(txQueue.take(), SDN_WISE_MAC_SEND_UNICAST);
+                    int[] tmp = txQueue.take();
+                    radioTX(tmp, SDN_WISE_MAC_SEND_UNICAST);
+                    packetPool.release(tmp);
                 }
             } catch (InterruptedException ex) {
                 Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
@@ -1138,17 +1527,8 @@ public abstract class Node implements Runnable {
         public void run() {
             try {
                 while (true) {
-                    int rssi;
                     int[] tmp = flowTableQueue.take();
-                    NetworkPacket tmpPacket = new NetworkPacket(tmp);
-                    FakeInfo fk = neighbourList.get(tmpPacket.getSrc());
-                    if (fk != null) {
-                        rssi = fk.rssi;
-                    } else {
-                        rssi = 255;
-                    }
-                    battery.receiveRadio(tmp.length);
-                    rxHandler(tmp, rssi);
+                    handle(tmp, rssiOf(tmp));
                 }
             } catch (InterruptedException ex) {
                 Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
@@ -1156,12 +1536,16 @@ public abstract class Node implements Runnable {
         }
 
         public void rxHandler(int[] packet, int rssi) throws InterruptedException {
-            System.out.println("[N" + addr.toString() + "]: RRX " + Arrays.toString(packet));
+            if (verbose) {
+                System.out.println("[N" + addr.toString() + "]: RRX " + Arrays.toString(packet));
+            }
 
             if (packet[SDN_WISE_LEN] > SDN_WISE_DFLT_HDR_LEN
                     && packet[SDN_WISE_NET_ID] == net_id
                     && packet[SDN_WISE_TTL] != 0) {
 
+                int type = packet[SDN_WISE_TYPE];
+                long start = System.nanoTime();
                 switch (packet[SDN_WISE_TYPE]) {
                     case SDN_WISE_DATA:
                         rxData(packet);
@@ -1204,6 +1588,10 @@ public abstract class Node implements Runnable {
                         rxREPORT(packet);
                         break;
                 }// fine switch sul type
+                RX_TIME[type >= 0 && type < RX_TIME.length ? type
+                        : RX_TIME.length - 1].record(System.nanoTime() - start);
+            } else {
+                RX_DISCARDED.inc();
             }// fine if sull'address
         }
     }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import com.github.sdnwiselab.sdnwise.util.Clock;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many nodes talking UDP in the same JVM. Run as a Runnable, a node
+ * takes four threads: the receiving loop, its PacketManager, its
+ * PacketSender and its Timer. In a NodePool the nodes share a few threads
+ * instead:
+ * <ul>
+ * <li>a single selector thread receives the datagrams of all the nodes
+ * from non blocking channels;</li>
+ * <li>every node handles the packets received and its periodic task on its
+ * own SerialExecutor, one at a time, on a shared scheduler;</li>
+ * <li>the packets queued by a node are sent at the end of each of its
+ * tasks, so that no thread waits on its queues.</li>
+ * </ul>
+ * The nodes are created as usual, with their neighbour files, and started
+ * by the pool instead of being run by a thread. A SinkNode keeps its own
+ * connection to the controller.
+ */
+public final class NodePool {
+
+    // frames received from a node before going to the next one
+    private final static int BATCH = 16;
+
+    private final int threads;
+    private final ScheduledExecutorService scheduler;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final ConcurrentLinkedQueue<Node> registrations = new ConcurrentLinkedQueue<>();
+    private final byte[] rxBuf = new byte[1024];
+    private final ByteBuffer rx = ByteBuffer.wrap(rxBuf);
+    private final Random random = new Random();
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<ScheduledFuture<?>> ticks = new ArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool with a thread per processor.
+     *
+     * @throws IOException if the selector can not be opened
+     */
+    public NodePool() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param threads the number of threads shared by the nodes.
+     * @throws IOException if the selector can not be opened
+     */
+    public NodePool(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads");
+        }
+        this.threads = threads;
+        selector = Selector.open();
+        scheduler = Clock.SYSTEM.newScheduler("NodePool", threads);
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        }, "NodePool selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Binds the port of a node and starts it.
+     *
+     * @param node the node, not started yet.
+     * @return false if the port of the node can not be bound
+     */
+    public synchronized boolean start(final Node node) {
+        if (closed || node.serial != null) {
+            throw new IllegalStateException("Node not started: " + node.addr);
+        }
+        DatagramChannel ch = null;
+        try {
+            ch = DatagramChannel.open();
+            ch.configureBlocking(false);
+            ch.socket().bind(new InetSocketAddress(node.port));
+        } catch (IOException ex) {
+            Logger.getLogger(NodePool.class.getName()).log(Level.SEVERE, null, ex);
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+            return false;
+        }
+        node.channel = ch;
+        node.serial = new SerialExecutor(scheduler);
+        nodes.add(node);
+        registrations.add(node);
+        selector.wakeup();
+
+        final Runnable tick = new Runnable() {
+            @Override
+            public void run() {
+                node.tick();
+            }
+        };
+        ticks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                node.serial.execute(tick);
+            }
+        }, Emulator.TICK + random.nextInt((int) Emulator.TICK),
+                Emulator.TICK, TimeUnit.MILLISECONDS));
+        return true;
+    }
+
+    private void select() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                Logger.getLogger(NodePool.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+            Node node;
+            while ((node = registrations.poll()) != null) {
+                try {
+                    node.channel.register(selector, SelectionKey.OP_READ, node);
+                } catch (ClosedChannelException ex) {
+                    Logger.getLogger(NodePool.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (key.isReadable()) {
+                        receive((Node) key.attachment());
+                    }
+                } catch (CancelledKeyException ex) {
+                    // the node has been closed
+                }
+            }
+        }
+    }
+
+    private void receive(Node node) {
+        for (int n = 0; n < BATCH; n++) {
+            rx.clear();
+            try {
+                if (node.channel.receive(rx) == null) {
+                    return;
+                }
+            } catch (IOException ex) {
+                if (!closed) {
+                    Logger.getLogger(NodePool.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                return;
+            }
+            int[] packet = node.unpack(rxBuf, rx.position());
+            if (packet != null) {
+                node.post(packet);
+            }
+        }
+    }
+
+    /**
+     * Stops the nodes and closes their sockets.
+     *
+     * @param timeout the time to wait for the tasks running.
+     * @param unit the unit of the timeout.
+     * @return false if some task was still running when the time was up
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public boolean stop(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return scheduler.isTerminated();
+            }
+            closed = true;
+            for (ScheduledFuture<?> tick : ticks) {
+                tick.cancel(false);
+            }
+        }
+        selector.wakeup();
+        selectorThread.join(unit.toMillis(timeout));
+        scheduler.shutdownNow();
+        boolean terminated = scheduler.awaitTermination(timeout, unit);
+        for (Node node : nodes) {
+            node.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            Logger.getLogger(NodePool.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return terminated;
+    }
+
+    /**
+     * Turns on or off the printing of the packets sent and received by the
+     * nodes.
+     *
+     * @param verbose true to print the packets.
+     */
+    public synchronized void setVerbose(boolean verbose) {
+        for (Node node : nodes) {
+            node.verbose = verbose;
+        }
+    }
+
+    public synchronized List<Node> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NodePool{nodes=" + nodes.size() + ", threads=" + threads + "}";
+    }
+}
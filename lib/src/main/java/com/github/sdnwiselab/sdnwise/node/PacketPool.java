@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+/**
+ * A pool of the int arrays used to move packets inside a node. Arrays are
+ * grouped by length, since the length of the array is the length of the
+ * packet for the rest of the node.
+ * <p>
+ * An array taken with acquire belongs to the thread that took it until it is
+ * handed to another thread (by putting it in flowTableQueue or txQueue) or
+ * given back with release. After release the array must not be used anymore.
+ * The PacketManager releases the packets after rxHandler and the PacketSender
+ * after radioTX, so rxHandler must copy a packet it wants to keep.
+ */
+final class PacketPool {
+
+    // packet lengths are stored in one byte
+    private final static int LENGTHS = 256;
+    private final static int DEPTH = 32;
+
+    private final int[][][] free = new int[LENGTHS][][];
+    private final int[] count = new int[LENGTHS];
+
+    /**
+     * Returns an array of the given length, reusing a released one if
+     * possible. The content of the array is undefined.
+     *
+     * @param length the length of the array.
+     * @return an array of the given length.
+     */
+    synchronized int[] acquire(int length) {
+        if (length < LENGTHS && count[length] > 0) {
+            int[] packet = free[length][--count[length]];
+            free[length][count[length]] = null;
+            return packet;
+        }
+        return new int[length];
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays exceeding the capacity of the
+     * pool are left to the garbage collector.
+     *
+     * @param packet the array to be released.
+     */
+    synchronized void release(int[] packet) {
+        int length = packet.length;
+        if (length >= LENGTHS) {
+            return;
+        }
+        if (free[length] == null) {
+            free[length] = new int[DEPTH][];
+        }
+        if (count[length] < DEPTH) {
+            free[length][count[length]++] = packet;
+        }
+    }
+}
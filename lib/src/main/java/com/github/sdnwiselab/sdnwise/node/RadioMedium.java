@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The radio shared by the nodes of an Emulator. The frames sent by a node
+ * are copied in memory to the nodes it has a link to, instead of being sent
+ * as UDP datagrams.
+ * <p>
+ * A link goes from a node to another and has an RSSI, seen by the receiver
+ * as the RSSI of the frame, a probability of losing a frame and a delay. A
+ * broadcast frame is sent on every link of the sender, a unicast frame only
+ * on the link towards its next hop. Links can be changed while the emulation
+ * runs.
+ */
+public final class RadioMedium {
+
+    /**
+     * A link from a node to another.
+     */
+    static final class Link {
+
+        final Node to;
+        final int rssi;
+        final double loss;
+        final long delay;
+
+        Link(Node to, int rssi, double loss, long delay) {
+            this.to = to;
+            this.rssi = rssi;
+            this.loss = loss;
+            this.delay = delay;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+
+    private final AtomicLong transmitted = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong unreachable = new AtomicLong();
+
+    /**
+     * Creates a medium.
+     *
+     * @param scheduler the scheduler of the delayed frames.
+     * @param seed the seed of the losses.
+     */
+    RadioMedium(ScheduledExecutorService scheduler, long seed) {
+        this.scheduler = scheduler;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Sets the link from a node to another, replacing the existing one. Both
+     * nodes must have been added to the Emulator of this medium.
+     *
+     * @param from the sender.
+     * @param to the receiver.
+     * @param rssi the RSSI of the frames received by to, from 0 to 255.
+     * @param loss the probability of losing a frame, from 0 to 1.
+     * @param delay the delay of the frames in milliseconds.
+     */
+    public void setLink(Node from, Node to, int rssi, double loss,
+            long delay) {
+        if (from.medium != this || to.medium != this) {
+            throw new IllegalArgumentException("Node not emulated");
+        }
+        if (from == to || rssi < 0 || rssi > 255 || loss < 0 || loss > 1
+                || delay < 0) {
+            throw new IllegalArgumentException("Invalid link");
+        }
+        synchronized (this) {
+            Link[] links = from.links;
+            int i = indexOf(links, to);
+            Link[] copy;
+            if (i < 0) {
+                copy = Arrays.copyOf(links, links.length + 1);
+                i = links.length;
+            } else {
+                copy = links.clone();
+            }
+            copy[i] = new Link(to, rssi, loss, delay);
+            from.links = copy;
+        }
+    }
+
+    /**
+     * Removes the link from a node to another.
+     *
+     * @param from the sender.
+     * @param to the receiver.
+     */
+    public void removeLink(Node from, Node to) {
+        synchronized (this) {
+            Link[] links = from.links;
+            int i = indexOf(links, to);
+            if (i >= 0) {
+                Link[] copy = new Link[links.length - 1];
+                System.arraycopy(links, 0, copy, 0, i);
+                System.arraycopy(links, i + 1, copy, i, copy.length - i);
+                from.links = copy;
+            }
+        }
+    }
+
+    /**
+     * Sets two links with the same properties between two nodes, one for
+     * each direction.
+     *
+     * @param a a node.
+     * @param b another node.
+     * @param rssi the RSSI of the frames.
+     * @param loss the probability of losing a frame.
+     * @param delay the delay of the frames in milliseconds.
+     */
+    public void connect(Node a, Node b, int rssi, double loss, long delay) {
+        setLink(a, b, rssi, loss, delay);
+        setLink(b, a, rssi, loss, delay);
+    }
+
+    /**
+     * Removes the links between two nodes.
+     *
+     * @param a a node.
+     * @param b another node.
+     */
+    public void disconnect(Node a, Node b) {
+        removeLink(a, b);
+        removeLink(b, a);
+    }
+
+    private static int indexOf(Link[] links, Node to) {
+        for (int i = 0; i < links.length; i++) {
+            if (links[i].to == to) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sends a frame. It is called by the node holding the lock of frame.
+     *
+     * @param from the sender.
+     * @param frame the frame.
+     * @param len the length of the frame.
+     * @param nextHop the address of the receiver, or -1 to send the frame
+     * to every node in range.
+     */
+    void transmit(Node from, byte[] frame, int len, int nextHop) {
+        transmitted.incrementAndGet();
+        boolean sent = false;
+        for (Link link : from.links) {
+            if (nextHop >= 0 && link.to.addr.intValue() != nextHop) {
+                continue;
+            }
+            sent = true;
+            if (link.loss > 0 && random.nextDouble() < link.loss) {
+                lost.incrementAndGet();
+            } else {
+                deliver(link, frame, len);
+            }
+            if (nextHop >= 0) {
+                break;
+            }
+        }
+        if (!sent && nextHop >= 0) {
+            unreachable.incrementAndGet();
+        }
+    }
+
+    private void deliver(Link link, byte[] frame, int len) {
+        final Node to = link.to;
+        final int[] packet = to.packetPool.acquire(len);
+        for (int i = 0; i < len; i++) {
+            packet[i] = frame[i] & 0xFF;
+        }
+        final int rssi = link.rssi;
+        final Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                delivered.incrementAndGet();
+                to.receive(packet, rssi);
+            }
+        };
+        try {
+            if (link.delay == 0) {
+                to.serial.execute(delivery);
+            } else {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        to.serial.execute(delivery);
+                    }
+                }, link.delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException ex) {
+            // the emulation has been stopped
+            to.packetPool.release(packet);
+        }
+    }
+
+    /**
+     * Returns the number of frames sent by the nodes.
+     *
+     * @return the number of frames sent
+     */
+    public long getTransmitted() {
+        return transmitted.get();
+    }
+
+    /**
+     * Returns the number of copies of the frames received by the nodes.
+     *
+     * @return the number of frames received
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of copies of the frames lost on a link.
+     *
+     * @return the number of frames lost
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Returns the number of unicast frames whose next hop was not in range.
+     *
+     * @return the number of frames without a receiver
+     */
+    public long getUnreachable() {
+        return unreachable.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RadioMedium{transmitted=" + transmitted
+                + ", delivered=" + delivered
+                + ", lost=" + lost
+                + ", unreachable=" + unreachable + "}";
+    }
+}
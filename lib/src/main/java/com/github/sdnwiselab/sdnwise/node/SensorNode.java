@@ -34,6 +34,7 @@ import com.github.sdnwiselab.sdnwise.packet.BeaconPacket;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ADD_ACCEPTED;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ADD_FUNCTION;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_GET_RULE_INDEX;
+import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_GET_RULES;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ID_ADDR;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ID_CNT_BEACON_MAX;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ID_CNT_REPORT_MAX;
@@ -105,6 +106,7 @@ public class SensorNode extends Node {
                     txQueue,
                     0,
                     new NetworkPacket(packet));         
+            compileFlowTable();
         }
     }
 
@@ -164,6 +166,7 @@ public class SensorNode extends Node {
                         );
                 
                 flowTable.get(0).setStats(new FlowTableStats());
+                compileFlowTable();
                 
                 setNum_hop_vs_sink(bp.getDist() + 1);
             } else if (
@@ -243,6 +246,7 @@ public class SensorNode extends Node {
                     case SDN_WISE_CNF_REMOVE_RULE_INDEX:
                         if (value != 0) {
                             initRule(flowTable.get(getActualFlowIndex(value)));
+                            compileFlowTable();
                         }
                         break;
                     case SDN_WISE_CNF_REMOVE_RULE:
@@ -350,6 +354,10 @@ public class SensorNode extends Node {
 
                         controllerTX(packetList);
 
+                        break;
+                    case SDN_WISE_CNF_GET_RULES:
+                        toBeSent = 0;
+                        txRules(packet);
                         break;
                     case SDN_WISE_CNF_GET_RULE_INDEX:
                         toBeSent = 0;
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the tasks of a node one at a time, in the order they were submitted,
+ * on an executor shared by many nodes. A node running on a SerialExecutor
+ * needs no lock and no thread of its own.
+ * <p>
+ * At most BATCH tasks are run at once, then the executor is asked again, so
+ * that a busy node does not starve the others.
+ */
+final class SerialExecutor implements Executor {
+
+    private final static int BATCH = 64;
+
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException ex) {
+                // the executor has been shut down
+                tasks.clear();
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        int n = BATCH;
+        Runnable task;
+        while (n-- > 0 && (task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(SerialExecutor.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+        }
+        scheduled.set(false);
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to be run.
+     *
+     * @return the number of tasks in the queue
+     */
+    int size() {
+        return tasks.size();
+    }
+}
@@ -16,6 +16,7 @@
  */
 package com.github.sdnwiselab.sdnwise.node;
 
+import com.github.sdnwiselab.sdnwise.adapter.OutboundQueue;
 import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableAction.SDN_WISE_FORWARD_UP;
 import com.github.sdnwiselab.sdnwise.flowtable.FlowTableActionForward;
 import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry.SDN_WISE_WINDOWS_MAX;
@@ -30,6 +31,7 @@ import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_CONFIG_HDR_L
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ADD_ACCEPTED;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ADD_FUNCTION;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_GET_RULE_INDEX;
+import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_GET_RULES;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ID_ADDR;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ID_CNT_BEACON_MAX;
 import static com.github.sdnwiselab.sdnwise.packet.ConfigPacket.SDN_WISE_CNF_ID_CNT_REPORT_MAX;
@@ -55,11 +57,11 @@ import static com.github.sdnwiselab.sdnwise.packet.NetworkPacket.SDN_WISE_SRC_L;
 import static com.github.sdnwiselab.sdnwise.packet.NetworkPacket.SDN_WISE_TTL;
 import static com.github.sdnwiselab.sdnwise.packet.NetworkPacket.SDN_WISE_TYPE;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.net.UnknownHostException;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -83,6 +85,11 @@ public class SinkNode extends Node {
     private final int portController;
     private Socket tcpSocket;
     private DataOutputStream inviaOBJ;
+    // the packets sent to the controller over TCP, while txQueue holds the
+    // ones sent over the radio
+    private final OutboundQueue controllerQueue = new OutboundQueue(
+            OutboundQueue.DFLT_CAPACITY, OutboundQueue.BLOCK,
+            OutboundQueue.DFLT_BATCH, 0);
     private DataInputStream riceviOBJ;
 
     public SinkNode(byte net_id, NodeAddress node,
@@ -118,10 +125,16 @@ public class SinkNode extends Node {
             flowTable.get(0).getWindows()[k] = new FlowTableWindow();
         }
         flowTable.get(0).setAction(new FlowTableActionForward());
+        compileFlowTable();
         
         setNum_hop_vs_sink(0);
 
-        startListening();
+        if (addrController != null) {
+            startListening();
+        } else {
+            // no controller, as in a Simulation: its packets are dropped
+            controllerQueue.close();
+        }
     }
 
     @Override
@@ -162,11 +175,27 @@ public class SinkNode extends Node {
     private void startListening() {
         try {
             tcpSocket = new Socket(addrController, portController);
+            tcpSocket.setTcpNoDelay(true);
+            inviaOBJ = new DataOutputStream(new BufferedOutputStream(
+                    tcpSocket.getOutputStream(), OutboundQueue.DFLT_BATCH));
+            controllerQueue.start("SinkNode " + addr,
+                    new OutboundQueue.Sink() {
+                @Override
+                public void write(byte[][] frames, Object[] targets, int count)
+                        throws IOException {
+                    for (int i = 0; i < count; i++) {
+                        inviaOBJ.write(frames[i]);
+                    }
+                    inviaOBJ.flush();
+                }
+            });
             Thread th = new Thread(new TcpListener());
             th.start();
 
         } catch (IOException ex) {
             Logger.getLogger(SinkNode.class.getName()).log(Level.SEVERE, null, ex);
+            // the packets for the controller must not block the node
+            controllerQueue.close();
         }
     }
 
@@ -189,16 +218,11 @@ public class SinkNode extends Node {
             packet[i] = (byte) packetInt[i];
         }
 
-        try {
-            
+        if (verbose) {
             System.out.println("[N"+ addr.toString() +"]: CTX " + Arrays.toString(packet));
-            inviaOBJ = new DataOutputStream(tcpSocket.getOutputStream());
-            inviaOBJ.write(packet);
-        } catch (UnknownHostException ex) {
-            Logger.getLogger(SensorNode.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(SensorNode.class.getName()).log(Level.SEVERE, null, ex);
         }
+        // the packets are written in batches by the thread of controllerQueue
+        controllerQueue.offer(packet);
     }
 
     @Override
@@ -275,6 +299,7 @@ public class SinkNode extends Node {
                         case SDN_WISE_CNF_REMOVE_RULE_INDEX:
                             if (value != 0) {
                                 initRule(flowTable.get(getActualFlowIndex(value)));
+                                compileFlowTable();
                             }
                             break;
                         case SDN_WISE_CNF_REMOVE_RULE:
@@ -382,6 +407,10 @@ public class SinkNode extends Node {
 
                             controllerTX(packetList);
 
+                            break;
+                        case SDN_WISE_CNF_GET_RULES:
+                            toBeSent = 0;
+                            txRules(packet);
                             break;
                         case SDN_WISE_CNF_GET_RULE_INDEX:
                             toBeSent = 0;
@@ -436,6 +465,8 @@ public class SinkNode extends Node {
 
     private class TcpListener implements Runnable {
 
+        private final byte[] packet = new byte[256];
+
         @Override
         public void run() {
             try {
@@ -443,22 +474,41 @@ public class SinkNode extends Node {
 
                 while (true) {
                     int len = riceviOBJ.read();
+                    if (len < 0) {
+                        return;
+                    }
 
                     if (len > 0) {
-                        byte[] packet = new byte[len];
                         packet[0] = (byte) len;
                         riceviOBJ.read(packet, 1, len - 1);
 
-                        int[] tmp = new int[packet.length];
+                        int[] tmp = packetPool.acquire(len);
 
-                        for (int i = 0; i < packet.length; i++) {
+                        for (int i = 0; i < len; i++) {
                             tmp[i] = packet[i] & 0xFF;
                         }
 
-                        System.out.println("[N"+ addr.toString() +"]: CRX " + Arrays.toString(tmp));
-                        flowTableQueue.add(tmp);
+                        if (verbose) {
+                            System.out.println("[N"+ addr.toString() +"]: CRX " + Arrays.toString(tmp));
+                        }
+                        post(tmp);
                     }
                 }
+            } catch (IOException ex) {
+                if (!tcpSocket.isClosed()) {
+                    Logger.getLogger(SinkNode.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    @Override
+    void close() {
+        super.close();
+        controllerQueue.close();
+        if (tcpSocket != null) {
+            try {
+                tcpSocket.close();
             } catch (IOException ex) {
                 Logger.getLogger(SinkNode.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -52,7 +52,17 @@ public class ConfigPacket extends NetworkPacket{
         SDN_WISE_CNF_GET_RULE_INDEX = 14,
         SDN_WISE_CNF_RESET = 15,
         SDN_WISE_CNF_ADD_FUNCTION = 16,
-        SDN_WISE_CNF_REMOVE_FUNCTION = 17;
+        SDN_WISE_CNF_REMOVE_FUNCTION = 17,
+        SDN_WISE_CNF_GET_RULES = 18;
+
+    /**
+     * The number of rules carried by each answer to a SDN_WISE_CNF_GET_RULES
+     * request. After the header the payload of every answer holds the config
+     * id, the sequence number of the answer, the total number of answers and
+     * then the rules, in the order used by the node to scan its table.
+     */
+    public final static int SDN_WISE_CNF_RULES_PER_PACKET = 
+            (SDN_WISE_MAX_LEN - 10 - 3) / FlowTableEntry.SDN_WISE_RULE_LEN;
     private boolean isWrite = false;
     
     public ConfigPacket(byte[] data) {
@@ -249,6 +259,12 @@ public class ConfigPacket extends NetworkPacket{
         return this;
     }
 
+    public final ConfigPacket setReadRulesValue(){
+        this.setRead()
+            .setConfigId(SDN_WISE_CNF_GET_RULES);
+        return this;
+    }
+
     public final ConfigPacket setResetValue(){
         this.setWrite()
             .setConfigId(SDN_WISE_CNF_RESET);
@@ -395,4 +411,16 @@ public class ConfigPacket extends NetworkPacket{
         }
         return rule;
     }
+
+    public List<FlowTableEntry> getRules(){
+        LinkedList<FlowTableEntry> list = new LinkedList<>();
+        if (getConfigId() == SDN_WISE_CNF_GET_RULES){
+            for (int i = 3; i + FlowTableEntry.SDN_WISE_RULE_LEN <= getPayloadSize();
+                    i += FlowTableEntry.SDN_WISE_RULE_LEN) {
+                list.add(new FlowTableEntry(this.copyPayloadOfRange(i,
+                        i + FlowTableEntry.SDN_WISE_RULE_LEN)));
+            }
+        }
+        return list;
+    }
 }
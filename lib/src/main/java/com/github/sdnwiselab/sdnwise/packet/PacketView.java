@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.packet;
+
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import static com.github.sdnwiselab.sdnwise.packet.NetworkPacket.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A read only view of the header of a SDN-WISE message. Unlike NetworkPacket,
+ * a PacketView does not copy the message: it reads the fields directly from
+ * the byte array or the ByteBuffer it wraps. The same view can be pointed at
+ * a new message with one of the wrap methods, so a single instance can be
+ * used to inspect every message received by a thread.
+ * <p>
+ * A view is only valid as long as the wrapped buffer is not reused. When the
+ * message has to be kept, toNetworkPacket returns a copy of it.
+ */
+public final class PacketView {
+
+    private final static int SDN_WISE_DFLT_HDR_LEN = 10;
+
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * Creates a view that does not wrap any message yet.
+     */
+    public PacketView() {
+    }
+
+    /**
+     * Creates a view of the message contained in a byte array.
+     *
+     * @param data the array containing the message.
+     */
+    public PacketView(byte[] data) {
+        wrap(data);
+    }
+
+    /**
+     * Points this view at the message contained in a byte array.
+     *
+     * @param data the array containing the message.
+     * @return the view itself.
+     */
+    public PacketView wrap(byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Points this view at a message starting at a given offset of a byte
+     * array.
+     *
+     * @param data the array containing the message.
+     * @param offset the index of the first byte of the message.
+     * @return the view itself.
+     */
+    public PacketView wrap(byte[] data, int offset) {
+        if (offset < 0 || data.length - offset < SDN_WISE_DFLT_HDR_LEN) {
+            throw new IllegalArgumentException("Invalid array size: "
+                    + (data.length - offset));
+        }
+        this.array = data;
+        this.buffer = null;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Points this view at the message starting at the current position of a
+     * ByteBuffer. The position of the buffer is not changed.
+     *
+     * @param data the buffer containing the message.
+     * @return the view itself.
+     */
+    public PacketView wrap(ByteBuffer data) {
+        if (data.remaining() < SDN_WISE_DFLT_HDR_LEN) {
+            throw new IllegalArgumentException("Invalid array size: "
+                    + data.remaining());
+        }
+        this.array = null;
+        this.buffer = data;
+        this.offset = data.position();
+        return this;
+    }
+
+    private int get(int index) {
+        if (array != null) {
+            return array[offset + index] & 0xFF;
+        }
+        return buffer.get(offset + index) & 0xFF;
+    }
+
+    /**
+     * Returns the length of the message.
+     *
+     * @return an integer representing the length of the message
+     */
+    public int getLen() {
+        return get(SDN_WISE_LEN);
+    }
+
+    /**
+     * Returns the NetworkId of the message.
+     *
+     * @return an integer representing the NetworkId of the message
+     */
+    public int getNetId() {
+        return get(SDN_WISE_NET_ID);
+    }
+
+    /**
+     * Returns the address of the source node as an integer, as returned by
+     * NodeAddress.intValue.
+     *
+     * @return the address of the source node
+     */
+    public int getSrcValue() {
+        return get(SDN_WISE_SRC_H) * 256 + get(SDN_WISE_SRC_L);
+    }
+
+    /**
+     * Returns the address of the source node.
+     *
+     * @return the NodeAddress of the source node
+     */
+    public NodeAddress getSrc() {
+        return new NodeAddress(getSrcValue());
+    }
+
+    /**
+     * Returns the address of the destination node as an integer, as returned
+     * by NodeAddress.intValue.
+     *
+     * @return the address of the destination node
+     */
+    public int getDstValue() {
+        return get(SDN_WISE_DST_H) * 256 + get(SDN_WISE_DST_L);
+    }
+
+    /**
+     * Returns the address of the destination node.
+     *
+     * @return the NodeAddress of the destination node
+     */
+    public NodeAddress getDst() {
+        return new NodeAddress(getDstValue());
+    }
+
+    /**
+     * Returns the type of the message.
+     *
+     * @return an integer representing the type of the message
+     */
+    public int getType() {
+        return get(SDN_WISE_TYPE);
+    }
+
+    /**
+     * Returns the Time To Live of the message.
+     *
+     * @return an integer representing the Time To Live of the message
+     */
+    public int getTtl() {
+        return get(SDN_WISE_TTL);
+    }
+
+    /**
+     * Returns the address of the next hop as an integer, as returned by
+     * NodeAddress.intValue.
+     *
+     * @return the address of the next hop
+     */
+    public int getNxhopValue() {
+        return get(SDN_WISE_NXHOP_H) * 256 + get(SDN_WISE_NXHOP_L);
+    }
+
+    /**
+     * Returns the address of the next hop.
+     *
+     * @return the NodeAddress of the next hop
+     */
+    public NodeAddress getNxhop() {
+        return new NodeAddress(getNxhopValue());
+    }
+
+    /**
+     * Returns a byte of the payload of the message.
+     *
+     * @param i the index of the byte in the payload.
+     * @return the value of the byte
+     */
+    public int getPayloadAt(int i) {
+        return get(SDN_WISE_DFLT_HDR_LEN + i);
+    }
+
+    /**
+     * Returns if the request flag of the message is raised or not.
+     *
+     * @return true if the request flag is raised
+     */
+    public boolean isRequest() {
+        return getType() > 127;
+    }
+
+    /**
+     * Returns a copy of the message, as long as the LEN field.
+     *
+     * @return a byte array containing the message
+     */
+    public byte[] toByteArray() {
+        int len = getLen();
+        byte[] copy = new byte[len];
+        int n = Math.min(len, available());
+        if (array != null) {
+            System.arraycopy(array, offset, copy, 0, n);
+        } else {
+            for (int i = 0; i < n; i++) {
+                copy[i] = buffer.get(offset + i);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a NetworkPacket containing a copy of the message.
+     *
+     * @return a new NetworkPacket
+     */
+    public NetworkPacket toNetworkPacket() {
+        return new NetworkPacket(toByteArray());
+    }
+
+    /**
+     * Returns a String representation of the message, in the same format
+     * used by NetworkPacket.
+     *
+     * @return a String representation of the message
+     */
+    @Override
+    public String toString() {
+        int len = getLen();
+        StringBuilder str = new StringBuilder("[");
+        for (int i = 0; i < len; i++) {
+            int v = i < available() ? get(i) : 0;
+            if (i > 0) {
+                str.append(' ');
+            }
+            str.append(Character.toUpperCase(Character.forDigit(v >>> 4, 16)));
+            str.append(Character.toUpperCase(Character.forDigit(v & 0x0F, 16)));
+        }
+        str.append("]");
+        return str.toString();
+    }
+
+    private int available() {
+        return array != null ? array.length - offset : buffer.limit() - offset;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import java.util.Arrays;
+
+/**
+ * A hashed timing wheel holding the deadline of each node of a
+ * TopologyStore, identified by its slot. Each bucket of the wheel is a
+ * doubly linked list of slots, stored in arrays indexed by slot.
+ * <p>
+ * The wheel is lazy: the reports of a node do not move it to another bucket.
+ * When the bucket of a node is due, poll hands the node back to the
+ * NetworkGraph, which removes it if it has really not been seen for the
+ * whole timeout or schedules it again at its new deadline. Every node is
+ * therefore touched about once per timeout, whatever the rate of its
+ * reports.
+ */
+final class LivenessWheel {
+
+    private final static int NONE = -1;
+    private final static int BUCKETS = 64;
+    private final static int DFLT_CAPACITY = 64;
+
+    private final long tick;
+    private final int[] heads = new int[BUCKETS];
+    private int[] next = new int[DFLT_CAPACITY];
+    private int[] prev = new int[DFLT_CAPACITY];
+    private int[] bucket = new int[DFLT_CAPACITY];
+    private long cursor;
+    private int count;
+    private int[] due = new int[DFLT_CAPACITY];
+
+    /**
+     * Creates a wheel for deadlines at most timeout milliseconds in the
+     * future.
+     *
+     * @param timeout the longest time to a deadline, in milliseconds.
+     * @param now the current time, in milliseconds.
+     */
+    LivenessWheel(long timeout, long now) {
+        tick = Math.max(1, (timeout + BUCKETS / 2 - 1) / (BUCKETS / 2));
+        cursor = now / tick;
+        Arrays.fill(heads, NONE);
+        Arrays.fill(bucket, NONE);
+    }
+
+    /**
+     * Schedules a slot. A slot already in the wheel is moved.
+     *
+     * @param slot the slot of the node.
+     * @param deadline the time when the node expires, in milliseconds.
+     */
+    void schedule(int slot, long deadline) {
+        ensureCapacity(slot);
+        remove(slot);
+        long t = Math.max(deadline / tick + 1, cursor);
+        int b = (int) (t & (BUCKETS - 1));
+        next[slot] = heads[b];
+        prev[slot] = NONE;
+        if (heads[b] != NONE) {
+            prev[heads[b]] = slot;
+        }
+        heads[b] = slot;
+        bucket[slot] = b;
+        count++;
+    }
+
+    /**
+     * Removes a slot from the wheel, if present.
+     *
+     * @param slot the slot of the node.
+     */
+    void remove(int slot) {
+        if (slot >= bucket.length || bucket[slot] == NONE) {
+            return;
+        }
+        if (prev[slot] != NONE) {
+            next[prev[slot]] = next[slot];
+        } else {
+            heads[bucket[slot]] = next[slot];
+        }
+        if (next[slot] != NONE) {
+            prev[next[slot]] = prev[slot];
+        }
+        bucket[slot] = NONE;
+        count--;
+    }
+
+    /**
+     * Tells if poll would return some slot.
+     *
+     * @param now the current time, in milliseconds.
+     * @return true if a bucket is due
+     */
+    boolean isDue(long now) {
+        return count > 0 && cursor * tick <= now;
+    }
+
+    /**
+     * Removes from the wheel the slots of the buckets that are due. The
+     * slots are returned in the array given by getDue.
+     *
+     * @param now the current time, in milliseconds.
+     * @return the number of slots removed
+     */
+    int poll(long now) {
+        int n = 0;
+        long last = now / tick;
+        if (last - cursor >= BUCKETS) {
+            cursor = last - BUCKETS + 1;
+        }
+        while (cursor <= last) {
+            int b = (int) (cursor & (BUCKETS - 1));
+            for (int s = heads[b]; s != NONE; s = next[s]) {
+                if (n == due.length) {
+                    due = Arrays.copyOf(due, n * 2);
+                }
+                due[n++] = s;
+                bucket[s] = NONE;
+                count--;
+            }
+            heads[b] = NONE;
+            cursor++;
+        }
+        return n;
+    }
+
+    int[] getDue() {
+        return due;
+    }
+
+    /**
+     * Returns the time covered by a bucket.
+     *
+     * @return the length of a tick in milliseconds
+     */
+    long getTick() {
+        return tick;
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot >= bucket.length) {
+            int capacity = Math.max(slot + 1, bucket.length * 2);
+            int old = bucket.length;
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            bucket = Arrays.copyOf(bucket, capacity);
+            Arrays.fill(bucket, old, capacity, NONE);
+        }
+    }
+}
@@ -16,33 +16,96 @@
  */
 package com.github.sdnwiselab.sdnwise.topology;
 
+import com.github.sdnwiselab.sdnwise.event.EventBus;
 import com.github.sdnwiselab.sdnwise.graphStream.Edge;
 import com.github.sdnwiselab.sdnwise.graphStream.Graph;
-import com.github.sdnwiselab.sdnwise.graphStream.MultiGraph;
 import com.github.sdnwiselab.sdnwise.graphStream.Node;
+import com.github.sdnwiselab.sdnwise.metrics.Histogram;
+import com.github.sdnwiselab.sdnwise.metrics.Metrics;
 import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import com.github.sdnwiselab.sdnwise.util.Clock;
 import com.github.sdnwiselab.sdnwise.util.NodeAddress;
-import java.util.HashSet;
 import java.util.Observable;
-import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 
 /**
- * This class holds a org.graphstream.graph.Graph object which represent the
- * topology of the wireless sensor network. The method updateMap is invoked when
- * a message with topology updates is sent to the controller.
+ * This class holds the topology of the wireless sensor network. The method
+ * updateMap is invoked when a message with topology updates is sent to the
+ * controller.
+ * <p>
+ * The topology, including the battery level and the last time each node was
+ * seen, is kept in a TopologyStore only. The algorithms and the user
+ * interfaces based on graphStream read a Graph built from the current
+ * TopologySnapshot by getGraph: it is built only when asked for, at most once
+ * per change of the topology, so a controller which never asks for it keeps
+ * no graphStream object at all.
+ * <p>
+ * The changes of the topology are published on the topology bus as
+ * TopologyDelta objects, and passed to the observers registered, if any. The
+ * changes are coalesced over a window of time, so that a subscriber receives
+ * a delta per window whatever the number of reports received. With a window
+ * of zero milliseconds each report changing the topology is published by the
+ * thread calling updateMap. Subscribers called by the publishing thread hold
+ * the read lock, subscribers called by an executor must take it to read the
+ * TopologyStore.
+ * <p>
+ * The last time a node was seen and the liveness checks follow a Clock,
+ * which is the real time unless a Simulation is given.
  *
  * @author Sebastiano Milardo
  * @version 0.1
  */
 public class NetworkGraph extends Observable {
 
-    final Graph graph;
-    private long lastModification;
+    private final static int STRIPES = 64;
+    // time spent in updateMap, in ns
+    private final static Histogram UPDATE_TIME
+            = Metrics.histogram("topology.updateMap");
+
+    final TopologyStore store;
+    private volatile long lastModification;
     private final int timeout;
     final int rssiResolution;
-    private long lastCheck;
+    private final long batchWindow;
+    private final Clock clock;
+    private final LivenessWheel wheel;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object[] stripes = new Object[STRIPES];
+    private volatile TopologySnapshot snapshot;
+    // the Graph built from graphSnapshot, guarded by graphLock
+    private final Object graphLock = new Object();
+    private TopologySnapshot graphSnapshot;
+    private Graph graph;
+    private final TopologyDelta.Builder pending = new TopologyDelta.Builder();
+    private final EventBus<TopologyDelta> topologyBus = new EventBus<>();
+    private boolean flushScheduled;
+    // the epoch of the last delta published, guarded by this
+    private long publishedEpoch = Long.MIN_VALUE;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                lock.readLock().lock();
+                try {
+                    flush();
+                } finally {
+                    lock.readLock().unlock();
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(NetworkGraph.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+        }
+    };
 
     /**
      * This constructor returns the NetworkGraph object. It requires a time to
@@ -54,13 +117,61 @@ public class NetworkGraph extends Observable {
      * @param rssiResolution the RSSI resolution
      */
     public NetworkGraph(int timeout, int rssiResolution) {
-        this.graph = new MultiGraph("SDN-WISE Network");
+        this(timeout, rssiResolution, 0);
+    }
+
+    /**
+     * This constructor returns a NetworkGraph object publishing its changes
+     * at most once every batchWindow milliseconds.
+     *
+     * @param timeout the time to live for a node in seconds
+     * @param rssiResolution the RSSI resolution
+     * @param batchWindow the time in milliseconds the changes of the topology
+     * are coalesced before being published
+     */
+    public NetworkGraph(int timeout, int rssiResolution, long batchWindow) {
+        this(timeout, rssiResolution, batchWindow, Clock.SYSTEM);
+    }
+
+    /**
+     * This constructor returns a NetworkGraph object whose nodes expire
+     * according to a clock.
+     *
+     * @param timeout the time to live for a node in seconds
+     * @param rssiResolution the RSSI resolution
+     * @param batchWindow the time in milliseconds the changes of the topology
+     * are coalesced before being published
+     * @param clock the clock of the liveness checks.
+     */
+    public NetworkGraph(int timeout, int rssiResolution, long batchWindow,
+            Clock clock) {
+        if (batchWindow < 0) {
+            throw new IllegalArgumentException("Invalid batch window: "
+                    + batchWindow);
+        }
+        this.store = new TopologyStore();
         this.lastModification = Long.MIN_VALUE;
         this.rssiResolution = rssiResolution;
         this.timeout = timeout;
-        this.lastCheck = System.currentTimeMillis();
-        graph.setAutoCreate(true);
-        graph.setStrict(false);
+        this.batchWindow = batchWindow;
+        this.clock = clock;
+        this.wheel = new LivenessWheel(timeout * 1000L, clock.millis());
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        this.scheduler = clock.newScheduler("NetworkGraph scheduler", 1);
+        long tick = wheel.getTick();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(NetworkGraph.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -69,155 +180,443 @@ public class NetworkGraph extends Observable {
      * @return a long representing the last time instant when the NetworkGraph
      * was updated
      */
-    public final synchronized long getLastModification() {
+    public final long getLastModification() {
         return lastModification;
     }
 
     /**
-     * This method gets the Graph contained in the NetworkGraph
+     * Returns the clock of the liveness checks.
+     *
+     * @return the clock of this NetworkGraph
+     */
+    public final Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Returns the time the changes of the topology are coalesced before
+     * being published.
+     *
+     * @return the batch window in milliseconds
+     */
+    public final long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * This method gets a Graph holding the topology. The Graph is built from
+     * the current snapshot and the same Graph is returned until the topology
+     * changes, so it can be read without locks but it must not be modified.
      *
      * @return returns a Graph object
      */
     public Graph getGraph() {
-        return graph;
+        TopologySnapshot s = getSnapshot();
+        synchronized (graphLock) {
+            if (graphSnapshot != s) {
+                graph = s.toGraph();
+                graphSnapshot = s;
+            }
+            return graph;
+        }
     }
 
+    /**
+     * This method gets the TopologyStore contained in the NetworkGraph. The
+     * store is changed by the threads calling updateMap: other threads must
+     * hold the read lock or use getSnapshot.
+     *
+     * @return returns a TopologyStore object
+     */
+    public TopologyStore getStore() {
+        return store;
+    }
+
+    /**
+     * Removes the nodes that have not been seen for timeout seconds. Only
+     * the nodes whose bucket in the LivenessWheel is due are checked. Must be
+     * called holding the write lock.
+     *
+     * @param now the current time in milliseconds
+     * @return true if some node has been removed
+     */
     final boolean checkConsistency(long now) {
         boolean modified = false;
-        if (now - lastCheck > (timeout * 1000L)) {
-            lastCheck = now;
-            for (Node n : graph) {
-                if (n.getAttribute("lastSeen", Long.class) != null) {
-                    if (!isAlive(timeout, (long) n.getNumber("lastSeen"), now)) {
-                        removeNode(n);
-                        modified = true;
-                    }
+        int n = wheel.poll(now);
+        int[] due = wheel.getDue();
+        for (int i = 0; i < n; i++) {
+            int slot = due[i];
+            if (store.isUsed(slot)) {
+                long lastSeen = store.getLastSeen(slot);
+                if (isAlive(timeout, lastSeen, now)) {
+                    wheel.schedule(slot, lastSeen + timeout * 1000L);
+                } else {
+                    removeNode(slot);
+                    modified = true;
                 }
             }
         }
         return modified;
     }
 
+    /**
+     * Runs on the liveness scheduler: takes the write lock only if some node
+     * may have expired.
+     */
+    private void expire() {
+        long now = clock.millis();
+        lock.readLock().lock();
+        try {
+            if (!wheel.isDue(now)) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        boolean flushNow;
+        lock.writeLock().lock();
+        try {
+            if (checkConsistency(now)) {
+                lastModification++;
+            }
+            flushNow = scheduleFlush();
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            if (flushNow) {
+                flush();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     /**
      * This method is invoked when a message with topology updates is received
      * by the controller. It updates the network topology according to the
-     * message and checks if all the nodes in the network are still alive.
+     * message. The nodes that are not alive anymore are removed by a
+     * separate scheduler.
+     * <p>
+     * Reports that only refresh the battery level and the links of a node
+     * are applied under the read lock, so reports coming from different
+     * nodes are processed in parallel. Reports changing the topology take
+     * the write lock. Deltas are published holding the read lock, once per
+     * batch window.
      *
      * @param packet the NetworkPacket received
      */
-    public final synchronized void updateMap(ReportPacket packet) {
+    public final void updateMap(ReportPacket packet) {
+        long start = System.nanoTime();
+        try {
+            apply(packet);
+        } finally {
+            UPDATE_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    private void apply(ReportPacket packet) {
+
+        long now = clock.millis();
+
+        lock.readLock().lock();
+        try {
+            if (refresh(packet, now)) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
 
-        long now = System.currentTimeMillis();
-        boolean modified = checkConsistency(now);
+        boolean flushNow;
+
+        lock.writeLock().lock();
+        try {
+            if (update(packet, now)) {
+                lastModification++;
+            }
+            flushNow = scheduleFlush();
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            if (flushNow) {
+                flush();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Applies a report that does not change the topology. Two reports of the
+     * same node are serialized by the stripe of the node.
+     *
+     * @return false if the report changes the topology
+     */
+    private boolean refresh(ReportPacket packet, long now) {
         int netId = packet.getNetId();
-        int batt = packet.getBatt();
-        String nodeId = packet.getSrc().toString();
-        String fullNodeId = netId + "." + nodeId;
         NodeAddress addr = packet.getSrc();
-
-        Node node = getNode(fullNodeId);
-
-        if (node == null) { // questo nodo non è presente nel grafo
-            node = addNode(fullNodeId);
-            setupNode(node, batt, now, netId, addr);
-            /*System.out.println("\n\n[AGGIUNTO NODO] \t\t\t"
-                                        + node.toString()
-                                        + " Batt: "
-                                        + batt
-                                        + " netId: "
-                                        + netId
-                                        + " addr: "
-                                        + addr
-                                        + "\n\n");*/
-            setChanged();
-            notifyObservers(node);
-
-
-            for (int i = 0; i < packet.getNeigh(); i++) {
-                NodeAddress otheraddr = packet.getNeighbourAddress(i);
-                String other = netId + "." + otheraddr.toString();
-                if (getNode(other) == null) {
-                    Node tmp = addNode(other);
-                    setupNode(tmp, 0, now, netId, otheraddr);
-
-                    setChanged();
-                    notifyObservers(tmp);
+        int slot = store.slot(netId, addr.intValue());
+        int neigh = packet.getNeigh();
+        if (slot < 0 || store.getInDegree(slot) != neigh) {
+            return false;
+        }
+        synchronized (stripes[slot & (STRIPES - 1)]) {
+            for (int i = 0; i < neigh; i++) {
+                int other = packet.getNeighbourAddress(i).intValue();
+                int otherSlot = store.slot(netId, other);
+                if (otherSlot < 0) {
+                    return false;
+                }
+                int pos = store.findLink(otherSlot, slot);
+                if (pos < 0 || Math.abs(store.getInLength(slot, pos)
+                        - (255 - packet.getNeighbourWeight(i))) > rssiResolution) {
+                    return false;
                 }
+                for (int j = 0; j < i; j++) {
+                    if (packet.getNeighbourAddress(j).intValue() == other) {
+                        return false;
+                    }
+                }
+            }
+            store.update(slot, packet.getBatt(), now);
+        }
+        nodeSeen(slot);
+        return true;
+    }
 
-                int newLen = 255 - packet.getNeighbourWeight(i);
-                String edgeId = other + "-" + fullNodeId;
-                Edge edge = addEdge(edgeId, other, node.getId(), true);
-                setupEdge(edge, newLen);
+    /**
+     * Applies a report holding the write lock.
+     *
+     * @return true if the topology changed
+     */
+    private boolean update(ReportPacket packet, long now) {
+        boolean modified = false;
 
-                /*Node n = graph.getNode(other);
-                System.out.println("\t\tNeighbor Nodo: "+ n.getId());
-                for (Edge e : n.getEachEdge()) {
+        int netId = packet.getNetId();
+        int batt = packet.getBatt();
+        NodeAddress addr = packet.getSrc();
 
-                    System.out.println("\t\t\t\t"+ e.getOpposite(n));
-                }*/
+        int slot = store.slot(netId, addr.intValue());
 
-            }
+        if (slot < 0) { // questo nodo non è presente nel grafo
+            slot = store.addNode(netId, addr.intValue());
+            store.update(slot, batt, now);
+            wheel.schedule(slot, now + timeout * 1000L);
+            nodeAdded(slot);
             modified = true;
-
         } else {
-            updateNode(node, batt, now);
-            Set<Edge> oldEdges = new HashSet<>();
-            for (Edge e : node.getEnteringEdgeSet()) {
-                oldEdges.add(e);
+            store.update(slot, batt, now);
+            nodeSeen(slot);
+        }
+
+        int neigh = packet.getNeigh();
+        int[] reported = new int[neigh];
+
+        for (int i = 0; i < neigh; i++) {
+            NodeAddress otheraddr = packet.getNeighbourAddress(i);
+            int otherSlot = store.slot(netId, otheraddr.intValue());
+            if (otherSlot < 0) {
+                otherSlot = store.addNode(netId, otheraddr.intValue());
+                store.update(otherSlot, 0, now);
+                wheel.schedule(otherSlot, now + timeout * 1000L);
+                nodeAdded(otherSlot);
             }
+            reported[i] = otherSlot;
 
-            for (int i = 0; i < packet.getNeigh(); i++) {
-                NodeAddress otheraddr = packet.getNeighbourAddress(i);
-                String other = netId + "." + otheraddr.toString();
-                if (getNode(other) == null) {
-                    Node tmp = addNode(other);
-                    setupNode(tmp, 0, now, netId, otheraddr);
-                    setChanged();
-                    notifyObservers(tmp);
+            int newLen = 255 - packet.getNeighbourWeight(i);
+            int pos = store.findLink(otherSlot, slot);
+            if (pos < 0) {
+                store.setLink(otherSlot, slot, newLen);
+                linkAdded(otherSlot, slot, newLen);
+                modified = true;
+            } else {
+                int oldLen = store.getInLength(slot, pos);
+                if (Math.abs(oldLen - newLen) > rssiResolution) {
+                    store.setLink(otherSlot, slot, newLen);
+                    linkUpdated(otherSlot, slot, newLen);
+                    modified = true;
                 }
+            }
+        }
 
-                int newLen = 255 - packet.getNeighbourWeight(i);
+        // the links missing from the report are removed
+        for (int i = store.getInDegree(slot) - 1; i >= 0; i--) {
+            int otherSlot = store.getInNeighbour(slot, i);
+            if (!contains(reported, otherSlot)) {
+                linkRemoved(otherSlot, slot);
+                store.removeLink(otherSlot, slot);
+                modified = true;
+            }
+        }
+        return modified;
+    }
 
-                String edgeId = other + "-" + fullNodeId;
-                Edge edge = getEdge(edgeId);
-                if (edge != null) {
-                    oldEdges.remove(edge);
-                    int oldLen = edge.getAttribute("length");
-                    if (Math.abs(oldLen - newLen) > rssiResolution) {
-                        updateEdge(edge, newLen);
-                        modified = true;
-                    }
-                } else {
-                    Edge tmp = addEdge(edgeId, other, node.getId(), true);
-                    setupEdge(tmp, newLen);
-                    modified = true;
-                }
+    /**
+     * Decides how the pending changes are delivered. Must be called holding
+     * the write lock.
+     *
+     * @return true if the caller must flush the changes itself
+     */
+    private boolean scheduleFlush() {
+        if (pending.isEmpty() || flushScheduled) {
+            return false;
+        }
+        if (batchWindow == 0) {
+            return true;
+        }
+        try {
+            scheduler.schedule(flushTask, batchWindow, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // closed: the changes are published by the caller
+            return true;
+        }
+        flushScheduled = true;
+        return false;
+    }
+
+    /**
+     * Publishes the pending changes. Must be called holding the read lock,
+     * so that no change is collected meanwhile.
+     */
+    private void flush() {
+        // two readers may flush at the same time: deltas must not interleave
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            TopologyDelta delta = pending.build(publishedEpoch,
+                    lastModification);
+            publishedEpoch = lastModification;
+            topologyBus.publish(delta);
+            if (countObservers() > 0) {
+                setChanged();
+                notifyObservers(delta);
+            }
+        }
+    }
 
-                /*Node n = graph.getNode(other);
-                System.out.println("\t\tNeighbor Nodo: "+ n.getId());
-                for (Edge e : n.getEachEdge()) {
+    /**
+     * Returns the bus on which the changes of the topology are published.
+     *
+     * @return the topology bus of this NetworkGraph
+     */
+    public final EventBus<TopologyDelta> getTopologyBus() {
+        return topologyBus;
+    }
 
-                    System.out.println("\t\t\t\t" + e.getOpposite(n));
-                }*/
+    /**
+     * Returns an immutable copy of the topology. The same snapshot is
+     * returned until the topology changes.
+     *
+     * @return a TopologySnapshot object
+     */
+    public final TopologySnapshot getSnapshot() {
+        TopologySnapshot s = snapshot;
+        if (s != null && s.getEpoch() == lastModification) {
+            return s;
+        }
+        lock.readLock().lock();
+        try {
+            s = snapshot;
+            if (s == null || s.getEpoch() != lastModification) {
+                s = new TopologySnapshot(store, lastModification);
+                snapshot = s;
             }
+            return s;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            if (!oldEdges.isEmpty()) {
-                for (Edge e : oldEdges) {
-                    removeEdge(e);
-                }
-                modified = true;
+    /**
+     * Returns the lock that must be held to read the TopologyStore returned
+     * by getStore while the NetworkGraph is being updated by other threads.
+     *
+     * @return the read lock of the NetworkGraph
+     */
+    public final Lock getReadLock() {
+        return lock.readLock();
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int v : array) {
+            if (v == value) {
+                return true;
             }
         }
+        return false;
+    }
 
-        setChanged();
-        notifyObservers("Finito");
+    /**
+     * Returns the key of the node in a slot of the store.
+     *
+     * @param slot a used slot of the store.
+     * @return the key of the node, as in a TopologyDelta
+     */
+    final int key(int slot) {
+        return TopologyStore.key(store.getNetId(slot),
+                store.getAddressValue(slot));
+    }
 
+    private void removeNode(int slot) {
+        for (int i = store.getInDegree(slot) - 1; i >= 0; i--) {
+            linkRemoved(store.getInNeighbour(slot, i), slot);
+        }
+        for (int i = store.getOutDegree(slot) - 1; i >= 0; i--) {
+            linkRemoved(slot, store.getOutNeighbour(slot, i));
+        }
+        nodeRemoved(slot);
+        wheel.remove(slot);
+        store.removeNode(slot);
+    }
 
-        if (modified) {
-            lastModification++;
-            setChanged();
-            notifyObservers();
+    private int slotOf(Node node) {
+        Object netId = node.getAttribute("netId");
+        Object addr = node.getAttribute("nodeAddress");
+        if (netId instanceof Number && addr instanceof NodeAddress) {
+            return store.slot(((Number) netId).intValue(),
+                    ((NodeAddress) addr).intValue());
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the battery level of a node, as reported in its last message.
+     *
+     * @param node a Node of the Graph.
+     * @return the battery level, or -1 if the node is unknown
+     */
+    public final int getBattery(Node node) {
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(node);
+            return slot < 0 ? -1 : store.getBattery(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the time instant when a node was last seen.
+     *
+     * @param node a Node of the Graph.
+     * @return the time in milliseconds, or -1 if the node is unknown
+     */
+    public final long getLastSeen(Node node) {
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(node);
+            return slot < 0 ? -1 : store.getLastSeen(slot);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
@@ -235,41 +634,66 @@ public class NetworkGraph extends Observable {
         }
     }
 
-    void setupNode(Node node, int batt, long now, int netId, NodeAddress addr) {
-        node.addAttribute("battery", batt);
-        node.addAttribute("lastSeen", now);
-        node.addAttribute("netId", netId);
-        node.addAttribute("nodeAddress", addr);
-    }
-
-    void updateNode(Node node, int batt, long now) {
-        node.addAttribute("battery", batt);
-        node.addAttribute("lastSeen", now);
-    }
-
-    void setupEdge(Edge edge, int newLen) {
-        edge.addAttribute("length", newLen);
+    /**
+     * Called holding the write lock when a node has been added to the store.
+     *
+     * @param slot the slot of the node.
+     */
+    void nodeAdded(int slot) {
+        pending.nodeAdded(key(slot));
     }
 
-    void updateEdge(Edge edge, int newLen) {
-        edge.addAttribute("length", newLen);
+    /**
+     * Called holding the read lock, or the write lock, when the battery
+     * level and the last time a node was seen have been updated.
+     *
+     * @param slot the slot of the node.
+     */
+    void nodeSeen(int slot) {
+        // battery and lastSeen are not part of the deltas
     }
 
-    <T extends Node> T addNode(String id) {
-        return graph.addNode(id);
+    /**
+     * Called holding the write lock before a node is removed from the store,
+     * after its links.
+     *
+     * @param slot the slot of the node.
+     */
+    void nodeRemoved(int slot) {
+        pending.nodeRemoved(key(slot));
     }
 
-    <T extends Edge> T addEdge(String id, String from, String to,
-            boolean directed) {
-        return graph.addEdge(id, from, to, directed);
+    /**
+     * Called holding the write lock when a link has been added to the store.
+     *
+     * @param from the slot of the node the link comes from.
+     * @param to the slot of the node the link goes to.
+     * @param length the length of the link.
+     */
+    void linkAdded(int from, int to, int length) {
+        pending.linkAdded(TopologyDelta.link(key(from), key(to)), length);
     }
 
-    <T extends Edge> T removeEdge(Edge edge) {
-        return graph.removeEdge(edge);
+    /**
+     * Called holding the write lock when the length of a link has changed
+     * more than the RSSI resolution.
+     *
+     * @param from the slot of the node the link comes from.
+     * @param to the slot of the node the link goes to.
+     * @param length the new length of the link.
+     */
+    void linkUpdated(int from, int to, int length) {
+        pending.linkUpdated(TopologyDelta.link(key(from), key(to)), length);
     }
 
-    <T extends Node> T removeNode(Node node) {
-        return graph.removeNode(node);
+    /**
+     * Called holding the write lock before a link is removed from the store.
+     *
+     * @param from the slot of the node the link comes from.
+     * @param to the slot of the node the link goes to.
+     */
+    void linkRemoved(int from, int to) {
+        pending.linkRemoved(TopologyDelta.link(key(from), key(to)));
     }
 
     /**
@@ -280,7 +704,7 @@ public class NetworkGraph extends Observable {
      * @return 
      */
     public <T extends Node> T getNode(String id) {
-        return graph.getNode(id);
+        return getGraph().getNode(id);
     }
     
     /**
@@ -291,7 +715,15 @@ public class NetworkGraph extends Observable {
      * @return 
      */
     public <T extends Edge> T getEdge(String id) {
-        return graph.getEdge(id);
+        return getGraph().getEdge(id);
+    }
+
+    /**
+     * Stops the liveness checks of the nodes. The changes still waiting for
+     * the end of their batch window are published before the scheduler ends.
+     */
+    public void close() {
+        scheduler.shutdown();
     }
 
 }
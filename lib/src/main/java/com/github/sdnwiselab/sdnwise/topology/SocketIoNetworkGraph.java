@@ -19,9 +19,6 @@ package com.github.sdnwiselab.sdnwise.topology;
 import com.github.nkzawa.emitter.Emitter;
 import com.github.nkzawa.socketio.client.IO;
 import com.github.nkzawa.socketio.client.Socket;
-import com.github.sdnwiselab.sdnwise.graphStream.Edge;
-import com.github.sdnwiselab.sdnwise.graphStream.Node;
-import com.github.sdnwiselab.sdnwise.util.NodeAddress;
 
 import java.net.URISyntaxException;
 import java.util.Date;
@@ -29,10 +26,14 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class holds a org.graphstream.graph.Graph object which represent the
- * topology of the wireless sensor network. The method updateMap is invoked when
- * a message with topology updates is sent to the controller. This is a web
- * version of the NetworkGraph class.
+ * This class holds the topology of the wireless sensor network. The method
+ * updateMap is invoked when a message with topology updates is sent to the
+ * controller. This is a web version of the NetworkGraph class.
+ * <p>
+ * By default every change of a node or of a link is emitted as a separate
+ * event. When a publishing rate is given, the changes are instead coalesced
+ * and emitted as binary frames by a TopologyPublisher, at most rate times per
+ * second, and a resuming client receives a snapshot or the frames it missed.
  *
  * @author Sebastiano Milardo
  * @version 0.1
@@ -51,6 +52,7 @@ public class SocketIoNetworkGraph extends NetworkGraph {
      * @param address address of the Socket.IO server.
      */
     private Socket socket;
+    private TopologyPublisher publisher;
 
     /**
      * Constructor method to create a representation of SocketIoNetworkGraph.
@@ -60,10 +62,46 @@ public class SocketIoNetworkGraph extends NetworkGraph {
      * @param address address of the Socket.IO server.
      */
     public SocketIoNetworkGraph(int timeout, int rssiResolution, String address) {
-        super(timeout, rssiResolution);
+        this(timeout, rssiResolution, 0, address);
+    }
+
+    /**
+     * Constructor method to create a representation of SocketIoNetworkGraph
+     * publishing its changes at most once every batchWindow milliseconds.
+     *
+     * @param timeout the time to live for a node in seconds.
+     * @param rssiResolution the RSSI resolution.
+     * @param batchWindow the time in milliseconds the changes of the topology
+     * are coalesced before being published.
+     * @param address address of the Socket.IO server.
+     */
+    public SocketIoNetworkGraph(int timeout, int rssiResolution,
+            long batchWindow, String address) {
+        this(timeout, rssiResolution, batchWindow, 0, address);
+    }
+
+    /**
+     * Constructor method to create a representation of SocketIoNetworkGraph
+     * publishing the topology as binary frames.
+     *
+     * @param timeout the time to live for a node in seconds.
+     * @param rssiResolution the RSSI resolution.
+     * @param batchWindow the time in milliseconds the changes of the topology
+     * are coalesced before being published.
+     * @param publishRate the maximum number of frames emitted per second, or
+     * 0 to emit an event for every change.
+     * @param address address of the Socket.IO server.
+     */
+    public SocketIoNetworkGraph(int timeout, int rssiResolution,
+            long batchWindow, int publishRate, String address) {
+        super(timeout, rssiResolution, batchWindow);
         socket = null;
         try {
             socket = IO.socket(address);
+            if (publishRate > 0) {
+                publisher = new TopologyPublisher(this, socket, publishRate);
+                getTopologyBus().subscribe(publisher);
+            }
             socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
                 @Override
                 public void call(Object... args) {
@@ -74,22 +112,29 @@ public class SocketIoNetworkGraph extends NetworkGraph {
 
                 @Override
                 public void call(Object... args) {
-                    for (Node n : graph.getNodeSet()) {
+                    if (publisher != null) {
+                        publisher.resume(args);
+                        return;
+                    }
+                    TopologySnapshot snapshot = getSnapshot();
+                    for (int n = 0; n < snapshot.size(); n++) {
                         socket.emit("addNode",
-                                n.getId(),
-                                (((int) n.getAttribute("battery")) * 100 / 255) + "%",
-                                String.valueOf(new Date(((long) n.getAttribute("lastSeen")))),
-                                String.valueOf(n.getAttribute("netId")),
-                                String.valueOf(n.getAttribute("nodeAddress"))
+                                snapshot.getNetId(n) + "." + snapshot.getAddress(n),
+                                (snapshot.getBattery(n) * 100 / 255) + "%",
+                                String.valueOf(new Date(snapshot.getLastSeen(n))),
+                                String.valueOf(snapshot.getNetId(n)),
+                                String.valueOf(snapshot.getAddress(n))
                         );
                     }
 
-                    for (Edge e : graph.getEdgeSet()) {
-                        socket.emit("addEdge", e.getId(),
-                                e.getSourceNode().getId(),
-                                e.getTargetNode().getId(),
-                                ((byte) (255 - (int) e.getAttribute("length"))) - 72 + " dBm"
-                        );
+                    for (int n = 0; n < snapshot.size(); n++) {
+                        String from = snapshot.getNetId(n) + "." + snapshot.getAddress(n);
+                        for (int j = 0; j < snapshot.getOutDegree(n); j++) {
+                            int m = snapshot.getOutNeighbour(n, j);
+                            String to = snapshot.getNetId(m) + "." + snapshot.getAddress(m);
+                            socket.emit("addEdge", from + "-" + to, from, to,
+                                    dBm(snapshot.getOutLength(n, j)));
+                        }
                     }
 
                 }
@@ -110,78 +155,90 @@ public class SocketIoNetworkGraph extends NetworkGraph {
     }
 
     @Override
-    void setupNode(Node node, int batt, long now, int netId, NodeAddress addr) {
-        super.setupNode(node, batt, now, netId, addr);
-        socket.emit("updateNode",
-                node.getId(),
-                (batt * 100 / 255) + "%",
-                String.valueOf(new Date(now).toString()),
-                String.valueOf(netId),
-                String.valueOf(addr)
+    void nodeAdded(int slot) {
+        super.nodeAdded(slot);
+        if (publisher != null) {
+            return;
+        }
+        socket.emit("addNode",
+                nodeId(slot),
+                (store.getBattery(slot) * 100 / 255) + "%",
+                String.valueOf(new Date(store.getLastSeen(slot))),
+                String.valueOf(store.getNetId(slot)),
+                String.valueOf(store.getAddress(slot))
         );
     }
 
     @Override
-    void updateNode(Node node, int batt, long now) {
-        super.updateNode(node, batt, now);
+    void nodeSeen(int slot) {
+        super.nodeSeen(slot);
+        if (publisher != null) {
+            publisher.nodeSeen(key(slot));
+            return;
+        }
         socket.emit("updateNode",
-                node.getId(),
-                (batt * 100 / 255) + "%",
-                String.valueOf(new Date(now).toString()),
-                String.valueOf(node.getAttribute("netId")),
-                String.valueOf(node.getAttribute("nodeAddress"))
+                nodeId(slot),
+                (store.getBattery(slot) * 100 / 255) + "%",
+                String.valueOf(new Date(store.getLastSeen(slot)).toString()),
+                String.valueOf(store.getNetId(slot)),
+                String.valueOf(store.getAddress(slot))
         );
     }
 
     @Override
-    void setupEdge(Edge edge, int newLen) {
-        super.setupEdge(edge, newLen);
-        socket.emit("updateEdge",
-                edge.getId(),
-                ((byte) (255 - newLen)) - 72 + " dBm"
-        );
+    void nodeRemoved(int slot) {
+        super.nodeRemoved(slot);
+        if (publisher == null) {
+            socket.emit("removeNode", nodeId(slot));
+        }
     }
 
     @Override
-    void updateEdge(Edge edge, int newLen) {
-        super.updateEdge(edge, newLen);
-        socket.emit("updateEdge",
-                edge.getId(),
-                ((byte) (255 - newLen)) - 72 + " dBm"
-        );
+    void linkAdded(int from, int to, int length) {
+        super.linkAdded(from, to, length);
+        if (publisher == null) {
+            socket.emit("addEdge", nodeId(from) + "-" + nodeId(to),
+                    nodeId(from), nodeId(to), dBm(length));
+        }
     }
 
     @Override
-    <T extends Node> T removeNode(Node node) {
-        T tmp = super.removeNode(node);
-        socket.emit("removeNode", node.getId());
-        return tmp;
+    void linkUpdated(int from, int to, int length) {
+        super.linkUpdated(from, to, length);
+        if (publisher == null) {
+            socket.emit("updateEdge", nodeId(from) + "-" + nodeId(to),
+                    dBm(length));
+        }
     }
 
     @Override
-    <T extends Edge> T removeEdge(Edge edge) {
-        T tmp = super.removeEdge(edge);
-        socket.emit("removeEdge", edge.getId());
-        return tmp;
+    void linkRemoved(int from, int to) {
+        super.linkRemoved(from, to);
+        if (publisher == null) {
+            socket.emit("removeEdge", nodeId(from) + "-" + nodeId(to));
+        }
     }
 
-    @Override
-    <T extends Edge> T addEdge(String id, String from, String to, boolean directed) {
-        T tmp = super.addEdge(id, from, to, directed);
-        socket.emit("addEdge", id, from, to, "");
-        return tmp;
+    private String nodeId(int slot) {
+        return store.getNetId(slot) + "." + store.getAddress(slot);
+    }
+
+    private static String dBm(int length) {
+        return ((byte) (255 - length)) - 72 + " dBm";
     }
 
+    /**
+     * Stops the liveness checks and the publisher, then disconnects from the
+     * Socket.IO server.
+     */
     @Override
-    <T extends Node> T addNode(String id) {
-        T tmp = super.addNode(id);
-        socket.emit("addNode",
-                tmp.getId(),
-                String.valueOf(tmp.getAttribute("battery")),
-                String.valueOf(tmp.getAttribute("lastSeen")),
-                String.valueOf(tmp.getAttribute("netId")),
-                String.valueOf(tmp.getAttribute("nodeAddress"))
-        );
-        return tmp;
+    public void close() {
+        super.close();
+        if (publisher != null) {
+            publisher.close();
+        }
+        if (socket != null) {
+            socket.disconnect();
+        }
     }
 }
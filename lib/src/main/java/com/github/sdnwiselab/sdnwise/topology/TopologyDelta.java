@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The changes of the topology of a NetworkGraph over a window of time. A
+ * TopologyDelta is the event published on the topology bus of a NetworkGraph.
+ * <p>
+ * A node is identified by its int key (netId &lt;&lt; 16 | address) and a
+ * link by its long key (source key &lt;&lt; 32 | target key): the static
+ * methods of this class unpack them. The arrays returned must not be
+ * modified by the subscribers.
+ * <p>
+ * The changes are coalesced by key: a node or a link added and removed in the
+ * same window does not appear at all, a link added and then reweighted only
+ * appears among the added ones with its last length and a link reweighted
+ * many times appears once. An element removed and added again appears both
+ * among the removed and the added ones: subscribers must apply the removals
+ * before the additions.
+ */
+public final class TopologyDelta {
+
+    private final static int[] NO_NODES = new int[0];
+    private final static long[] NO_LINKS = new long[0];
+
+    private final long previousEpoch;
+    private final long epoch;
+    private final int[] addedNodes;
+    private final int[] removedNodes;
+    private final long[] addedLinks;
+    private final int[] addedLengths;
+    private final long[] removedLinks;
+    private final long[] updatedLinks;
+    private final int[] updatedLengths;
+
+    private TopologyDelta(long previousEpoch, long epoch, Builder b) {
+        this.previousEpoch = previousEpoch;
+        this.epoch = epoch;
+        this.addedNodes = nodes(b.addedNodes);
+        this.removedNodes = nodes(b.removedNodes);
+        this.addedLinks = links(b.addedLinks.keySet());
+        this.addedLengths = lengths(b.addedLinks);
+        this.removedLinks = links(b.removedLinks);
+        this.updatedLinks = links(b.updatedLinks.keySet());
+        this.updatedLengths = lengths(b.updatedLinks);
+    }
+
+    private static int[] nodes(LinkedHashSet<Integer> set) {
+        if (set.isEmpty()) {
+            return NO_NODES;
+        }
+        int[] array = new int[set.size()];
+        Iterator<Integer> it = set.iterator();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = it.next();
+        }
+        return array;
+    }
+
+    private static long[] links(Set<Long> set) {
+        if (set.isEmpty()) {
+            return NO_LINKS;
+        }
+        long[] array = new long[set.size()];
+        Iterator<Long> it = set.iterator();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = it.next();
+        }
+        return array;
+    }
+
+    private static int[] lengths(LinkedHashMap<Long, Integer> map) {
+        if (map.isEmpty()) {
+            return NO_NODES;
+        }
+        int[] array = new int[map.size()];
+        Iterator<Integer> it = map.values().iterator();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = it.next();
+        }
+        return array;
+    }
+
+    /**
+     * Returns the key of a link.
+     *
+     * @param source the key of the node the link comes from.
+     * @param target the key of the node the link goes to.
+     * @return the key of the link
+     */
+    public static long link(int source, int target) {
+        return ((long) source << 32) | (target & 0xFFFFFFFFL);
+    }
+
+    public static int getSource(long link) {
+        return (int) (link >>> 32);
+    }
+
+    public static int getTarget(long link) {
+        return (int) link;
+    }
+
+    public static int getNetId(int node) {
+        return node >>> 16;
+    }
+
+    public static NodeAddress getAddress(int node) {
+        return new NodeAddress(node & 0xFFFF);
+    }
+
+    /**
+     * Returns the id of a node in the Graph returned by
+     * NetworkGraph.getGraph, "netId.address".
+     *
+     * @param node the key of the node.
+     * @return the id of the node
+     */
+    public static String getNodeId(int node) {
+        return getNetId(node) + "." + getAddress(node);
+    }
+
+    /**
+     * Returns the id of a link in the Graph returned by
+     * NetworkGraph.getGraph, "source-target".
+     *
+     * @param link the key of the link.
+     * @return the id of the link
+     */
+    public static String getEdgeId(long link) {
+        return getNodeId(getSource(link)) + "-" + getNodeId(getTarget(link));
+    }
+
+    /**
+     * Returns the epoch of the NetworkGraph after the last change of the
+     * delta, as returned by getLastModification.
+     *
+     * @return the epoch of the delta
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the epoch of the delta published before this one on the same
+     * bus, or Long.MIN_VALUE for the first delta. Applying this delta to the
+     * topology at that epoch gives the topology at getEpoch, so subscribers
+     * can tell whether they missed some delta.
+     *
+     * @return the epoch the changes of the delta start from
+     */
+    public long getPreviousEpoch() {
+        return previousEpoch;
+    }
+
+    public int[] getAddedNodes() {
+        return addedNodes;
+    }
+
+    public int[] getRemovedNodes() {
+        return removedNodes;
+    }
+
+    public long[] getAddedLinks() {
+        return addedLinks;
+    }
+
+    /**
+     * Returns the lengths of the added links, in the order of getAddedLinks.
+     *
+     * @return the lengths of the added links
+     */
+    public int[] getAddedLengths() {
+        return addedLengths;
+    }
+
+    public long[] getRemovedLinks() {
+        return removedLinks;
+    }
+
+    public long[] getUpdatedLinks() {
+        return updatedLinks;
+    }
+
+    /**
+     * Returns the new lengths of the reweighted links, in the order of
+     * getUpdatedLinks.
+     *
+     * @return the lengths of the reweighted links
+     */
+    public int[] getUpdatedLengths() {
+        return updatedLengths;
+    }
+
+    /**
+     * Returns the number of changes in the delta.
+     *
+     * @return the number of nodes and links added, removed or reweighted
+     */
+    public int size() {
+        return addedNodes.length + removedNodes.length + addedLinks.length
+                + removedLinks.length + updatedLinks.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TopologyDelta{previousEpoch=" + previousEpoch
+                + ", epoch=" + epoch
+                + ", addedNodes=" + addedNodes.length
+                + ", removedNodes=" + removedNodes.length
+                + ", addedLinks=" + addedLinks.length
+                + ", removedLinks=" + removedLinks.length
+                + ", updatedLinks=" + updatedLinks.length + "}";
+    }
+
+    /**
+     * Collects the changes of the topology until a delta is built. Not thread
+     * safe: the NetworkGraph uses it under its lock.
+     */
+    static final class Builder {
+
+        private final LinkedHashSet<Integer> addedNodes = new LinkedHashSet<>();
+        private final LinkedHashSet<Integer> removedNodes = new LinkedHashSet<>();
+        private final LinkedHashMap<Long, Integer> addedLinks = new LinkedHashMap<>();
+        private final LinkedHashSet<Long> removedLinks = new LinkedHashSet<>();
+        private final LinkedHashMap<Long, Integer> updatedLinks = new LinkedHashMap<>();
+
+        void nodeAdded(int node) {
+            addedNodes.add(node);
+        }
+
+        void nodeRemoved(int node) {
+            if (!addedNodes.remove(node)) {
+                removedNodes.add(node);
+            }
+        }
+
+        void linkAdded(long link, int length) {
+            addedLinks.put(link, length);
+        }
+
+        void linkUpdated(long link, int length) {
+            if (addedLinks.containsKey(link)) {
+                addedLinks.put(link, length);
+            } else {
+                updatedLinks.put(link, length);
+            }
+        }
+
+        void linkRemoved(long link) {
+            updatedLinks.remove(link);
+            if (addedLinks.remove(link) == null) {
+                removedLinks.add(link);
+            }
+        }
+
+        boolean isEmpty() {
+            return addedNodes.isEmpty() && removedNodes.isEmpty()
+                    && addedLinks.isEmpty() && removedLinks.isEmpty()
+                    && updatedLinks.isEmpty();
+        }
+
+        /**
+         * Builds a delta with the changes collected so far and clears the
+         * builder.
+         */
+        TopologyDelta build(long previousEpoch, long epoch) {
+            TopologyDelta delta = new TopologyDelta(previousEpoch, epoch, this);
+            addedNodes.clear();
+            removedNodes.clear();
+            addedLinks.clear();
+            removedLinks.clear();
+            updatedLinks.clear();
+            return delta;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import com.github.nkzawa.emitter.Emitter;
+import com.github.sdnwiselab.sdnwise.event.Subscriber;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the topology of a NetworkGraph on Socket.IO as binary frames, at
+ * most once every period milliseconds. The changes received between two
+ * frames are coalesced, so the size of a frame depends on the number of
+ * nodes and links changed and not on the number of reports received.
+ * <p>
+ * Every frame is sent as the only argument of a "topology" event. It is
+ * written big endian and starts with a byte holding its type, the long
+ * sequence number of the frame and the long epoch of the NetworkGraph. A node
+ * is identified by the int (netId &lt;&lt; 16 | address).
+ * <ul>
+ * <li>a SNAPSHOT frame holds the int number of nodes followed by the nodes
+ * (int key, byte battery, long lastSeen) and the int number of links followed
+ * by the links (int from, int to, short length). It replaces the whole
+ * topology known by the client.</li>
+ * <li>a DELTA frame holds, each preceded by its int count: the keys of the
+ * removed nodes, the added or refreshed nodes as in a snapshot, the removed
+ * links (int from, int to) and the added or reweighted links as in a
+ * snapshot. The client applies them in this order, removing the links of a
+ * removed node.</li>
+ * </ul>
+ * A client resuming its session emits "resume" with the sequence number of
+ * the last frame it received. If the following frames are still in the
+ * history they are sent again, otherwise a snapshot is sent. The delta frames
+ * carry the final state of what they change, so a frame applied twice
+ * leaves the topology unchanged.
+ */
+final class TopologyPublisher implements Subscriber<TopologyDelta> {
+
+    final static String EVENT = "topology";
+    final static byte SNAPSHOT = 1;
+    final static byte DELTA = 2;
+
+    private final static int HEADER = 1 + 8 + 8;
+    private final static int NODE = 4 + 1 + 8;
+    private final static int LINK = 4 + 4 + 2;
+    private final static int REMOVED_LINK = 4 + 4;
+    private final static int HISTORY = 64;
+
+    private final NetworkGraph networkGraph;
+    private final Emitter socket;
+    private final long period;
+    private final ScheduledExecutorService executor;
+
+    // pending changes, guarded by this
+    private final LinkedHashSet<Integer> removedNodes = new LinkedHashSet<>();
+    private final LinkedHashSet<Integer> dirtyNodes = new LinkedHashSet<>();
+    private final LinkedHashMap<Long, Integer> links = new LinkedHashMap<>();
+    private boolean scheduled;
+    private long lastPublish = Long.MIN_VALUE / 2;
+
+    // used by the executor only
+    private long seq;
+    private final ArrayDeque<byte[]> history = new ArrayDeque<>(HISTORY);
+
+    private final Runnable publishTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                synchronized (TopologyPublisher.this) {
+                    scheduled = false;
+                }
+                publish();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(TopologyPublisher.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+        }
+    };
+
+    /**
+     * Creates a publisher. The publisher must subscribe to the topology bus
+     * of the NetworkGraph.
+     *
+     * @param networkGraph the published NetworkGraph.
+     * @param socket the Socket.IO socket.
+     * @param rate the maximum number of frames per second.
+     */
+    TopologyPublisher(NetworkGraph networkGraph, Emitter socket, int rate) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        this.networkGraph = networkGraph;
+        this.socket = socket;
+        this.period = Math.max(1, 1000 / rate);
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread th = new Thread(r, "TopologyPublisher");
+                        th.setDaemon(true);
+                        return th;
+                    }
+                });
+    }
+
+    @Override
+    public void onEvent(TopologyDelta delta) {
+        synchronized (this) {
+            for (long link : delta.getRemovedLinks()) {
+                links.put(link, -1);
+            }
+            for (int key : delta.getRemovedNodes()) {
+                removedNodes.add(key);
+                dirtyNodes.remove(key);
+            }
+            for (int key : delta.getAddedNodes()) {
+                dirtyNodes.add(key);
+            }
+            long[] added = delta.getAddedLinks();
+            int[] addedLengths = delta.getAddedLengths();
+            for (int i = 0; i < added.length; i++) {
+                links.put(added[i], addedLengths[i]);
+            }
+            long[] updated = delta.getUpdatedLinks();
+            int[] updatedLengths = delta.getUpdatedLengths();
+            for (int i = 0; i < updated.length; i++) {
+                links.put(updated[i], updatedLengths[i]);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Marks a node as refreshed: its battery and last seen time are sent in
+     * the next frame.
+     *
+     * @param key the key of the node, as in a TopologyDelta.
+     */
+    synchronized void nodeSeen(int key) {
+        dirtyNodes.add(key);
+        schedule();
+    }
+
+    /**
+     * Answers the "resume" event of a client.
+     *
+     * @param args the arguments of the event: the sequence number of the last
+     * frame received by the client, if any.
+     */
+    void resume(Object... args) {
+        final long last = args.length > 0 && args[0] instanceof Number
+                ? ((Number) args[0]).longValue() : -1;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    publish();
+                    long first = seq - history.size() + 1;
+                    if (last >= first - 1 && last <= seq) {
+                        long s = first;
+                        for (byte[] frame : history) {
+                            if (s++ > last) {
+                                socket.emit(EVENT, (Object) frame);
+                            }
+                        }
+                    } else {
+                        socket.emit(EVENT, (Object) encode(
+                                networkGraph.getSnapshot(), seq));
+                    }
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(TopologyPublisher.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the publisher. The pending changes are not sent.
+     */
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            long delay = lastPublish + period - System.currentTimeMillis();
+            executor.schedule(publishTask, Math.max(0, delay),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void publish() {
+        int[] removed;
+        int[] dirty;
+        long[] linkKeys;
+        int[] lengths;
+        synchronized (this) {
+            lastPublish = System.currentTimeMillis();
+            if (removedNodes.isEmpty() && dirtyNodes.isEmpty()
+                    && links.isEmpty()) {
+                return;
+            }
+            removed = toArray(removedNodes);
+            dirty = toArray(dirtyNodes);
+            linkKeys = new long[links.size()];
+            lengths = new int[links.size()];
+            int i = 0;
+            for (Map.Entry<Long, Integer> e : links.entrySet()) {
+                linkKeys[i] = e.getKey();
+                lengths[i++] = e.getValue();
+            }
+            removedNodes.clear();
+            dirtyNodes.clear();
+            links.clear();
+        }
+
+        int removedLinks = 0;
+        for (int len : lengths) {
+            if (len < 0) {
+                removedLinks++;
+            }
+        }
+        int setLinks = lengths.length - removedLinks;
+
+        TopologyStore store = networkGraph.getStore();
+        byte[] frame;
+        Lock lock = networkGraph.getReadLock();
+        lock.lock();
+        try {
+            int[] slots = new int[dirty.length];
+            int nodes = 0;
+            for (int key : dirty) {
+                int slot = store.slot(key >>> 16, key & 0xFFFF);
+                if (slot >= 0) {
+                    slots[nodes++] = slot;
+                }
+            }
+            ByteBuffer buf = ByteBuffer.allocate(HEADER + 16
+                    + removed.length * 4 + nodes * NODE
+                    + removedLinks * REMOVED_LINK + setLinks * LINK);
+            buf.put(DELTA).putLong(seq + 1)
+                    .putLong(networkGraph.getLastModification());
+            buf.putInt(removed.length);
+            for (int key : removed) {
+                buf.putInt(key);
+            }
+            buf.putInt(nodes);
+            for (int i = 0; i < nodes; i++) {
+                int slot = slots[i];
+                buf.putInt(TopologyStore.key(store.getNetId(slot),
+                        store.getAddressValue(slot)))
+                        .put((byte) store.getBattery(slot))
+                        .putLong(store.getLastSeen(slot));
+            }
+            buf.putInt(removedLinks);
+            for (int i = 0; i < linkKeys.length; i++) {
+                if (lengths[i] < 0) {
+                    buf.putLong(linkKeys[i]);
+                }
+            }
+            buf.putInt(setLinks);
+            for (int i = 0; i < linkKeys.length; i++) {
+                if (lengths[i] >= 0) {
+                    buf.putLong(linkKeys[i]).putShort((short) lengths[i]);
+                }
+            }
+            frame = buf.array();
+        } finally {
+            lock.unlock();
+        }
+
+        seq++;
+        if (history.size() == HISTORY) {
+            history.removeFirst();
+        }
+        history.addLast(frame);
+        socket.emit(EVENT, (Object) frame);
+    }
+
+    /**
+     * Encodes a snapshot frame.
+     *
+     * @param snapshot the topology.
+     * @param seq the sequence number of the last delta frame included in the
+     * snapshot.
+     * @return the frame
+     */
+    static byte[] encode(TopologySnapshot snapshot, long seq) {
+        int n = snapshot.size();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + 8 + n * NODE
+                + snapshot.getLinkCount() * LINK);
+        buf.put(SNAPSHOT).putLong(seq).putLong(snapshot.getEpoch());
+        int[] keys = new int[n];
+        buf.putInt(n);
+        for (int i = 0; i < n; i++) {
+            keys[i] = TopologyStore.key(snapshot.getNetId(i),
+                    snapshot.getAddress(i).intValue());
+            buf.putInt(keys[i])
+                    .put((byte) snapshot.getBattery(i))
+                    .putLong(snapshot.getLastSeen(i));
+        }
+        buf.putInt(snapshot.getLinkCount());
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < snapshot.getOutDegree(i); j++) {
+                buf.putInt(keys[i])
+                        .putInt(keys[snapshot.getOutNeighbour(i, j)])
+                        .putShort((short) snapshot.getOutLength(i, j));
+            }
+        }
+        return buf.array();
+    }
+
+    private static int[] toArray(LinkedHashSet<Integer> set) {
+        int[] array = new int[set.size()];
+        Iterator<Integer> it = set.iterator();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = it.next();
+        }
+        return array;
+    }
+}
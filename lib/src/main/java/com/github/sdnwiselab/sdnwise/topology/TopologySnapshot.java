@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import com.github.sdnwiselab.sdnwise.graphStream.Edge;
+import com.github.sdnwiselab.sdnwise.graphStream.Graph;
+import com.github.sdnwiselab.sdnwise.graphStream.MultiGraph;
+import com.github.sdnwiselab.sdnwise.graphStream.Node;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.Arrays;
+
+/**
+ * An immutable copy of the topology of the network, taken at a given epoch
+ * of the NetworkGraph. A snapshot can be read by any thread without locks.
+ * <p>
+ * The nodes are numbered from 0 to size() - 1 in order of NetworkId and
+ * address, and the links of each node are stored in compressed rows. The
+ * battery level and the last time a node was seen do not change the epoch,
+ * so they are the ones known when the snapshot was taken.
+ */
+public final class TopologySnapshot {
+
+    private final long epoch;
+    private final int[] keys;
+    private final int[] battery;
+    private final long[] lastSeen;
+    private final int[] inStart;
+    private final int[] inNode;
+    private final int[] inLen;
+    private final int[] outStart;
+    private final int[] outNode;
+    private final int[] outLen;
+
+    TopologySnapshot(TopologyStore store, long epoch) {
+        this.epoch = epoch;
+        int limit = store.getSlotLimit();
+        long[] order = new long[store.size()];
+        int n = 0;
+        for (int slot = 0; slot < limit; slot++) {
+            if (store.isUsed(slot)) {
+                int key = TopologyStore.key(store.getNetId(slot),
+                        store.getAddressValue(slot));
+                order[n++] = ((long) key << 32) | slot;
+            }
+        }
+        Arrays.sort(order, 0, n);
+
+        int[] index = new int[limit];
+        keys = new int[n];
+        battery = new int[n];
+        lastSeen = new long[n];
+        inStart = new int[n + 1];
+        outStart = new int[n + 1];
+        int links = 0;
+        for (int i = 0; i < n; i++) {
+            int slot = (int) order[i];
+            index[slot] = i;
+            keys[i] = (int) (order[i] >>> 32);
+            battery[i] = store.getBattery(slot);
+            lastSeen[i] = store.getLastSeen(slot);
+            links += store.getInDegree(slot);
+        }
+        inNode = new int[links];
+        inLen = new int[links];
+        outNode = new int[links];
+        outLen = new int[links];
+        int in = 0;
+        int out = 0;
+        for (int i = 0; i < n; i++) {
+            int slot = (int) order[i];
+            inStart[i] = in;
+            for (int j = 0; j < store.getInDegree(slot); j++) {
+                inNode[in] = index[store.getInNeighbour(slot, j)];
+                inLen[in++] = store.getInLength(slot, j);
+            }
+            outStart[i] = out;
+            for (int j = 0; j < store.getOutDegree(slot); j++) {
+                outNode[out] = index[store.getOutNeighbour(slot, j)];
+                outLen[out++] = store.getOutLength(slot, j);
+            }
+        }
+        inStart[n] = in;
+        outStart[n] = out;
+    }
+
+    /**
+     * Returns the epoch of the NetworkGraph when the snapshot was taken, as
+     * returned by getLastModification.
+     *
+     * @return the epoch of the snapshot
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of nodes.
+     *
+     * @return the number of nodes
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the index of a node.
+     *
+     * @param netId the NetworkId of the node.
+     * @param addr the address of the node.
+     * @return the index of the node, or a negative value if the node is not
+     * in the snapshot
+     */
+    public int indexOf(int netId, NodeAddress addr) {
+        return Arrays.binarySearch(keys,
+                TopologyStore.key(netId, addr.intValue()));
+    }
+
+    /**
+     * Returns the key of a node, netId &lt;&lt; 16 | address, as used by the
+     * TopologyDelta. The nodes are numbered in order of key.
+     *
+     * @param i the index of the node.
+     * @return the key of the node
+     */
+    public int getKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Returns the index of a node.
+     *
+     * @param key the key of the node, as used by the TopologyDelta.
+     * @return the index of the node, or a negative value if the node is not
+     * in the snapshot
+     */
+    public int indexOf(int key) {
+        return Arrays.binarySearch(keys, key);
+    }
+
+    public int getNetId(int i) {
+        return keys[i] >>> 16;
+    }
+
+    public NodeAddress getAddress(int i) {
+        return new NodeAddress(keys[i] & 0xFFFF);
+    }
+
+    public int getBattery(int i) {
+        return battery[i];
+    }
+
+    public long getLastSeen(int i) {
+        return lastSeen[i];
+    }
+
+    public int getInDegree(int i) {
+        return inStart[i + 1] - inStart[i];
+    }
+
+    public int getInNeighbour(int i, int j) {
+        return inNode[inStart[i] + j];
+    }
+
+    public int getInLength(int i, int j) {
+        return inLen[inStart[i] + j];
+    }
+
+    public int getOutDegree(int i) {
+        return outStart[i + 1] - outStart[i];
+    }
+
+    public int getOutNeighbour(int i, int j) {
+        return outNode[outStart[i] + j];
+    }
+
+    public int getOutLength(int i, int j) {
+        return outLen[outStart[i] + j];
+    }
+
+    /**
+     * Returns the number of links.
+     *
+     * @return the number of links
+     */
+    public int getLinkCount() {
+        return inNode.length;
+    }
+
+    /**
+     * Builds a graphStream Graph holding the topology of the snapshot, for
+     * the algorithms and the user interfaces based on graphStream. A node has
+     * id "netId.address" and the attributes "netId" and "nodeAddress", a
+     * link has id "source-target" and the attribute "length". The Graph is
+     * a copy: changing it does not change the snapshot.
+     *
+     * @return a new Graph
+     */
+    public Graph toGraph() {
+        Graph graph = new MultiGraph("SDN-WISE Network");
+        graph.setStrict(false);
+        String[] ids = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ids[i] = getNetId(i) + "." + getAddress(i);
+            Node node = graph.addNode(ids[i]);
+            node.addAttribute("netId", getNetId(i));
+            node.addAttribute("nodeAddress", getAddress(i));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            for (int j = 0; j < getOutDegree(i); j++) {
+                String target = ids[getOutNeighbour(i, j)];
+                Edge edge = graph.addEdge(ids[i] + "-" + target, ids[i],
+                        target, true);
+                edge.addAttribute("length", getOutLength(i, j));
+            }
+        }
+        return graph;
+    }
+}
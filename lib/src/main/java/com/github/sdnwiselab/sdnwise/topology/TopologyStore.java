@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.Arrays;
+
+/**
+ * The topology of the network stored in primitive arrays. Every node is
+ * identified by a key made of its NetworkId and of the 16 bit value of its
+ * address, and it is assigned a slot, an index in the arrays holding its
+ * battery level, the time it was last seen and its links.
+ * <p>
+ * The links entering and leaving each node are kept in two compressed rows
+ * (CSR) tables. A row has some spare room and it is moved to the end of its
+ * table when it has to grow; the tables are compacted when more than half of
+ * them is unused. Each link is stored in a single int holding the slot of
+ * the node at the other end and the length of the link. The length is 255
+ * minus the RSSI read as a signed byte, so it fits in 9 bits.
+ * <p>
+ * The store is not thread safe: it is guarded by the NetworkGraph owning it.
+ */
+public final class TopologyStore {
+
+    private final static int DFLT_CAPACITY = 64;
+    private final static int DFLT_ROW = 4;
+    private final static int EMPTY = -1;
+    private final static int LEN_BITS = 9;
+    private final static int LEN_MASK = (1 << LEN_BITS) - 1;
+
+    // key -> slot, open addressing with linear probing
+    private int[] tableKeys;
+    private int[] tableSlots;
+    private int tableMask;
+
+    // slots
+    private int[] keys;
+    private byte[] battery;
+    private long[] lastSeen;
+    private int[] free;
+    private int freeCount;
+    private int used;
+    private int size;
+
+    private final Rows in;
+    private final Rows out;
+
+    /**
+     * Creates an empty store.
+     */
+    public TopologyStore() {
+        tableKeys = new int[DFLT_CAPACITY * 2];
+        tableSlots = new int[DFLT_CAPACITY * 2];
+        tableMask = tableKeys.length - 1;
+        Arrays.fill(tableKeys, EMPTY);
+        keys = new int[DFLT_CAPACITY];
+        Arrays.fill(keys, EMPTY);
+        battery = new byte[DFLT_CAPACITY];
+        lastSeen = new long[DFLT_CAPACITY];
+        free = new int[DFLT_CAPACITY];
+        in = new Rows(DFLT_CAPACITY);
+        out = new Rows(DFLT_CAPACITY);
+    }
+
+    /**
+     * Returns the key of a node.
+     *
+     * @param netId the NetworkId of the node.
+     * @param addr the address of the node, as returned by NodeAddress.intValue.
+     * @return the key of the node
+     */
+    public static int key(int netId, int addr) {
+        return ((netId & 0xFF) << 16) | (addr & 0xFFFF);
+    }
+
+    // *** Nodes ***
+
+    /**
+     * Returns the slot of a node.
+     *
+     * @param netId the NetworkId of the node.
+     * @param addr the address of the node, as returned by NodeAddress.intValue.
+     * @return the slot of the node, or -1 if the node is not in the store
+     */
+    public int slot(int netId, int addr) {
+        int key = key(netId, addr);
+        int i = mix(key) & tableMask;
+        while (tableKeys[i] != EMPTY) {
+            if (tableKeys[i] == key) {
+                return tableSlots[i];
+            }
+            i = (i + 1) & tableMask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Adds a node to the store.
+     *
+     * @param netId the NetworkId of the node.
+     * @param addr the address of the node, as returned by NodeAddress.intValue.
+     * @return the slot of the node
+     */
+    int addNode(int netId, int addr) {
+        int slot = slot(netId, addr);
+        if (slot != EMPTY) {
+            return slot;
+        }
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            if (used == keys.length) {
+                grow(keys.length * 2);
+            }
+            slot = used++;
+        }
+        int key = key(netId, addr);
+        keys[slot] = key;
+        battery[slot] = 0;
+        lastSeen[slot] = 0;
+        in.reset(slot);
+        out.reset(slot);
+        size++;
+        if (size * 2 > tableKeys.length) {
+            rehash(tableKeys.length * 2);
+        }
+        insert(key, slot);
+        return slot;
+    }
+
+    /**
+     * Removes a node and all its links from the store.
+     *
+     * @param slot the slot of the node.
+     */
+    void removeNode(int slot) {
+        for (int i = in.count[slot] - 1; i >= 0; i--) {
+            out.remove(neighbour(in.get(slot, i)), slot);
+        }
+        for (int i = out.count[slot] - 1; i >= 0; i--) {
+            in.remove(neighbour(out.get(slot, i)), slot);
+        }
+        in.reset(slot);
+        out.reset(slot);
+        delete(keys[slot]);
+        keys[slot] = EMPTY;
+        free[freeCount++] = slot;
+        size--;
+    }
+
+    /**
+     * Returns the number of nodes in the store.
+     *
+     * @return the number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of slots in use or freed. Slots go from 0 to this
+     * value, excluded; isUsed tells which of them hold a node.
+     *
+     * @return the upper bound of the slots
+     */
+    public int getSlotLimit() {
+        return used;
+    }
+
+    public boolean isUsed(int slot) {
+        return slot >= 0 && slot < used && keys[slot] != EMPTY;
+    }
+
+    public int getNetId(int slot) {
+        return keys[slot] >>> 16;
+    }
+
+    public int getAddressValue(int slot) {
+        return keys[slot] & 0xFFFF;
+    }
+
+    public NodeAddress getAddress(int slot) {
+        return new NodeAddress(getAddressValue(slot));
+    }
+
+    public int getBattery(int slot) {
+        return battery[slot] & 0xFF;
+    }
+
+    public long getLastSeen(int slot) {
+        return lastSeen[slot];
+    }
+
+    void update(int slot, int batt, long now) {
+        battery[slot] = (byte) batt;
+        lastSeen[slot] = now;
+    }
+
+    // *** Links ***
+
+    /**
+     * Returns the number of links entering a node, that is the number of
+     * neighbours in its last report.
+     *
+     * @param slot the slot of the node.
+     * @return the number of links entering the node
+     */
+    public int getInDegree(int slot) {
+        return in.count[slot];
+    }
+
+    public int getInNeighbour(int slot, int i) {
+        return neighbour(in.get(slot, i));
+    }
+
+    public int getInLength(int slot, int i) {
+        return length(in.get(slot, i));
+    }
+
+    /**
+     * Returns the number of links leaving a node.
+     *
+     * @param slot the slot of the node.
+     * @return the number of links leaving the node
+     */
+    public int getOutDegree(int slot) {
+        return out.count[slot];
+    }
+
+    public int getOutNeighbour(int slot, int i) {
+        return neighbour(out.get(slot, i));
+    }
+
+    public int getOutLength(int slot, int i) {
+        return length(out.get(slot, i));
+    }
+
+    /**
+     * Returns the position of the link from a node to another in the row of
+     * the links entering the latter.
+     *
+     * @param from the slot of the source of the link.
+     * @param to the slot of the target of the link.
+     * @return the position of the link, or -1 if there is no such link
+     */
+    public int findLink(int from, int to) {
+        return in.find(to, from);
+    }
+
+    /**
+     * Adds a link or changes its length.
+     *
+     * @param from the slot of the source of the link.
+     * @param to the slot of the target of the link.
+     * @param len the length of the link.
+     */
+    void setLink(int from, int to, int len) {
+        in.put(to, from, len);
+        out.put(from, to, len);
+    }
+
+    void removeLink(int from, int to) {
+        in.remove(to, from);
+        out.remove(from, to);
+    }
+
+    private static int neighbour(int link) {
+        return link >>> LEN_BITS;
+    }
+
+    private static int length(int link) {
+        return link & LEN_MASK;
+    }
+
+    // *** Internals ***
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void insert(int key, int slot) {
+        int i = mix(key) & tableMask;
+        while (tableKeys[i] != EMPTY) {
+            i = (i + 1) & tableMask;
+        }
+        tableKeys[i] = key;
+        tableSlots[i] = slot;
+    }
+
+    private void delete(int key) {
+        int i = mix(key) & tableMask;
+        while (tableKeys[i] != key) {
+            if (tableKeys[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & tableMask;
+        }
+        // shift back the following entries of the cluster
+        int j = i;
+        while (true) {
+            j = (j + 1) & tableMask;
+            if (tableKeys[j] == EMPTY) {
+                break;
+            }
+            int home = mix(tableKeys[j]) & tableMask;
+            if ((j > i && (home <= i || home > j))
+                    || (j < i && (home <= i && home > j))) {
+                tableKeys[i] = tableKeys[j];
+                tableSlots[i] = tableSlots[j];
+                i = j;
+            }
+        }
+        tableKeys[i] = EMPTY;
+    }
+
+    private void rehash(int length) {
+        int[] oldKeys = tableKeys;
+        int[] oldSlots = tableSlots;
+        tableKeys = new int[length];
+        tableSlots = new int[length];
+        tableMask = length - 1;
+        Arrays.fill(tableKeys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                insert(oldKeys[i], oldSlots[i]);
+            }
+        }
+    }
+
+    private void grow(int capacity) {
+        int old = keys.length;
+        keys = Arrays.copyOf(keys, capacity);
+        Arrays.fill(keys, old, capacity, EMPTY);
+        battery = Arrays.copyOf(battery, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        free = Arrays.copyOf(free, capacity);
+        in.grow(capacity);
+        out.grow(capacity);
+    }
+
+    /**
+     * A table of rows of links, one row for each slot.
+     */
+    private static final class Rows {
+
+        int[] start;
+        int[] count;
+        int[] cap;
+        int[] links = new int[DFLT_CAPACITY * DFLT_ROW];
+        int end;
+        int live;
+
+        Rows(int capacity) {
+            start = new int[capacity];
+            count = new int[capacity];
+            cap = new int[capacity];
+        }
+
+        void grow(int capacity) {
+            start = Arrays.copyOf(start, capacity);
+            count = Arrays.copyOf(count, capacity);
+            cap = Arrays.copyOf(cap, capacity);
+        }
+
+        void reset(int slot) {
+            live -= cap[slot];
+            start[slot] = 0;
+            count[slot] = 0;
+            cap[slot] = 0;
+        }
+
+        int get(int slot, int i) {
+            return links[start[slot] + i];
+        }
+
+        int find(int slot, int other) {
+            int s = start[slot];
+            for (int i = 0; i < count[slot]; i++) {
+                if (neighbour(links[s + i]) == other) {
+                    return i;
+                }
+            }
+            return EMPTY;
+        }
+
+        void put(int slot, int other, int len) {
+            int link = (other << LEN_BITS) | (len & LEN_MASK);
+            int i = find(slot, other);
+            if (i != EMPTY) {
+                links[start[slot] + i] = link;
+                return;
+            }
+            if (count[slot] == cap[slot]) {
+                move(slot, Math.max(DFLT_ROW, cap[slot] * 2));
+            }
+            links[start[slot] + count[slot]++] = link;
+        }
+
+        void remove(int slot, int other) {
+            int i = find(slot, other);
+            if (i != EMPTY) {
+                int s = start[slot];
+                links[s + i] = links[s + --count[slot]];
+            }
+        }
+
+        private void move(int slot, int newCap) {
+            if (end + newCap > links.length) {
+                compact(slot, newCap);
+            }
+            System.arraycopy(links, start[slot], links, end, count[slot]);
+            live += newCap - cap[slot];
+            start[slot] = end;
+            cap[slot] = newCap;
+            end += newCap;
+        }
+
+        /**
+         * Makes room for a row of newCap links, packing the other rows if
+         * most of the table is unused or enlarging the table otherwise.
+         */
+        private void compact(int growing, int newCap) {
+            int needed = live - cap[growing] + newCap;
+            int length = links.length;
+            while (needed * 2 > length) {
+                length *= 2;
+            }
+            int[] packed = new int[length];
+            int pos = 0;
+            for (int s = 0; s < start.length; s++) {
+                if (cap[s] > 0 && s != growing) {
+                    System.arraycopy(links, start[s], packed, pos, count[s]);
+                    start[s] = pos;
+                    pos += cap[s];
+                }
+            }
+            if (cap[growing] > 0) {
+                System.arraycopy(links, start[growing], packed, pos,
+                        count[growing]);
+                start[growing] = pos;
+                pos += cap[growing];
+            }
+            links = packed;
+            end = pos;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.util;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The source of the time used by the timers of SDN-WISE: the periodic task
+ * of the nodes, the liveness of the NetworkGraph and the timeouts of the
+ * Controller.
+ * <p>
+ * SYSTEM is the real time. A Simulation is a virtual time, which advances
+ * only when its events are run, so that a network can be simulated faster
+ * than real time and the same run can be reproduced.
+ */
+public abstract class Clock {
+
+    /**
+     * The real time, with a pool of threads per scheduler.
+     */
+    public final static Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public ScheduledExecutorService newScheduler(final String name,
+                int threads) {
+            final AtomicInteger count = new AtomicInteger();
+            ScheduledThreadPoolExecutor scheduler
+                    = new ScheduledThreadPoolExecutor(threads,
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    int n = count.getAndIncrement();
+                                    Thread th = new Thread(r, n == 0 ? name
+                                            : name + " " + n);
+                                    th.setDaemon(true);
+                                    return th;
+                                }
+                            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+
+        @Override
+        public String toString() {
+            return "Clock{SYSTEM}";
+        }
+    };
+
+    /**
+     * Returns the time elapsed from an arbitrary origin, to measure
+     * intervals.
+     *
+     * @return the time in nanoseconds
+     */
+    public abstract long nanoTime();
+
+    /**
+     * Returns the time of the day.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public abstract long millis();
+
+    /**
+     * Creates a scheduler running its tasks at the times of this clock.
+     * The scheduler is owned by the caller, which has to shut it down.
+     *
+     * @param name the name of the threads of the scheduler.
+     * @param threads the number of threads, ignored by a Simulation.
+     * @return a new scheduler
+     */
+    public abstract ScheduledExecutorService newScheduler(String name,
+            int threads);
+}
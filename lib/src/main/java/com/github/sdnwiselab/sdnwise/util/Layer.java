@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The lifecycle shared by the layers of SDN-WISE: Controller, FlowVisor,
+ * Adaptation and Application.
+ * <p>
+ * A layer is started once, either by start or by running it on a thread of
+ * the caller. The method startUp opens the adapters and registers the
+ * subscribers, then the running thread waits, without using the CPU, until
+ * stop is called or the thread is interrupted. Finally shutDown drains the
+ * queues and closes the adapters. Any thread can wait for the layer to be
+ * terminated with awaitTermination.
+ * <p>
+ * The states of a layer are NEW, RUNNING, STOPPING and TERMINATED. A layer
+ * stopped before being started goes directly to TERMINATED.
+ */
+public abstract class Layer implements Runnable {
+
+    public final static int NEW = 0,
+            RUNNING = 1,
+            STOPPING = 2,
+            TERMINATED = 3;
+
+    /**
+     * The time in milliseconds a layer waits for its queues to be emptied
+     * while shutting down.
+     */
+    public final static long DRAIN_TIMEOUT = 1000;
+
+    private final String name;
+    private final AtomicInteger state = new AtomicInteger(NEW);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch stopRequested = new CountDownLatch(1);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private Thread thread;
+
+    /**
+     * Creates a layer.
+     *
+     * @param name the name of the thread started by start.
+     */
+    protected Layer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Opens the adapters of the layer and starts its workers.
+     *
+     * @return false if the layer can not run, in which case shutDown is
+     * called immediately
+     */
+    protected abstract boolean startUp();
+
+    /**
+     * Stops the workers of the layer, waits for its queues to be emptied and
+     * closes its adapters. It is called once, also when startUp failed.
+     */
+    protected abstract void shutDown();
+
+    /**
+     * Starts the layer on a new thread.
+     */
+    public final synchronized void start() {
+        if (thread != null || state.get() != NEW) {
+            return;
+        }
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Runs the layer on the calling thread until it is stopped.
+     */
+    @Override
+    public final void run() {
+        if (!state.compareAndSet(NEW, RUNNING)) {
+            return;
+        }
+        try {
+            boolean up = false;
+            try {
+                up = startUp();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Layer.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+            started.countDown();
+            if (up) {
+                try {
+                    stopRequested.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            state.set(STOPPING);
+            try {
+                shutDown();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Layer.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            } finally {
+                state.set(TERMINATED);
+                started.countDown();
+                terminated.countDown();
+            }
+        }
+    }
+
+    /**
+     * Asks the layer to stop. It returns immediately: use awaitTermination to
+     * wait for the layer to be shut down.
+     */
+    public final void stop() {
+        stopRequested.countDown();
+        if (state.compareAndSet(NEW, TERMINATED)) {
+            started.countDown();
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * Waits until startUp has returned.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return true if the layer is running
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public final boolean awaitRunning(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return started.await(timeout, unit) && isRunning();
+    }
+
+    /**
+     * Waits until the layer is terminated.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public final void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * Waits until the layer is terminated.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return false if the time is up before the layer is terminated
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public final boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public final boolean isRunning() {
+        return state.get() == RUNNING && stopRequested.getCount() > 0;
+    }
+
+    public final int getState() {
+        return state.get();
+    }
+
+    /**
+     * Stops the layer when a command is read from a stream, such as the
+     * standard input. The stream is read by a daemon thread, which ends with
+     * the stream.
+     *
+     * @param in the stream.
+     * @param command the line that stops the layer.
+     */
+    protected final void stopOn(final InputStream in, final String command) {
+        Thread th = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(in, Charset.forName("UTF-8")));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null
+                            && terminated.getCount() > 0) {
+                        if (line.trim().equals(command)) {
+                            stop();
+                            return;
+                        }
+                    }
+                } catch (IOException ex) {
+                    Logger.getLogger(Layer.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            }
+        }, name + " console");
+        th.setDaemon(true);
+        th.start();
+    }
+
+    @Override
+    public String toString() {
+        String[] states = {"NEW", "RUNNING", "STOPPING", "TERMINATED"};
+        return getClass().getSimpleName() + "{" + states[state.get()] + "}";
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A discrete event simulation clock. The tasks given to the schedulers of a
+ * Simulation are events kept in a single queue, ordered by time and, for
+ * equal times, by submission. They are run one at a time by the thread
+ * calling run, which moves the time of the clock to the time of each event:
+ * no time passes while an event runs, and none is spent waiting between
+ * two events.
+ * <p>
+ * Since the events are run in a fixed order on a single thread, two runs
+ * of the same components with the same seeds give the same trace, whatever
+ * the speed of the machine. A day of a network of nodes whose periodic
+ * tasks run every second is simulated in the time needed to run its events.
+ * <p>
+ * An event must not block waiting for another event, such as a synchronous
+ * query of the Controller waiting for its answer: the time would not
+ * advance. Threads other than the one running the simulation may submit
+ * events, which are run at the current time of the clock.
+ */
+public final class Simulation extends Clock {
+
+    private final long epoch;
+    private final PriorityQueue<Event<?>> events = new PriorityQueue<>();
+    // written holding the lock of the simulation
+    private volatile long now;
+    private long sequence;
+    private long executed;
+    private Thread runner;
+
+    /**
+     * Creates a simulation starting at the epoch.
+     */
+    public Simulation() {
+        this(0);
+    }
+
+    /**
+     * Creates a simulation.
+     *
+     * @param epoch the value of millis at the start of the simulation.
+     */
+    public Simulation(long epoch) {
+        this.epoch = epoch;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public long millis() {
+        return epoch + TimeUnit.NANOSECONDS.toMillis(now);
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduler(String name, int threads) {
+        return new Scheduler(name);
+    }
+
+    /**
+     * Runs the events due in the next period of simulated time, then moves
+     * the time of the clock to the end of the period.
+     *
+     * @param time the length of the period.
+     * @param unit the unit of the period.
+     * @return the number of events run
+     */
+    public long run(long time, TimeUnit unit) {
+        long end;
+        synchronized (this) {
+            enter();
+            end = now + unit.toNanos(time);
+        }
+        long n = 0;
+        try {
+            while (runNext(end)) {
+                n++;
+            }
+            synchronized (this) {
+                now = end;
+            }
+        } finally {
+            exit();
+        }
+        return n;
+    }
+
+    /**
+     * Runs the next event, moving the time of the clock to its time.
+     *
+     * @return false if there are no events
+     */
+    public boolean step() {
+        synchronized (this) {
+            enter();
+        }
+        try {
+            return runNext(Long.MAX_VALUE);
+        } finally {
+            exit();
+        }
+    }
+
+    private void enter() {
+        if (runner != null) {
+            throw new IllegalStateException("Simulation already running");
+        }
+        runner = Thread.currentThread();
+    }
+
+    private synchronized void exit() {
+        runner = null;
+    }
+
+    private boolean runNext(long end) {
+        Event<?> event;
+        synchronized (this) {
+            event = events.peek();
+            if (event == null || event.time > end) {
+                return false;
+            }
+            events.poll();
+            now = event.time;
+            event.owner.pending--;
+            executed++;
+        }
+        event.run();
+        synchronized (this) {
+            if (event.owner.isTerminated()) {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of events waiting to be run.
+     *
+     * @return the number of events in the queue
+     */
+    public synchronized int getPending() {
+        return events.size();
+    }
+
+    /**
+     * Returns the number of events run since the start of the simulation.
+     *
+     * @return the number of events run
+     */
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Simulation{time=" + TimeUnit.NANOSECONDS.toMillis(now)
+                + "ms, pending=" + events.size()
+                + ", executed=" + executed + "}";
+    }
+
+    /**
+     * A task scheduled at a time of the simulation. Periodic tasks are put
+     * back in the queue after each run, unless they failed or have been
+     * cancelled.
+     */
+    private final class Event<V> extends FutureTask<V>
+            implements ScheduledFuture<V> {
+
+        private final Scheduler owner;
+        // positive for a fixed rate, negative for a fixed delay
+        private final long period;
+        private long time;
+        private long seq;
+
+        Event(Scheduler owner, Runnable task, long period) {
+            super(task, null);
+            this.owner = owner;
+            this.period = period;
+        }
+
+        Event(Scheduler owner, Callable<V> task) {
+            super(task);
+            this.owner = owner;
+            this.period = 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (o == this) {
+                return 0;
+            }
+            if (o instanceof Event) {
+                Event<?> e = (Event<?>) o;
+                if (time != e.time) {
+                    return time < e.time ? -1 : 1;
+                }
+                return seq < e.seq ? -1 : 1;
+            }
+            long d = getDelay(TimeUnit.NANOSECONDS)
+                    - o.getDelay(TimeUnit.NANOSECONDS);
+            return d < 0 ? -1 : (d > 0 ? 1 : 0);
+        }
+
+        @Override
+        public void run() {
+            if (period == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                owner.requeue(this, period > 0 ? time + period : now - period);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(false);
+            if (cancelled) {
+                owner.remove(this);
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * The view of the simulation given to a component. Shutting it down
+     * removes only the events submitted through it. As by a
+     * ScheduledThreadPoolExecutor, after shutdown the delayed events are
+     * still run, the periodic ones are not.
+     */
+    private final class Scheduler extends AbstractExecutorService
+            implements ScheduledExecutorService {
+
+        private final String name;
+        // events of this scheduler in the queue
+        private int pending;
+        private boolean shutdown;
+
+        Scheduler(String name) {
+            this.name = name;
+        }
+
+        private <V> Event<V> enqueue(Event<V> event, long delay) {
+            synchronized (Simulation.this) {
+                if (shutdown) {
+                    throw new RejectedExecutionException(name + " shut down");
+                }
+                add(event, now + Math.max(0, delay));
+            }
+            return event;
+        }
+
+        // holding the lock of the simulation
+        private void add(Event<?> event, long time) {
+            event.time = time;
+            event.seq = sequence++;
+            events.add(event);
+            pending++;
+        }
+
+        private void requeue(Event<?> event, long time) {
+            synchronized (Simulation.this) {
+                if (!shutdown) {
+                    add(event, time);
+                }
+            }
+        }
+
+        private void remove(Event<?> event) {
+            synchronized (Simulation.this) {
+                if (events.remove(event)) {
+                    pending--;
+                    if (isTerminated()) {
+                        Simulation.this.notifyAll();
+                    }
+                }
+            }
+        }
+
+        // removes the events of this scheduler, only the periodic ones if
+        // all is false
+        private List<Runnable> drop(boolean all) {
+            List<Runnable> dropped = new ArrayList<>();
+            synchronized (Simulation.this) {
+                for (Event<?> event : new ArrayList<>(events)) {
+                    if (event.owner == this && (all || event.period != 0)) {
+                        events.remove(event);
+                        pending--;
+                        dropped.add(event);
+                    }
+                }
+                Simulation.this.notifyAll();
+            }
+            return dropped;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay,
+                TimeUnit unit) {
+            return enqueue(new Event<Void>(this, command, 0),
+                    unit.toNanos(delay));
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable,
+                long delay, TimeUnit unit) {
+            return enqueue(new Event<>(this, callable), unit.toNanos(delay));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                long initialDelay, long period, TimeUnit unit) {
+            if (period <= 0) {
+                throw new IllegalArgumentException("Invalid period");
+            }
+            return enqueue(new Event<Void>(this, command, unit.toNanos(period)),
+                    unit.toNanos(initialDelay));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                long initialDelay, long delay, TimeUnit unit) {
+            if (delay <= 0) {
+                throw new IllegalArgumentException("Invalid delay");
+            }
+            return enqueue(new Event<Void>(this, command, -unit.toNanos(delay)),
+                    unit.toNanos(initialDelay));
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (Simulation.this) {
+                shutdown = true;
+            }
+            drop(false);
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            synchronized (Simulation.this) {
+                shutdown = true;
+            }
+            return drop(true);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            synchronized (Simulation.this) {
+                return shutdown;
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (Simulation.this) {
+                return shutdown && pending == 0;
+            }
+        }
+
+        /**
+         * Waits for the events left to be run by the simulation. It returns
+         * immediately if called by the thread running the simulation.
+         */
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (Simulation.this) {
+                long left;
+                while (!isTerminated()) {
+                    if (runner == Thread.currentThread()
+                            || (left = deadline - System.nanoTime()) <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(Simulation.this, left);
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "{pending=" + pending + "}";
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.adapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the policies of an OutboundQueue when it is full, how its packets
+ * are coalesced into batches and how the senders and the threads waiting
+ * for the queue to empty are released.
+ */
+public class OutboundQueueTest {
+
+    private final static long TIMEOUT = 5000;
+
+    private final ExecutorService senders = Executors.newCachedThreadPool();
+    private final List<OutboundQueue> queues = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (OutboundQueue queue : queues) {
+            queue.close();
+        }
+        senders.shutdownNow();
+    }
+
+    @Test
+    public void fromConfReadsTheOptions() {
+        Map<String, String> conf = new HashMap<>();
+        OutboundQueue queue = queue(OutboundQueue.fromConf(conf));
+        assertEquals(OutboundQueue.BLOCK, queue.getPolicy());
+        assertEquals(OutboundQueue.DFLT_CAPACITY, queue.getCapacity());
+        assertEquals(OutboundQueue.DFLT_BATCH, queue.getMaxBatch());
+
+        conf.put("SEND_QUEUE", "16");
+        conf.put("SEND_POLICY", "drop");
+        conf.put("SEND_BATCH", "512");
+        queue = queue(OutboundQueue.fromConf(conf));
+        assertEquals(OutboundQueue.DROP, queue.getPolicy());
+        assertEquals(16, queue.getCapacity());
+        assertEquals(512, queue.getMaxBatch());
+        assertEquals(OutboundQueue.BLOCK, queue(OutboundQueue.fromConf(conf,
+                OutboundQueue.BLOCK)).getPolicy());
+    }
+
+    @Test
+    public void dropPolicyDropsWhenFull() {
+        OutboundQueue queue = queue(new OutboundQueue(4, OutboundQueue.DROP,
+                1024, 0));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(frame(i, 1)));
+        }
+        assertFalse(queue.offer(frame(4, 1)));
+        assertEquals(4, queue.size());
+        assertEquals(4, queue.getEnqueued());
+        assertEquals(1, queue.getDropped());
+        assertEquals(0, queue.getBlocked());
+
+        byte[][] batch = new byte[8][];
+        assertEquals(4, queue.drain(batch, null));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, batch[i][0]);
+        }
+        assertTrue(queue.offer(frame(5, 1)));
+    }
+
+    @Test(timeout = 60000)
+    public void blockPolicyWaitsForSpace() throws Exception {
+        final OutboundQueue queue = queue(new OutboundQueue(2,
+                OutboundQueue.BLOCK, 1024, 0));
+        assertTrue(queue.offer(frame(0, 1)));
+        assertTrue(queue.offer(frame(1, 1), "target"));
+        Future<Boolean> sent = offer(queue, frame(2, 1));
+        awaitBlocked(queue, 1);
+        assertFalse(sent.isDone());
+
+        byte[][] batch = new byte[1][];
+        Object[] targets = new Object[1];
+        assertEquals(1, queue.drain(batch, targets));
+        assertEquals(0, batch[0][0]);
+        assertTrue(sent.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.drain(batch, targets));
+        assertEquals(1, batch[0][0]);
+        assertSame("target", targets[0]);
+        assertEquals(1, queue.drain(batch, targets));
+        assertEquals(2, batch[0][0]);
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void drainStopsAtMaxBatch() {
+        OutboundQueue queue = queue(new OutboundQueue(8, OutboundQueue.DROP,
+                10, 0));
+        queue.offer(frame(0, 4));
+        queue.offer(frame(1, 4));
+        queue.offer(frame(2, 4));
+        queue.offer(frame(3, 20));
+        byte[][] batch = new byte[8][];
+        assertEquals(2, queue.drain(batch, null));
+        assertEquals(1, queue.drain(batch, null));
+        // the first packet is taken even if it exceeds the batch
+        assertEquals(1, queue.drain(batch, null));
+        assertEquals(3, batch[0][0]);
+        assertEquals(0, queue.drain(batch, null));
+    }
+
+    @Test(timeout = 60000)
+    public void lingerCoalescesThePackets() throws InterruptedException {
+        Recorder sink = new Recorder();
+        OutboundQueue queue = queue(new OutboundQueue(16, OutboundQueue.BLOCK,
+                1024, 500));
+        queue.start("lingering", sink);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame(i, 4));
+        }
+        assertTrue(queue.awaitEmpty(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new int[]{5}, sink.batches());
+        assertEquals(1, queue.getWrites());
+        assertEquals(5, queue.getWritten());
+        assertEquals(20, queue.getBytes());
+    }
+
+    @Test(timeout = 60000)
+    public void lingerEndsWhenTheBatchIsFull() throws InterruptedException {
+        Recorder sink = new Recorder();
+        OutboundQueue queue = queue(new OutboundQueue(16, OutboundQueue.BLOCK,
+                10, TimeUnit.MINUTES.toMillis(10)));
+        queue.start("full", sink);
+        queue.offer(frame(0, 4));
+        queue.offer(frame(1, 4));
+        queue.offer(frame(2, 4));
+        // the third packet does not fit: the first two are written at once
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (queue.getWrites() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertArrayEquals(new int[]{2}, sink.batches());
+        // while the third one waits for more packets
+        assertFalse(queue.awaitEmpty(100, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new int[]{2}, sink.batches());
+    }
+
+    @Test(timeout = 60000)
+    public void awaitEmptyWaitsForTheWrite() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Recorder sink = new Recorder() {
+            @Override
+            public void write(byte[][] frames, Object[] targets, int count) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(frames, targets, count);
+            }
+        };
+        OutboundQueue queue = queue(new OutboundQueue(16, OutboundQueue.BLOCK,
+                1024, 0));
+        queue.start("slow", sink);
+        assertTrue(queue.awaitEmpty(0, TimeUnit.MILLISECONDS));
+        queue.offer(frame(0, 4));
+        // taken from the queue but not written yet
+        assertFalse(queue.awaitEmpty(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(queue.awaitEmpty(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.getWritten());
+        assertArrayEquals(new int[]{1}, sink.batches());
+    }
+
+    @Test(timeout = 60000)
+    public void closeReleasesBlockedSenders() throws Exception {
+        OutboundQueue queue = queue(new OutboundQueue(1, OutboundQueue.BLOCK,
+                1024, 0));
+        assertTrue(queue.offer(frame(0, 1)));
+        Future<Boolean> first = offer(queue, frame(1, 1));
+        Future<Boolean> second = offer(queue, frame(2, 1));
+        awaitBlocked(queue, 2);
+
+        queue.close();
+        assertFalse(first.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(second.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isClosed());
+        assertEquals(0, queue.size());
+        // the packet queued is discarded too
+        assertEquals(3, queue.getDropped());
+        assertFalse(queue.offer(frame(3, 1)));
+        assertEquals(4, queue.getDropped());
+    }
+
+    private OutboundQueue queue(OutboundQueue queue) {
+        queues.add(queue);
+        return queue;
+    }
+
+    private Future<Boolean> offer(final OutboundQueue queue,
+            final byte[] frame) {
+        return senders.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return queue.offer(frame);
+            }
+        });
+    }
+
+    private static void awaitBlocked(OutboundQueue queue, long senders)
+            throws InterruptedException {
+        while (queue.getBlocked() < senders) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static byte[] frame(int id, int length) {
+        byte[] frame = new byte[length];
+        frame[0] = (byte) id;
+        return frame;
+    }
+
+    /**
+     * Records the size of the batches written, checking that the packets
+     * arrive in order.
+     */
+    private static class Recorder implements OutboundQueue.Sink {
+
+        private final List<Integer> batches = new ArrayList<>();
+        private int next;
+
+        @Override
+        public synchronized void write(byte[][] frames, Object[] targets,
+                int count) {
+            for (int i = 0; i < count; i++) {
+                assertEquals(next++, frames[i][0]);
+            }
+            batches.add(count);
+        }
+
+        synchronized int[] batches() {
+            int[] array = new int[batches.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = batches.get(i);
+            }
+            return array;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.packet.PacketView;
+import static com.github.sdnwiselab.sdnwise.packet.NetworkPacket.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dispatches the messages of many sources over several workers and checks
+ * that the messages of each source are handled in order by a single worker,
+ * and that the pending and dropped messages are counted.
+ */
+public class PacketDispatcherTest {
+
+    private final static long TIMEOUT = 10000;
+    // the length of the header, followed by the sequence number
+    private final static int HEADER = 10;
+    private final static int SOURCES = 50;
+    private final static int MESSAGES = 200;
+    private final static byte[] TYPES = {
+        SDN_WISE_REPORT, SDN_WISE_CONFIG, SDN_WISE_DATA};
+
+    private PacketDispatcher dispatcher;
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void keepsTheOrderOfEachSource() throws InterruptedException {
+        dispatcher = new PacketDispatcher(4, 16, PacketDispatcher.BLOCK);
+        final Map<Integer, Integer> last = new HashMap<>();
+        final Map<Integer, String> workers = new HashMap<>();
+        final AtomicInteger errors = new AtomicInteger();
+        dispatcher.start("test", new PacketDispatcher.Handler() {
+            @Override
+            public void handle(PacketView packet, byte[] data) {
+                int stream = stream(packet.getType(), packet.getNetId(),
+                        packet.getSrcValue());
+                String worker = Thread.currentThread().getName();
+                synchronized (last) {
+                    Integer previous = last.put(stream, seq(data));
+                    int expected = previous == null ? 0 : previous + 1;
+                    String first = workers.put(stream, worker);
+                    if (seq(data) != expected
+                            || (first != null && !first.equals(worker))) {
+                        errors.incrementAndGet();
+                    }
+                }
+                Thread.yield();
+            }
+        });
+
+        // the messages of the streams are interleaved at random
+        Random random = new Random(1);
+        int streams = SOURCES * TYPES.length;
+        int[] next = new int[streams];
+        int total = streams * MESSAGES;
+        for (int n = 0; n < total; n++) {
+            int s = random.nextInt(streams);
+            while (next[s] == MESSAGES) {
+                s = (s + 1) % streams;
+            }
+            byte[] data = message(TYPES[s % TYPES.length], 1 + s / TYPES.length,
+                    s, next[s]++);
+            if (random.nextBoolean()) {
+                assertTrue(dispatcher.dispatch(data));
+            } else {
+                assertTrue(dispatcher.dispatch(ByteBuffer.wrap(data)));
+            }
+        }
+
+        assertTrue(dispatcher.awaitEmpty(TIMEOUT));
+        assertEquals(0, dispatcher.getPending());
+        assertEquals(total, dispatcher.getDispatched());
+        assertEquals(0, dispatcher.getDropped());
+        assertArrayEquals(new int[4], dispatcher.getQueueSizes());
+        assertEquals(0, errors.get());
+        assertEquals(streams, last.size());
+        for (int seq : last.values()) {
+            assertEquals(MESSAGES - 1, seq);
+        }
+        // the streams are spread over every worker
+        assertEquals(4, new HashSet<>(workers.values()).size());
+    }
+
+    @Test(timeout = 60000)
+    public void dropPolicyCountsTheDropped() throws InterruptedException {
+        dispatcher = new PacketDispatcher(1, 2, PacketDispatcher.DROP);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        dispatcher.start("test", new PacketDispatcher.Handler() {
+            @Override
+            public void handle(PacketView packet, byte[] data) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                handled.incrementAndGet();
+            }
+        });
+        assertTrue(dispatcher.awaitEmpty(0));
+
+        assertTrue(dispatcher.dispatch(message(SDN_WISE_DATA, 1, 1, 0)));
+        // the worker is blocked handling the first message
+        while (dispatcher.getQueueSizes()[0] > 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(dispatcher.dispatch(message(SDN_WISE_DATA, 1, 1, 1)));
+        assertTrue(dispatcher.dispatch(ByteBuffer.wrap(
+                message(SDN_WISE_DATA, 1, 1, 2))));
+        assertFalse(dispatcher.dispatch(message(SDN_WISE_DATA, 1, 1, 3)));
+        assertFalse(dispatcher.dispatch(ByteBuffer.wrap(
+                message(SDN_WISE_DATA, 1, 1, 4))));
+        assertEquals(3, dispatcher.getPending());
+        assertEquals(3, dispatcher.getDispatched());
+        assertEquals(2, dispatcher.getDropped());
+        assertFalse(dispatcher.awaitEmpty(50));
+
+        release.countDown();
+        assertTrue(dispatcher.awaitEmpty(TIMEOUT));
+        assertEquals(0, dispatcher.getPending());
+        assertEquals(3, handled.get());
+    }
+
+    @Test(timeout = 60000)
+    public void blockPolicyWaitsForTheWorker() throws InterruptedException {
+        dispatcher = new PacketDispatcher(1, 1, PacketDispatcher.BLOCK);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.start("test", new PacketDispatcher.Handler() {
+            @Override
+            public void handle(PacketView packet, byte[] data) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(dispatcher.dispatch(message(SDN_WISE_DATA, 1, 1, 0)));
+        while (dispatcher.getQueueSizes()[0] > 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(dispatcher.dispatch(message(SDN_WISE_DATA, 1, 1, 1)));
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.dispatch(message(SDN_WISE_DATA, 1, 1, 2));
+            }
+        });
+        sender.start();
+        while (dispatcher.getBlocked() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, dispatcher.getPending());
+        assertFalse(dispatcher.awaitEmpty(50));
+
+        release.countDown();
+        sender.join(TIMEOUT);
+        assertTrue(dispatcher.awaitEmpty(TIMEOUT));
+        assertEquals(3, dispatcher.getDispatched());
+        assertEquals(0, dispatcher.getDropped());
+    }
+
+    @Test(timeout = 60000)
+    public void closeDiscardsTheQueuedMessages() throws InterruptedException {
+        dispatcher = new PacketDispatcher(2, 8, PacketDispatcher.BLOCK);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(dispatcher.dispatch(message(SDN_WISE_DATA, 1, i, 0)));
+        }
+        assertEquals(5, dispatcher.getPending());
+        dispatcher.close();
+        assertEquals(0, dispatcher.getPending());
+        assertTrue(dispatcher.awaitEmpty(0));
+    }
+
+    private static int stream(int type, int netId, int src) {
+        return (type << 24) | (netId << 16) | src;
+    }
+
+    private static int seq(byte[] data) {
+        return ByteBuffer.wrap(data, HEADER, 4).getInt();
+    }
+
+    private static byte[] message(byte type, int netId, int src, int seq) {
+        byte[] data = new byte[HEADER + 4];
+        data[SDN_WISE_LEN] = (byte) data.length;
+        data[SDN_WISE_NET_ID] = (byte) netId;
+        data[SDN_WISE_SRC_H] = (byte) (src >> 8);
+        data[SDN_WISE_SRC_L] = (byte) src;
+        data[SDN_WISE_TYPE] = type;
+        ByteBuffer.wrap(data, HEADER, 4).putInt(seq);
+        return data;
+    }
+}
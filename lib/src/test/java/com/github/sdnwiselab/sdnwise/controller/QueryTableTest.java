@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.util.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the keys of the QueryTable and matches its answers against a model
+ * of chained queues, with few keys sharing long chains and many keys sharing
+ * the slots of the tables.
+ */
+public class QueryTableTest {
+
+    // long enough for no query to expire during a test
+    private final static long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final QueryTable table = new QueryTable(Clock.SYSTEM);
+    private final Map<Long, ArrayDeque<QueryFuture>> model = new HashMap<>();
+    private final List<QueryFuture> pending = new ArrayList<>();
+    private final Random random = new Random(1);
+
+    @After
+    public void tearDown() {
+        table.close();
+    }
+
+    @Test
+    public void keysPackEveryField() {
+        assertEquals(0xAB_1234_56_7890L, QueryTable.key(0xAB, 0x1234, 0x56,
+                0x7890));
+        assertEquals(0xFF_FFFF_FF_FFFFL, QueryTable.key(-1, -1, -1, -1));
+        assertEquals(QueryTable.key(1, 2, 3, 4),
+                QueryTable.key(0x101, 0x10002, 0x103, 0x10004));
+
+        Set<Long> keys = new HashSet<>();
+        int fields = 0;
+        for (int netId : new int[]{0, 1, 0x80, 0xFF}) {
+            for (int address : new int[]{0, 1, 0xFF, 0x100, 0x8000, 0xFFFF}) {
+                for (int id : new int[]{0, 1, 0x80, 0xFF}) {
+                    for (int index : new int[]{0, 1, 0xFF, 0x8000, 0xFFFF}) {
+                        keys.add(QueryTable.key(netId, address, id, index));
+                        fields++;
+                    }
+                }
+            }
+        }
+        assertEquals(fields, keys.size());
+    }
+
+    @Test
+    public void equalQueriesAreAnsweredOldestFirst() {
+        long key = QueryTable.key(1, 2, 3, 0);
+        QueryFuture first = table.expect(key, NEVER);
+        QueryFuture second = table.expect(key, NEVER);
+        QueryFuture third = table.expect(key, NEVER);
+        table.remove(second);
+        assertEquals(2, table.size());
+        assertSame(first, table.poll(key));
+        assertSame(third, table.poll(key));
+        assertNull(table.poll(key));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void longChainsMatchTheModel() {
+        run(16, 20000);
+    }
+
+    @Test
+    public void collidingKeysMatchTheModel() {
+        run(5000, 100000);
+    }
+
+    @Test
+    public void expiredQueriesFail() throws InterruptedException {
+        QueryFuture query = table.expect(QueryTable.key(1, 2, 3, 0), 20);
+        try {
+            query.get(5, TimeUnit.SECONDS);
+            fail("The query has been answered");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        } catch (TimeoutException ex) {
+            fail("The query has not expired");
+        }
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Runs random expect, poll and remove operations on the table and on the
+     * model.
+     *
+     * @param nodes the number of distinct addresses.
+     * @param ops the number of operations.
+     */
+    private void run(int nodes, int ops) {
+        for (int op = 0; op < ops; op++) {
+            long key = QueryTable.key(1, random.nextInt(nodes), 3,
+                    random.nextInt(2));
+            int action = random.nextInt(5);
+            if (action < 2) {
+                QueryFuture query = table.expect(key, NEVER);
+                ArrayDeque<QueryFuture> chain = model.get(key);
+                if (chain == null) {
+                    chain = new ArrayDeque<>();
+                    model.put(key, chain);
+                }
+                chain.addLast(query);
+                pending.add(query);
+            } else if (action < 4 || pending.isEmpty()) {
+                ArrayDeque<QueryFuture> chain = model.get(key);
+                QueryFuture expected = chain == null ? null : chain.pollFirst();
+                assertSame(expected, table.poll(key));
+                if (expected != null) {
+                    pending.remove(expected);
+                }
+            } else {
+                QueryFuture query = pending.remove(
+                        random.nextInt(pending.size()));
+                table.remove(query);
+                model.get(query.key).remove(query);
+            }
+        }
+        assertEquals(pending.size(), table.size());
+        for (Map.Entry<Long, ArrayDeque<QueryFuture>> e : model.entrySet()) {
+            for (QueryFuture query : e.getValue()) {
+                assertSame(query, table.poll(e.getKey()));
+            }
+            assertNull(table.poll(e.getKey()));
+        }
+        assertEquals(0, table.size());
+    }
+}
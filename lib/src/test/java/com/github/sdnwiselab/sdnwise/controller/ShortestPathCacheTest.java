@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.controller;
+
+import com.github.sdnwiselab.sdnwise.metrics.Metrics;
+import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import com.github.sdnwiselab.sdnwise.topology.NetworkGraph;
+import com.github.sdnwiselab.sdnwise.topology.TopologySnapshot;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import com.github.sdnwiselab.sdnwise.util.Simulation;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Changes the topology of a NetworkGraph with random reports and expiries,
+ * and checks that the trees repaired by the ShortestPathCache are shortest
+ * path trees of the new snapshot, as the ones computed from scratch.
+ */
+public class ShortestPathCacheTest {
+
+    private final static int NODES = 60;
+    private final static int SOURCES = 6;
+    // the time to live of the nodes, in seconds
+    private final static int TIMEOUT = 10;
+
+    private final Simulation simulation = new Simulation();
+    private final Random random = new Random(1);
+    private final SnapshotDijkstra dijkstra = new SnapshotDijkstra();
+    private final boolean[] silent = new boolean[NODES];
+    private NetworkGraph networkGraph;
+    private ShortestPathCache cache;
+
+    @Before
+    public void setUp() {
+        networkGraph = new NetworkGraph(TIMEOUT, 3, 0, simulation);
+        cache = new ShortestPathCache(SOURCES, dijkstra);
+        for (int src = 0; src < NODES; src++) {
+            networkGraph.updateMap(report(src, true));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        networkGraph.close();
+    }
+
+    @Test
+    public void repairedTreesAreShortestPathTrees() {
+        networkGraph.getTopologyBus().subscribe(cache);
+        long repairs = counter("controller.routing.cache.repairs");
+        long misses = counter("controller.routing.cache.misses");
+        for (int round = 0; round < 500; round++) {
+            change();
+            checkTrees();
+        }
+        repairs = counter("controller.routing.cache.repairs") - repairs;
+        misses = counter("controller.routing.cache.misses") - misses;
+        // the trees are computed again only when the changes are many
+        assertTrue(repairs + " repairs, " + misses + " misses",
+                repairs > 2 * misses);
+    }
+
+    @Test
+    public void treesAreComputedWithoutTheDeltas() {
+        long repairs = counter("controller.routing.cache.repairs");
+        for (int round = 0; round < 100; round++) {
+            change();
+            checkTrees();
+        }
+        assertEquals(repairs, counter("controller.routing.cache.repairs"));
+    }
+
+    @Test
+    public void treesAreKeptUntilTheTopologyChanges() {
+        networkGraph.getTopologyBus().subscribe(cache);
+        TopologySnapshot snapshot = networkGraph.getSnapshot();
+        ShortestPathTree tree = cache.getTree(snapshot, 0);
+        assertSame(tree, cache.getTree(networkGraph.getSnapshot(), 0));
+        networkGraph.updateMap(report(snapshot.getAddress(0).intValue(),
+                false));
+        TopologySnapshot next = networkGraph.getSnapshot();
+        if (next != snapshot) {
+            ShortestPathTree repaired = cache.getTree(next,
+                    next.indexOf(1, snapshot.getAddress(0)));
+            assertSame(next, repaired.getSnapshot());
+            assertSame(snapshot, tree.getSnapshot());
+        }
+    }
+
+    /**
+     * Refreshes the nodes heard, changes the links of a few of them, makes
+     * some node silent or heard again and lets the silent nodes expire.
+     */
+    private void change() {
+        for (int src = 0; src < NODES; src++) {
+            if (!silent[src]) {
+                networkGraph.updateMap(report(src, true));
+            }
+        }
+        int reports = 1 + random.nextInt(3);
+        for (int i = 0; i < reports; i++) {
+            int src = random.nextInt(NODES);
+            if (!silent[src]) {
+                networkGraph.updateMap(report(src, false));
+            }
+        }
+        if (random.nextInt(10) == 0) {
+            int node = random.nextInt(NODES);
+            silent[node] = !silent[node];
+        }
+        simulation.run(random.nextInt(2000), TimeUnit.MILLISECONDS);
+    }
+
+    private void checkTrees() {
+        TopologySnapshot snapshot = networkGraph.getSnapshot();
+        for (int s = 0; s < SOURCES; s++) {
+            int source = snapshot.indexOf(1, new NodeAddress(s * 7));
+            if (source < 0) {
+                continue;
+            }
+            ShortestPathTree tree = cache.getTree(snapshot, source);
+            ShortestPathTree expected = dijkstra.compute(snapshot, source);
+            assertSame(snapshot, tree.getSnapshot());
+            assertEquals(source, tree.getSource());
+            assertEquals(source, tree.getParent(source));
+            for (int v = 0; v < snapshot.size(); v++) {
+                assertEquals(expected.getDistance(v), tree.getDistance(v));
+                int p = tree.getParent(v);
+                if (v == source) {
+                    continue;
+                }
+                if (expected.getDistance(v) == ShortestPathTree.UNREACHABLE) {
+                    assertEquals(-1, p);
+                } else {
+                    assertEquals(tree.getDistance(v),
+                            tree.getDistance(p) + length(snapshot, p, v));
+                }
+            }
+        }
+    }
+
+    private static int length(TopologySnapshot snapshot, int u, int v) {
+        for (int j = 0; j < snapshot.getOutDegree(u); j++) {
+            if (snapshot.getOutNeighbour(u, j) == v) {
+                return snapshot.getOutLength(u, j);
+            }
+        }
+        throw new AssertionError("No link " + u + "-" + v);
+    }
+
+    private static long counter(String name) {
+        return Metrics.counter(name).get();
+    }
+
+    /**
+     * Returns a report of a node: a stable report has the usual neighbours
+     * of the node with their usual RSSI, give or take less than the RSSI
+     * resolution, an unstable one either changes their RSSI or has random
+     * neighbours.
+     */
+    private ReportPacket report(int src, boolean stable) {
+        ReportPacket p = new ReportPacket();
+        p.setNetId((byte) 1);
+        p.setSrc(new NodeAddress(src));
+        p.setDst(new NodeAddress(0));
+        p.setNxhop(new NodeAddress(0));
+        p.setBatt((byte) random.nextInt(256));
+        Random neighbours = new Random(src);
+        boolean moved = !stable && random.nextBoolean();
+        LinkedHashSet<Integer> used = new LinkedHashSet<>();
+        int count = moved ? random.nextInt(5) : 3;
+        for (int i = 0; i < count; i++) {
+            int dst = moved ? random.nextInt(NODES) : neighbours.nextInt(NODES);
+            if (dst != src) {
+                used.add(dst);
+            }
+        }
+        p.setNeigh(used.size());
+        int i = 0;
+        for (int dst : used) {
+            int rssi = 150 + new Random(src * NODES + dst).nextInt(60);
+            rssi += stable ? random.nextInt(3) : random.nextInt(40) - 20;
+            p.setNeighbourAddressAt(new NodeAddress(dst), i);
+            p.setNeighbourWeightAt((byte) rssi, i);
+            i++;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an EventRing keeps its events in order and loses none of them
+ * while its positions wrap around many times, alone and under contention.
+ */
+public class EventRingTest {
+
+    private final static int PRODUCERS = 4;
+    private final static int CONSUMERS = 3;
+    private final static int EVENTS = 100000;
+
+    @Test
+    public void capacityIsAPowerOfTwo() {
+        assertEquals(1, new EventRing<Integer>(1).getCapacity());
+        assertEquals(2, new EventRing<Integer>(2).getCapacity());
+        assertEquals(4, new EventRing<Integer>(3).getCapacity());
+        assertEquals(8, new EventRing<Integer>(8).getCapacity());
+        assertEquals(16, new EventRing<Integer>(9).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new EventRing<Integer>(0);
+    }
+
+    @Test
+    public void wrapsAroundInOrder() {
+        EventRing<Integer> ring = new EventRing<>(4);
+        int next = 0;
+        int expected = 0;
+        for (int lap = 0; lap < 1000; lap++) {
+            while (ring.offer(next)) {
+                next++;
+            }
+            assertEquals(4, ring.size());
+            int polled = 1 + lap % 4;
+            for (int i = 0; i < polled; i++) {
+                assertEquals(Integer.valueOf(expected++), ring.poll());
+            }
+            assertEquals(4 - polled, ring.size());
+        }
+        while (!ring.isEmpty()) {
+            assertEquals(Integer.valueOf(expected++), ring.poll());
+        }
+        assertEquals(next, expected);
+        assertNull(ring.poll());
+    }
+
+    @Test(timeout = 60000)
+    public void losesNothingUnderContention() throws InterruptedException {
+        final EventRing<Long> ring = new EventRing<>(8);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicReference<String> error = new AtomicReference<>();
+        final int[][] seen = new int[CONSUMERS][PRODUCERS];
+        final boolean[][] got = new boolean[PRODUCERS][EVENTS];
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < PRODUCERS; p++) {
+            final long producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int i = 0; i < EVENTS; i++) {
+                        while (!ring.offer(producer << 32 | i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < CONSUMERS; c++) {
+            final int[] last = seen[c];
+            Arrays.fill(last, -1);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    while (received.get() < PRODUCERS * EVENTS) {
+                        Long event = ring.poll();
+                        if (event == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        int producer = (int) (event >>> 32);
+                        int i = (int) (long) event;
+                        if (i <= last[producer]) {
+                            error.compareAndSet(null, "Event " + i + " of "
+                                    + producer + " after " + last[producer]);
+                        }
+                        last[producer] = i;
+                        synchronized (got) {
+                            if (got[producer][i]) {
+                                error.compareAndSet(null, "Event " + i
+                                        + " of " + producer + " twice");
+                            }
+                            got[producer][i] = true;
+                        }
+                        received.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread th : threads) {
+            th.start();
+        }
+        start.countDown();
+        for (Thread th : threads) {
+            th.join();
+        }
+
+        assertNull(error.get(), error.get());
+        assertEquals(PRODUCERS * EVENTS, received.get());
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.node;
+
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableActionDrop;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableActionForward;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableEntry;
+import com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_BIGGER;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL_OR_BIGGER;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_EQUAL_OR_LESS;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_LESS;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_NOT_EQUAL;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_PACKET;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_0;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_1;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_SIZE_2;
+import static com.github.sdnwiselab.sdnwise.flowtable.FlowTableWindow.SDN_WISE_STATUS;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_FLOW_MATCH_COMPILED;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_FLOW_MATCH_INTERPRETED;
+import static com.github.sdnwiselab.sdnwise.node.Constants.SDN_WISE_RLS_MAX;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the CompiledFlowTable finds the same rules as the interpreter
+ * of Node, on random flow tables and packets.
+ */
+public class CompiledFlowTableTest {
+
+    private final static int TABLES = 300;
+    private final static int PACKETS = 200;
+    private final static int PACKET_LEN = 24;
+    // the values are drawn from a small range so that the windows match
+    private final static int VALUES = 4;
+
+    private final static int[] OPERATORS = {SDN_WISE_EQUAL, SDN_WISE_EQUAL,
+        SDN_WISE_EQUAL, SDN_WISE_NOT_EQUAL, SDN_WISE_BIGGER, SDN_WISE_LESS,
+        SDN_WISE_EQUAL_OR_BIGGER, SDN_WISE_EQUAL_OR_LESS, 56};
+    private final static int[] SIZES = {SDN_WISE_SIZE_0, SDN_WISE_SIZE_1,
+        SDN_WISE_SIZE_1, SDN_WISE_SIZE_2, SDN_WISE_SIZE_2, 6};
+
+    private Emulator emulator;
+    private SensorNode node;
+    private final Random random = new Random(1);
+
+    @Before
+    public void setUp() {
+        emulator = new Emulator(1, 1);
+        node = emulator.add(new SensorNode((byte) 1, new NodeAddress(2), 0,
+                null, false));
+        node.verbose = false;
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        emulator.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void matchesLikeTheInterpreter() {
+        for (int t = 0; t < TABLES; t++) {
+            fillFlowTable();
+            for (int k = 0; k < PACKETS; k++) {
+                int[] packet = randomValues(PACKET_LEN);
+                for (int i = 0; i < 8; i++) {
+                    node.statusRegister[i] = random.nextInt(VALUES);
+                }
+                assertEquals("table " + t + ", packet "
+                        + Arrays.toString(packet),
+                        interpreted(packet), compiled(packet));
+            }
+        }
+    }
+
+    @Test
+    public void findsRulesLikeTheInterpreter() {
+        for (int t = 0; t < TABLES; t++) {
+            fillFlowTable();
+            for (int k = 0; k < PACKETS; k++) {
+                FlowTableEntry rule = random.nextBoolean()
+                        ? copy(node.flowTable.get(random.nextInt(
+                                SDN_WISE_RLS_MAX)))
+                        : randomEntry();
+                node.setFlowMatchMode(SDN_WISE_FLOW_MATCH_INTERPRETED);
+                int expected = node.searchRule(rule);
+                node.setFlowMatchMode(SDN_WISE_FLOW_MATCH_COMPILED);
+                assertEquals("table " + t + ", rule " + rule, expected,
+                        node.searchRule(rule));
+            }
+        }
+    }
+
+    /**
+     * Fills the flow table with random rules, some of them duplicated, and
+     * moves the first free position so that the scan order changes.
+     */
+    private void fillFlowTable() {
+        for (int i = 1; i < SDN_WISE_RLS_MAX; i++) {
+            node.flowTable.set(i, random.nextInt(5) == 0
+                    ? copy(node.flowTable.get(1 + random.nextInt(i)))
+                    : randomEntry());
+        }
+        node.flow_table_free_pos = 1 + random.nextInt(SDN_WISE_RLS_MAX - 1);
+        node.compileFlowTable();
+    }
+
+    private FlowTableEntry randomEntry() {
+        FlowTableEntry entry = new FlowTableEntry();
+        for (FlowTableWindow w : entry.getWindows()) {
+            boolean packet = random.nextInt(4) != 0;
+            w.setOperator(OPERATORS[random.nextInt(OPERATORS.length)])
+                    .setSize(SIZES[random.nextInt(SIZES.length)])
+                    .setLocation(packet ? SDN_WISE_PACKET : SDN_WISE_STATUS)
+                    .setPos(random.nextInt(packet ? PACKET_LEN - 1 : 7))
+                    .setValueHigh(random.nextInt(VALUES))
+                    .setValueLow(random.nextInt(VALUES));
+        }
+        if (random.nextBoolean()) {
+            entry.setAction(new FlowTableActionForward()
+                    .setNextHop(new NodeAddress(random.nextInt(VALUES))));
+        } else {
+            entry.setAction(new FlowTableActionDrop());
+        }
+        entry.getAction().setMultimatch(random.nextInt(3) == 0);
+        return entry;
+    }
+
+    private static FlowTableEntry copy(FlowTableEntry entry) {
+        return new FlowTableEntry(entry.toByteArray());
+    }
+
+    private int[] randomValues(int length) {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = random.nextInt(VALUES);
+        }
+        return values;
+    }
+
+    // the scan positions of the matching rules, as runInterpretedFlowMatch
+    private List<Integer> interpreted(int[] packet) {
+        List<Integer> found = new ArrayList<>();
+        for (int j = 0; j < SDN_WISE_RLS_MAX; j++) {
+            FlowTableEntry entry = node.flowTable.get(
+                    node.getActualFlowIndex(j));
+            if (node.matchRule(entry, packet) == 1) {
+                found.add(j);
+                if (!entry.getAction().isMultimatch()) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    // the scan positions of the matching rules, as runCompiledFlowMatch
+    private List<Integer> compiled(int[] packet) {
+        List<Integer> found = new ArrayList<>();
+        int j = node.compiledFlowTable.next(0, packet, node.statusRegister);
+        while (j != -1) {
+            found.add(j);
+            if (!node.flowTable.get(node.getActualFlowIndex(j)).getAction()
+                    .isMultimatch()) {
+                break;
+            }
+            j = node.compiledFlowTable.next(j + 1, packet,
+                    node.statusRegister);
+        }
+        return found;
+    }
+}
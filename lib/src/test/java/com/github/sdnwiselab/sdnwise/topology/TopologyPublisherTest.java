@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import com.github.nkzawa.emitter.Emitter;
+import com.github.sdnwiselab.sdnwise.packet.ReportPacket;
+import com.github.sdnwiselab.sdnwise.util.NodeAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the frames of a TopologyPublisher as a client would and checks
+ * that they rebuild the topology of the NetworkGraph.
+ */
+public class TopologyPublisherTest {
+
+    private final static int NODES = 50;
+    private final static int HISTORY = 64;
+    private final static long TIMEOUT = 5000;
+
+    private NetworkGraph networkGraph;
+    private TopologyPublisher publisher;
+    private final BlockingQueue<byte[]> emitted = new LinkedBlockingQueue<>();
+    private final List<byte[]> frames = new ArrayList<>();
+    private final Random random = new Random(1);
+
+    @Before
+    public void setUp() {
+        final TopologyPublisher[] pub = new TopologyPublisher[1];
+        networkGraph = new NetworkGraph(3600, 3) {
+            @Override
+            void nodeSeen(int slot) {
+                pub[0].nodeSeen(key(slot));
+            }
+        };
+        Emitter socket = new Emitter() {
+            @Override
+            public Emitter emit(String event, Object... args) {
+                assertEquals(TopologyPublisher.EVENT, event);
+                emitted.add((byte[]) args[0]);
+                return this;
+            }
+        };
+        publisher = new TopologyPublisher(networkGraph, socket, 1000);
+        pub[0] = publisher;
+        networkGraph.getTopologyBus().subscribe(publisher);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.close();
+    }
+
+    @Test
+    public void deltasRebuildTheTopology() throws InterruptedException {
+        Client client = new Client();
+        for (int i = 0; i < 2000; i++) {
+            networkGraph.updateMap(report(i % 4 != 0));
+        }
+        receiveUntilConsistent(client);
+        for (int i = 0; i < 200; i++) {
+            networkGraph.updateMap(report(false));
+        }
+        receiveUntilConsistent(client);
+    }
+
+    @Test
+    public void resumeResendsTheFramesInHistory()
+            throws InterruptedException {
+        Client client = new Client();
+        while (frames.size() < 10) {
+            networkGraph.updateMap(report(false));
+            Thread.sleep(2);
+            drain(client);
+        }
+        receiveUntilConsistent(client);
+        int last = frames.size();
+        int from = last - 5;
+
+        publisher.resume((long) from);
+        publisher.resume();
+        for (int i = from; i < last; i++) {
+            byte[] frame = emitted.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(frame);
+            assertArrayEquals(frames.get(i), frame);
+        }
+        byte[] snapshot = emitted.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(snapshot);
+        assertEquals(TopologyPublisher.SNAPSHOT, snapshot[0]);
+        assertEquals(last, ByteBuffer.wrap(snapshot, 1, 8).getLong());
+    }
+
+    @Test
+    public void resumeFallsBackToASnapshot() throws InterruptedException {
+        Client client = new Client();
+        while (frames.size() <= HISTORY + 1) {
+            networkGraph.updateMap(report(false));
+            Thread.sleep(2);
+            drain(client);
+        }
+        receiveUntilConsistent(client);
+
+        Client late = new Client();
+        late.seq = 0;
+        publisher.resume(0L);
+        byte[] frame = emitted.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(frame);
+        assertEquals(TopologyPublisher.SNAPSHOT, frame[0]);
+        late.apply(frame);
+        assertEquals(frames.size(), late.seq);
+        assertConsistent(late);
+
+        int next = frames.size();
+        networkGraph.updateMap(report(false));
+        receiveUntilConsistent(client);
+        for (byte[] delta : frames.subList(next, frames.size())) {
+            late.apply(delta);
+        }
+        assertConsistent(late);
+    }
+
+    private void drain(Client client) {
+        byte[] frame;
+        while ((frame = emitted.poll()) != null) {
+            frames.add(frame);
+            client.apply(frame);
+        }
+    }
+
+    private void receiveUntilConsistent(Client client)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!client.matches(networkGraph.getSnapshot())) {
+            assertTrue("The frames do not rebuild the topology",
+                    System.currentTimeMillis() < deadline);
+            byte[] frame = emitted.poll(10, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                frames.add(frame);
+                client.apply(frame);
+            }
+        }
+        assertEquals(frames.size(), client.seq);
+    }
+
+    private void assertConsistent(Client client) {
+        TopologySnapshot snapshot = networkGraph.getSnapshot();
+        assertEquals(nodes(snapshot), client.nodes);
+        assertEquals(links(snapshot), client.links);
+    }
+
+    /**
+     * Builds the report of a random node. A stable report lists the same
+     * neighbours of the node with about the same RSSI, the others change
+     * the links of the node.
+     */
+    private ReportPacket report(boolean stable) {
+        ReportPacket p = new ReportPacket();
+        int src = random.nextInt(NODES);
+        p.setNetId((byte) 1);
+        p.setSrc(new NodeAddress(src));
+        p.setDst(new NodeAddress(0));
+        p.setNxhop(new NodeAddress(0));
+        p.setBatt((byte) random.nextInt(256));
+        Random neighbours = new Random(src);
+        LinkedHashSet<Integer> used = new LinkedHashSet<>();
+        int count = stable ? 3 : random.nextInt(6);
+        for (int i = 0; i < count; i++) {
+            int dst = stable ? neighbours.nextInt(NODES)
+                    : random.nextInt(NODES);
+            if (dst != src) {
+                used.add(dst);
+            }
+        }
+        p.setNeigh(used.size());
+        int i = 0;
+        for (int dst : used) {
+            p.setNeighbourAddressAt(new NodeAddress(dst), i);
+            p.setNeighbourWeightAt((byte) (stable ? 200 + random.nextInt(3)
+                    : 100 + random.nextInt(150)), i);
+            i++;
+        }
+        return p;
+    }
+
+    private static Map<Integer, String> nodes(TopologySnapshot snapshot) {
+        Map<Integer, String> nodes = new HashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            nodes.put(key(snapshot, i), snapshot.getBattery(i) + "/"
+                    + snapshot.getLastSeen(i));
+        }
+        return nodes;
+    }
+
+    private static Map<Long, Integer> links(TopologySnapshot snapshot) {
+        Map<Long, Integer> links = new HashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            for (int j = 0; j < snapshot.getOutDegree(i); j++) {
+                links.put(TopologyDelta.link(key(snapshot, i),
+                        key(snapshot, snapshot.getOutNeighbour(i, j))),
+                        snapshot.getOutLength(i, j));
+            }
+        }
+        return links;
+    }
+
+    private static int key(TopologySnapshot snapshot, int i) {
+        return TopologyStore.key(snapshot.getNetId(i),
+                snapshot.getAddress(i).intValue());
+    }
+
+    /**
+     * The topology known by a client, as described by TopologyPublisher.
+     */
+    private static final class Client {
+
+        private final Map<Integer, String> nodes = new HashMap<>();
+        private final Map<Long, Integer> links = new HashMap<>();
+        private long seq;
+
+        void apply(byte[] frame) {
+            ByteBuffer buf = ByteBuffer.wrap(frame);
+            byte type = buf.get();
+            long s = buf.getLong();
+            buf.getLong();
+            if (type == TopologyPublisher.SNAPSHOT) {
+                nodes.clear();
+                links.clear();
+                readNodes(buf);
+                readLinks(buf);
+            } else {
+                assertEquals(TopologyPublisher.DELTA, type);
+                assertEquals(seq + 1, s);
+                int n = buf.getInt();
+                for (int i = 0; i < n; i++) {
+                    int key = buf.getInt();
+                    nodes.remove(key);
+                    Iterator<Long> it = links.keySet().iterator();
+                    while (it.hasNext()) {
+                        long link = it.next();
+                        if (TopologyDelta.getSource(link) == key
+                                || TopologyDelta.getTarget(link) == key) {
+                            it.remove();
+                        }
+                    }
+                }
+                readNodes(buf);
+                n = buf.getInt();
+                for (int i = 0; i < n; i++) {
+                    links.remove(buf.getLong());
+                }
+                readLinks(buf);
+            }
+            assertEquals(0, buf.remaining());
+            seq = s;
+        }
+
+        boolean matches(TopologySnapshot snapshot) {
+            return nodes.equals(nodes(snapshot))
+                    && links.equals(links(snapshot));
+        }
+
+        private void readNodes(ByteBuffer buf) {
+            int n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                int key = buf.getInt();
+                nodes.put(key, (buf.get() & 0xFF) + "/" + buf.getLong());
+            }
+        }
+
+        private void readLinks(ByteBuffer buf) {
+            int n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                long link = buf.getLong();
+                links.put(link, (int) buf.getShort());
+            }
+        }
+    }
+}
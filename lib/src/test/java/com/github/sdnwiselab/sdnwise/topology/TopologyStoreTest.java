@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 SDN-WISE
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.sdnwiselab.sdnwise.topology;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks a TopologyStore against a map based model of the same topology,
+ * while the slots are reused and the link tables grow and get compacted.
+ */
+public class TopologyStoreTest {
+
+    private final TopologyStore store = new TopologyStore();
+    // key -> {battery, lastSeen}
+    private final Map<Integer, long[]> nodes = new HashMap<>();
+    // (from key, to key) -> length
+    private final Map<Long, Integer> links = new HashMap<>();
+    private final Random random = new Random(1);
+
+    @Test
+    public void keysKeepNetIdAndAddressApart() {
+        assertEquals(0x01FFFF, TopologyStore.key(1, 0xFFFF));
+        assertEquals(0xFF0000, TopologyStore.key(0x1FF, 0x10000));
+        assertNotEquals(TopologyStore.key(1, 2), TopologyStore.key(2, 1));
+
+        int a = store.addNode(1, 7);
+        int b = store.addNode(2, 7);
+        assertNotEquals(a, b);
+        assertEquals(a, store.addNode(1, 7));
+        assertEquals(1, store.getNetId(a));
+        assertEquals(2, store.getNetId(b));
+        assertEquals(7, store.getAddressValue(b));
+        assertEquals(-1, store.slot(3, 7));
+    }
+
+    @Test
+    public void removedSlotsAreReused() {
+        int a = store.addNode(1, 1);
+        int b = store.addNode(1, 2);
+        store.setLink(a, b, 10);
+        store.removeNode(a);
+        assertFalse(store.isUsed(a));
+        assertEquals(0, store.getInDegree(b));
+
+        int c = store.addNode(1, 3);
+        assertEquals(a, c);
+        assertEquals(0, store.getOutDegree(c));
+        assertEquals(0, store.getBattery(c));
+        assertEquals(2, store.getSlotLimit());
+    }
+
+    @Test
+    public void matchesTheModel() {
+        for (int round = 0; round < 50; round++) {
+            for (int op = 0; op < 2000; op++) {
+                step(300);
+            }
+            check();
+        }
+    }
+
+    @Test
+    public void growsPastTheDefaultCapacity() {
+        for (int addr = 0; addr < 2000; addr++) {
+            store.update(store.addNode(1, addr), 0, 0);
+            nodes.put(TopologyStore.key(1, addr), new long[2]);
+        }
+        for (int op = 0; op < 30000; op++) {
+            step(2000);
+        }
+        check();
+        assertTrue(store.size() > 1000);
+    }
+
+    private void step(int addresses) {
+        int key = TopologyStore.key(1 + random.nextInt(2),
+                random.nextInt(addresses));
+        int slot = store.slot(key >>> 16, key & 0xFFFF);
+        int op = random.nextInt(20);
+        if (op == 0) {
+            if (slot >= 0) {
+                store.removeNode(slot);
+                nodes.remove(key);
+                Iterator<Long> it = links.keySet().iterator();
+                while (it.hasNext()) {
+                    long link = it.next();
+                    if ((int) (link >>> 32) == key || (int) link == key) {
+                        it.remove();
+                    }
+                }
+            }
+        } else if (op < 4 || slot < 0) {
+            slot = store.addNode(key >>> 16, key & 0xFFFF);
+            int batt = random.nextInt(256);
+            long now = random.nextLong();
+            store.update(slot, batt, now);
+            nodes.put(key, new long[]{batt, now});
+        } else {
+            int other = TopologyStore.key(1 + random.nextInt(2),
+                    random.nextInt(addresses));
+            int to = store.slot(other >>> 16, other & 0xFFFF);
+            if (to < 0) {
+                return;
+            }
+            long link = ((long) key << 32) | other;
+            if (op < 8) {
+                store.removeLink(slot, to);
+                links.remove(link);
+            } else {
+                int len = random.nextInt(512);
+                store.setLink(slot, to, len);
+                links.put(link, len);
+            }
+        }
+    }
+
+    private void check() {
+        assertEquals(nodes.size(), store.size());
+        Map<Long, Integer> in = new HashMap<>();
+        Map<Long, Integer> out = new HashMap<>();
+        int used = 0;
+        for (int slot = 0; slot < store.getSlotLimit(); slot++) {
+            if (!store.isUsed(slot)) {
+                continue;
+            }
+            used++;
+            int key = TopologyStore.key(store.getNetId(slot),
+                    store.getAddressValue(slot));
+            long[] node = nodes.get(key);
+            assertEquals(slot, store.slot(store.getNetId(slot),
+                    store.getAddressValue(slot)));
+            assertEquals(node[0], store.getBattery(slot));
+            assertEquals(node[1], store.getLastSeen(slot));
+            for (int i = 0; i < store.getOutDegree(slot); i++) {
+                int to = store.getOutNeighbour(slot, i);
+                long link = ((long) key << 32) | TopologyStore.key(
+                        store.getNetId(to), store.getAddressValue(to));
+                assertEquals(null, out.put(link, store.getOutLength(slot, i)));
+                assertTrue(store.findLink(slot, to) >= 0);
+            }
+            for (int i = 0; i < store.getInDegree(slot); i++) {
+                int from = store.getInNeighbour(slot, i);
+                long link = ((long) TopologyStore.key(store.getNetId(from),
+                        store.getAddressValue(from)) << 32) | key;
+                assertEquals(null, in.put(link, store.getInLength(slot, i)));
+            }
+        }
+        assertEquals(nodes.size(), used);
+        assertEquals(links, out);
+        assertEquals(links, in);
+    }
+}